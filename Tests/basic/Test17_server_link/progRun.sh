@@ -0,0 +1,7 @@
+#!/bin/bash
+PAUSE=0.1
+PORT=$((12000 + ($RANDOM % 1000)))  # avoids conflicts with other students
+PORT2=$((PORT + 1000))
+LINKPORT=$((PORT + 2000))
+(timeout 5 java -Dirc.link.port=$LINKPORT IrcServerMain irc.example.com $PORT > /dev/null 2>&1 ) & (timeout 5 java -Dirc.link.peers=localhost:$LINKPORT -Dirc.link.retry.ms=100 IrcServerMain irc2.example.com $PORT2 > /dev/null 2>&1 ) & (sleep 2; bash $TESTDIR/sendMessages.sh | nc localhost $PORT 2>&1) & (sleep 2; bash $TESTDIR/sendMessages2.sh | nc localhost $PORT2 > /dev/null 2>&1)
+wait
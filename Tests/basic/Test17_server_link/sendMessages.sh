@@ -0,0 +1,9 @@
+#!/bin/bash
+echo "NICK Alice"
+echo "USER al 0 * :Alice Appleton"
+echo "JOIN #link"
+sleep 0.8
+echo "NAMES #link"
+sleep 0.6
+echo "QUIT"
+sleep 0.1
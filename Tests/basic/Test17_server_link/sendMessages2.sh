@@ -0,0 +1,11 @@
+#!/bin/bash
+# Executed concurrently with sendMessages.sh, connected to the other server of the network
+sleep 0.4
+echo "NICK Bob"
+echo "USER b12 0 * :Robert Bobson"
+echo "JOIN #link"
+echo "PRIVMSG #link :Hello from the other server!"
+echo "PRIVMSG Alice :Hello Alice!"
+sleep 0.8
+echo "QUIT"
+sleep 0.1
@@ -0,0 +1,16 @@
+#!/bin/bash
+echo "NICK wasp"
+echo "USER hvd 0 * :Hope van Dyne"
+echo "JOIN #lab"
+echo "PRIVMSG #lab :Shrinking now"
+echo "PRIVMSG #lab :Growing now"
+echo "CHATHISTORY LATEST #lab 5"
+echo "CHATHISTORY AFTER #lab timestamp=2999-01-01T00:00:00.000Z 5"
+echo "CHATHISTORY LATEST #quantumrealm * 5"
+echo "CHATHISTORY LATEST  #lab  *  2"
+echo "CAP LS"
+echo "CAP REQ :batch chrono-time"
+echo "CAP REQ :batch"
+echo "CHATHISTORY LATEST #lab * 1"
+echo "QUIT"
+sleep 0.1
@@ -0,0 +1,7 @@
+#!/bin/bash
+echo "NICK Bob"
+echo "USER bob 0 * :Bob Bobbins"
+echo "JOIN #lab"
+sleep 1
+echo "QUIT"
+sleep 0.1
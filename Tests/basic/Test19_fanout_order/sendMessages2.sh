@@ -0,0 +1,12 @@
+#!/bin/bash
+sleep 0.3
+echo "NICK Alice"
+echo "USER al 0 * :Alice Appleton"
+echo "JOIN #lab"
+for i in 1 2 3 4 5; do
+    echo "PRIVMSG #lab :Channel line $i"
+    echo "PRIVMSG Bob :Private line $i"
+done
+sleep 0.3
+echo "QUIT"
+sleep 0.1
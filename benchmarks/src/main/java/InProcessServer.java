@@ -0,0 +1,188 @@
+import irc.bench.ServerWorkload;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+* Implementation of the benchmarks' ServerWorkload over the real server classes.
+* The server opens no port, every client is a ConnectionHandler whose transport only
+* counts the lines it is given, so the numbers measure the server and not the network.
+* Broadcasts are delivered by the caller unless a benchmark sets the number of fan-out threads.
+*/
+public final class InProcessServer implements ServerWorkload {
+
+    private IrcServer server;
+    private CountingTransport transport;
+    private List<ConnectionHandler> clients;
+    private LineDecoder decoder;
+    private Command command;
+
+    /**
+     * Create a server without any connection.
+     */
+    public InProcessServer() {
+        // Set by the benchmarks comparing numbers of fan-out threads, 0 included, which count atomically.
+        boolean fanOutMeasured = System.getProperty(Configuration.FANOUT_THREADS_PROPERTY) != null;
+        if (!fanOutMeasured) {
+            System.setProperty(Configuration.FANOUT_THREADS_PROPERTY, "0");
+        }
+        this.server = new IrcServer("bench.example.com");
+        this.transport = new CountingTransport(fanOutMeasured);
+        this.clients = new ArrayList<>();
+        this.decoder = new LineDecoder(Charset.defaultCharset());
+        this.command = new Command();
+    }
+
+    @Override
+    public void registerUsers(int count) {
+        for (int index = 0; index < count; index++) {
+            ConnectionHandler client = new ConnectionHandler(transport);
+            client.setIrcServer(server);
+            server.addConnection(client);
+            String nickname = ServerWorkload.nickname(clients.size());
+            client.handleLine(Configuration.NICK + " " + nickname);
+            client.handleLine(Configuration.USER + " " + nickname + " 0 * :Benchmark user");
+            clients.add(client);
+        }
+    }
+
+    @Override
+    public void joinAll(String channelName) {
+        for (ConnectionHandler client : clients) {
+            // A connection would not be read while the fan-out threads are behind with the channel.
+            if (server.checkChannelBacklog(channelName) > 0) {
+                awaitBroadcasts(channelName);
+            }
+            server.handleJoinRequest(channelName, client);
+        }
+    }
+
+    @Override
+    public void join(String channelName, int index) {
+        server.handleJoinRequest(channelName, clients.get(index));
+    }
+
+    @Override
+    public void part(String channelName, int index) {
+        server.handlePartRequest(channelName, clients.get(index));
+    }
+
+    @Override
+    public void openChannels(int count) {
+        for (int index = 0; index < count; index++) {
+            server.handleJoinRequest(ServerWorkload.channelName(index), clients.get(index % clients.size()));
+        }
+    }
+
+    @Override
+    public int parse(String line) {
+        CommandParser.parse(line, command);
+        return command.getVerb();
+    }
+
+    @Override
+    public void handleLine(String line) {
+        clients.get(0).handleLine(line);
+    }
+
+    @Override
+    public void handleInput(ByteBuffer chunk) {
+        decoder.decode(chunk, clients.get(0)::handleLine);
+    }
+
+    @Override
+    public boolean channelExists(String channelName) {
+        return server.checkChannelExistence(channelName);
+    }
+
+    @Override
+    public boolean userExists(String nickname) {
+        return server.checkUserExistence(nickname);
+    }
+
+    @Override
+    public void privateMessage(String nickname, String text) {
+        server.handlePrivateMsgRequest(nickname, text);
+    }
+
+    @Override
+    public void broadcast(String channelName, String text) {
+        server.handleBroadcastMsgRequest(channelName, text);
+    }
+
+    @Override
+    public void awaitBroadcasts(String channelName) {
+        for (Channel room : server.handleListRequest(channelName)) {
+            room.awaitBroadcasts();
+        }
+    }
+
+    @Override
+    public String names(String channelName) {
+        return server.handleNamesRequest(channelName);
+    }
+
+    @Override
+    public Object list(String masks) {
+        return server.handleListRequest(masks);
+    }
+
+    @Override
+    public long delivered() {
+        return transport.getDelivered();
+    }
+
+    /**
+    * Transport shared by all clients, accepting every line without writing it anywhere.
+    * Only counts with an atomic counter if the fan-out threads may count at the same time.
+    */
+    private static final class CountingTransport implements ClientTransport {
+
+        private final boolean concurrent;
+        private final LongAdder concurrentDelivered = new LongAdder();
+        private long delivered;
+
+        CountingTransport(boolean concurrent) {
+            this.concurrent = concurrent;
+        }
+
+        long getDelivered() {
+            return concurrent ? concurrentDelivered.sum() : delivered;
+        }
+
+        @Override
+        public boolean sendFrame(Frame frame) {
+            if (concurrent) {
+                concurrentDelivered.increment();
+            }
+            else {
+                delivered++;
+            }
+            return true;
+        }
+
+        @Override
+        public void beginBatch() {
+        }
+
+        @Override
+        public void endBatch() {
+        }
+
+        @Override
+        public long getQueuedBytes() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void abort() {
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package irc.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* Cost of delivering one channel message to every member, as Channel.broadcastMsg() does
+* for PRIVMSG to a channel. The transports only count lines, so this is the server's share.
+*/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = ServerWorkload.WARMUP_ITERATIONS, time = 1)
+@Measurement(iterations = ServerWorkload.MEASUREMENT_ITERATIONS, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FanOutBenchmark {
+
+    private static final String CHANNEL = "#bench";
+
+    /** Number of members of the channel. */
+    @Param({"10", "1000", "50000"})
+    private int members;
+
+    private ServerWorkload workload;
+
+    /**
+     * Register the members and let all of them join the channel.
+     */
+    @Setup
+    public void setUp() {
+        workload = ServerWorkload.create();
+        workload.registerUsers(members);
+        workload.joinAll(CHANNEL);
+    }
+
+    /**
+     * Broadcast a message to the channel.
+     * @return Lines delivered so far.
+     */
+    @Benchmark
+    public long broadcast() {
+        workload.broadcast(CHANNEL, ":u0 PRIVMSG #bench :hello everyone");
+        return workload.delivered();
+    }
+}
@@ -0,0 +1,58 @@
+package irc.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* Cost of a user joining and leaving a channel of growing size, including the JOIN
+* and PART lines delivered to the members. The transports only count lines.
+*/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = ServerWorkload.WARMUP_ITERATIONS, time = 1)
+@Measurement(iterations = ServerWorkload.MEASUREMENT_ITERATIONS, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MembershipBenchmark {
+
+    private static final String CHANNEL = "#bench";
+
+    /** Number of members of the channel, besides the user joining and leaving. */
+    @Param({"10", "1000", "100000"})
+    private int members;
+
+    private ServerWorkload workload;
+
+    /**
+     * Register the members and one more user, and let the members join the channel.
+     */
+    @Setup
+    public void setUp() {
+        workload = ServerWorkload.create();
+        workload.registerUsers(members + 1);
+        workload.joinAll(CHANNEL);
+        workload.part(CHANNEL, members);
+    }
+
+    /**
+     * Join the channel and leave it again.
+     * @return Lines delivered so far.
+     */
+    @Benchmark
+    public long joinAndPart() {
+        workload.join(CHANNEL, members);
+        workload.part(CHANNEL, members);
+        return workload.delivered();
+    }
+}
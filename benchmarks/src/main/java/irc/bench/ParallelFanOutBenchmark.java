@@ -0,0 +1,86 @@
+package irc.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* Time until one channel message reached every member of a large channel, delivered in chunks
+* by a growing number of fan-out threads, or by the sender alone with 0 threads, and how long
+* the sender is kept busy meanwhile. The threads only speed the delivery up as far as there are
+* processors for them, so the numbers show how it scales on the machine the benchmark runs on.
+* The transports only count lines.
+*/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = ServerWorkload.WARMUP_ITERATIONS, time = 1)
+@Measurement(iterations = ServerWorkload.MEASUREMENT_ITERATIONS, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParallelFanOutBenchmark {
+
+    private static final String CHANNEL = "#bench";
+
+    /** Number of fan-out threads, 0 to deliver on the sender's thread. */
+    @Param({"0", "1", "2", "4", "8"})
+    private int threads;
+
+    /** Number of members of the channel. */
+    @Param({"50000"})
+    private int members;
+
+    private ServerWorkload workload;
+
+    /**
+     * Start a server with the fan-out threads, register the members and let all of them join the channel.
+     */
+    @Setup
+    public void setUp() {
+        System.setProperty("irc.fanout.threads", Integer.toString(threads));
+        workload = ServerWorkload.create();
+        workload.registerUsers(members);
+        workload.joinAll(CHANNEL);
+        workload.awaitBroadcasts(CHANNEL);
+    }
+
+    /**
+     * Wait until the message of the last invocation was delivered, outside of the measured time.
+     */
+    @TearDown(Level.Invocation)
+    public void awaitDelivery() {
+        workload.awaitBroadcasts(CHANNEL);
+    }
+
+    /**
+     * Broadcast a message to the channel and wait until every member was given it.
+     * @return Lines delivered so far.
+     */
+    @Benchmark
+    public long broadcastAndAwait() {
+        workload.broadcast(CHANNEL, ":u0 PRIVMSG #bench :hello everyone");
+        workload.awaitBroadcasts(CHANNEL);
+        return workload.delivered();
+    }
+
+    /**
+     * Broadcast a message to the channel, returning as soon as the sender may go on.
+     * @return Lines delivered so far.
+     */
+    @Benchmark
+    public long senderBusy() {
+        workload.broadcast(CHANNEL, ":u0 PRIVMSG #bench :hello everyone");
+        return workload.delivered();
+    }
+}
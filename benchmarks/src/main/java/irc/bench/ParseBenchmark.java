@@ -0,0 +1,87 @@
+package irc.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* Cost of turning client input into commands: parsing a single line, processing a line
+* end to end, and decoding a chunk as read from the socket by processClientMessage().
+*/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = ServerWorkload.WARMUP_ITERATIONS, time = 1)
+@Measurement(iterations = ServerWorkload.MEASUREMENT_ITERATIONS, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParseBenchmark {
+
+    private static final int LINES_PER_CHUNK = 64;
+
+    private ServerWorkload workload;
+    private ByteBuffer chunk;
+
+    /**
+     * Register the user whose input is processed and encode the chunk of PING lines.
+     */
+    @Setup
+    public void setUp() {
+        workload = ServerWorkload.create();
+        workload.registerUsers(1);
+        StringBuilder lines = new StringBuilder();
+        for (int index = 0; index < LINES_PER_CHUNK; index++) {
+            lines.append("PING ").append(index).append("\r\n");
+        }
+        chunk = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Parse a line with a known verb.
+     * @return Index of the verb.
+     */
+    @Benchmark
+    public int parsePrivmsg() {
+        return workload.parse("PRIVMSG #bench :hello everyone");
+    }
+
+    /**
+     * Parse a line with an unknown verb.
+     * @return Index of the verb, -1.
+     */
+    @Benchmark
+    public int parseUnknown() {
+        return workload.parse("WHOIS somebody");
+    }
+
+    /**
+     * Parse, dispatch and answer a PING.
+     * @return Lines delivered so far.
+     */
+    @Benchmark
+    public long handlePing() {
+        workload.handleLine("PING bench.example.com");
+        return workload.delivered();
+    }
+
+    /**
+     * Decode and process a chunk of {@value #LINES_PER_CHUNK} PING lines.
+     * @return Lines delivered so far.
+     */
+    @Benchmark
+    public long handleChunk() {
+        chunk.rewind();
+        workload.handleInput(chunk);
+        return workload.delivered();
+    }
+}
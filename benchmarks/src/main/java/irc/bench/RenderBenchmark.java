@@ -0,0 +1,74 @@
+package irc.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* Cost of rendering the replies to NAMES, for a channel of growing size,
+* and to LIST, for a growing number of channels.
+*/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = ServerWorkload.WARMUP_ITERATIONS, time = 1)
+@Measurement(iterations = ServerWorkload.MEASUREMENT_ITERATIONS, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RenderBenchmark {
+
+    private static final String CHANNEL = "#bench";
+
+    /** Number of members of the channel, and of channels on the server. */
+    @Param({"10", "1000", "50000"})
+    private int population;
+
+    private ServerWorkload workload;
+
+    /**
+     * Register the users, let all of them join one channel and open the other channels.
+     */
+    @Setup
+    public void setUp() {
+        workload = ServerWorkload.create();
+        workload.registerUsers(population);
+        workload.joinAll(CHANNEL);
+        workload.openChannels(population);
+    }
+
+    /**
+     * Render the nicknames of the channel.
+     * @return The space-separated nicknames.
+     */
+    @Benchmark
+    public String names() {
+        return workload.names(CHANNEL);
+    }
+
+    /**
+     * Collect all channels.
+     * @return The sorted channels.
+     */
+    @Benchmark
+    public Object list() {
+        return workload.list(null);
+    }
+
+    /**
+     * Collect the channels matching a mask, as "LIST #c1*" does.
+     * @return The sorted matching channels.
+     */
+    @Benchmark
+    public Object listMasked() {
+        return workload.list("#c1*");
+    }
+}
@@ -0,0 +1,100 @@
+package irc.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* Cost of finding the target of a message among a growing number of users and channels.
+* Targets are fresh String instances, as they would be after decoding a line,
+* and cycle through the whole population so the lookups are not always for one hot key.
+*/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = ServerWorkload.WARMUP_ITERATIONS, time = 1)
+@Measurement(iterations = ServerWorkload.MEASUREMENT_ITERATIONS, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RouteBenchmark {
+
+    private static final int TARGETS = 1024;
+
+    /** Number of registered users, and of channels. */
+    @Param({"10", "1000", "50000"})
+    private int population;
+
+    private ServerWorkload workload;
+    private String[] nicknames;
+    private String[] channelNames;
+    private int next;
+
+    /**
+     * Register the users, open the channels and pick the targets.
+     */
+    @Setup
+    public void setUp() {
+        workload = ServerWorkload.create();
+        workload.registerUsers(population);
+        workload.openChannels(population);
+        nicknames = new String[TARGETS];
+        channelNames = new String[TARGETS];
+        int stride = Math.max(1, population / TARGETS);
+        for (int index = 0; index < TARGETS; index++) {
+            int target = (index * stride) % population;
+            nicknames[index] = new String(ServerWorkload.nickname(target));
+            channelNames[index] = new String(ServerWorkload.channelName(target));
+        }
+    }
+
+    /**
+     * Deliver a private message to a registered user.
+     * @return Lines delivered so far.
+     */
+    @Benchmark
+    public long privateMessage() {
+        workload.privateMessage(nicknames[nextTarget()], ":u0 PRIVMSG target :hello");
+        return workload.delivered();
+    }
+
+    /**
+     * Look up a channel which exists.
+     * @return Whether it exists.
+     */
+    @Benchmark
+    public boolean channelExists() {
+        return workload.channelExists(channelNames[nextTarget()]);
+    }
+
+    /**
+     * Look up a channel which does not exist.
+     * @return Whether it exists.
+     */
+    @Benchmark
+    public boolean channelMissing() {
+        return workload.channelExists("#missing");
+    }
+
+    /**
+     * Look up a registered user.
+     * @return Whether the user exists.
+     */
+    @Benchmark
+    public boolean userExists() {
+        return workload.userExists(nicknames[nextTarget()]);
+    }
+
+    private int nextTarget() {
+        next = (next + 1) & (TARGETS - 1);
+        return next;
+    }
+}
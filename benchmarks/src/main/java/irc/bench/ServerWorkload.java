@@ -0,0 +1,158 @@
+package irc.bench;
+
+import java.nio.ByteBuffer;
+
+/**
+* Operations of the IRC server driven by the benchmarks, all running in-process.
+* The server classes live in the default package, which code in a named package cannot
+* import and JMH does not accept benchmarks in, so they are reached through this interface,
+* implemented by the default-package class InProcessServer of this module.
+*/
+public interface ServerWorkload {
+
+    /** Name of the class implementing this interface. */
+    String IMPLEMENTATION = "InProcessServer";
+
+    /** Number of warmup iterations of every benchmark. */
+    int WARMUP_ITERATIONS = 3;
+
+    /** Number of measured iterations of every benchmark. */
+    int MEASUREMENT_ITERATIONS = 5;
+
+    /**
+     * Create a server without any connection.
+     * @return A new ServerWorkload.
+     */
+    static ServerWorkload create() {
+        try {
+            return (ServerWorkload) Class.forName(IMPLEMENTATION).getDeclaredConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create " + IMPLEMENTATION, e);
+        }
+    }
+
+    /**
+     * Public method to return the nickname of a registered user.
+     * @param index Index of the user, from 0.
+     * @return The nickname of that user.
+     */
+    static String nickname(int index) {
+        return "u" + index;
+    }
+
+    /**
+     * Public method to return the name of a channel opened by {@link #openChannels}.
+     * @param index Index of the channel, from 0.
+     * @return The name of that channel.
+     */
+    static String channelName(int index) {
+        return "#c" + index;
+    }
+
+    /**
+     * Connect and register users with the nicknames of {@link #nickname}.
+     * @param count Number of users to be registered.
+     */
+    void registerUsers(int count);
+
+    /**
+     * Let every registered user join the same channel.
+     * @param channelName Name of the channel.
+     */
+    void joinAll(String channelName);
+
+    /**
+     * Let a registered user join a channel, sending JOIN to the members.
+     * @param channelName Name of the channel.
+     * @param index Index of the user, from 0.
+     */
+    void join(String channelName, int index);
+
+    /**
+     * Let a registered user leave a channel, sending PART to the members.
+     * @param channelName Name of the channel.
+     * @param index Index of the user, from 0.
+     */
+    void part(String channelName, int index);
+
+    /**
+     * Open channels named by {@link #channelName}, each joined by one registered user.
+     * @param count Number of channels to be opened.
+     */
+    void openChannels(int count);
+
+    /**
+     * Parse a line the way every line read from a client is parsed.
+     * @param line Line without line terminator.
+     * @return Index of the verb, or -1 if it is unknown.
+     */
+    int parse(String line);
+
+    /**
+     * Process a line as if the first registered user sent it.
+     * @param line Line without line terminator.
+     */
+    void handleLine(String line);
+
+    /**
+     * Decode a chunk read from the first registered user and process every line in it.
+     * @param chunk Bytes in read mode, will be fully drained.
+     */
+    void handleInput(ByteBuffer chunk);
+
+    /**
+     * Look a channel up.
+     * @param channelName Name of the channel.
+     * @return Whether the channel exists.
+     */
+    boolean channelExists(String channelName);
+
+    /**
+     * Look a registered user up.
+     * @param nickname Nickname of the user.
+     * @return Whether the user exists.
+     */
+    boolean userExists(String nickname);
+
+    /**
+     * Deliver a private message to a registered user.
+     * @param nickname Nickname of the receiver.
+     * @param text Line to be delivered.
+     */
+    void privateMessage(String nickname, String text);
+
+    /**
+     * Deliver a message to every member of a channel.
+     * @param channelName Name of the channel.
+     * @param text Line to be delivered.
+     */
+    void broadcast(String channelName, String text);
+
+    /**
+     * Wait until the messages broadcast to a channel so far were delivered to every member,
+     * which may be done by the fan-out threads after broadcast() returned.
+     * @param channelName Name of the channel.
+     */
+    void awaitBroadcasts(String channelName);
+
+    /**
+     * Render the nicknames of a channel as sent in reply to NAMES.
+     * @param channelName Name of the channel.
+     * @return Space-separated nicknames.
+     */
+    String names(String channelName);
+
+    /**
+     * Collect the channels as listed in reply to LIST.
+     * @param masks Comma-separated channel name masks, or null for all channels.
+     * @return The List of the matching channels, in alphabetical order.
+     */
+    Object list(String masks);
+
+    /**
+     * Public method to return how many lines were handed to the transports so far.
+     * @return The number of delivered lines.
+     */
+    long delivered();
+}
@@ -0,0 +1,260 @@
+package irc.bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* Throughput of PRIVMSG fan-out in the nio mode with a varying number of reactors.
+* Unlike the other benchmarks this one runs a real server on a loopback port: several senders,
+* accepted round-robin by different reactors, flood one channel whose members are spread over
+* all reactors, and an operation completes once every member has received every message.
+* The score is channel messages per second, each delivered to {@link #MEMBERS} members.
+* Client and server share the machine, so the scaling seen is bounded by the cores left to the server.
+*/
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = ServerWorkload.WARMUP_ITERATIONS, time = 2)
+@Measurement(iterations = ServerWorkload.MEASUREMENT_ITERATIONS, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dirc.flood.messages.rate=0", "-Dirc.flood.channel.rate=0",
+    "-Dirc.ping.interval.ms=0"})
+@State(Scope.Benchmark)
+public class ShardScalingBenchmark {
+
+    private static final String SERVER_CLASS = "IrcServer";
+    private static final String CHANNEL = "#bench";
+    private static final int MEMBERS = 256;
+    private static final int SENDERS = 8;
+    private static final int BATCH = 16;
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final long QUIET_MILLIS = 300;
+    private static final long POLL_MICROS = 20;
+    private static final int RECEIVE_BUFFER_SIZE = 65536;
+    private static final long STOP_MILLIS = 5000;
+
+    /** Number of reactor threads of the server. */
+    @Param({"1", "2", "4"})
+    private int reactors;
+
+    /* The server, whose class is in the default package and only reached reflectively. */
+    private Object server;
+    private List<SocketChannel> senders;
+    private Receivers receivers;
+    private ByteBuffer batch;
+
+    /**
+     * Start the server, connect the members and the senders and wait until a probe message reaches everybody.
+     * @throws Exception If the server cannot be started or the clients cannot connect.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        System.setProperty("irc.reactors", Integer.toString(reactors));
+        server = Class.forName(SERVER_CLASS).getConstructor(String.class, int.class, String.class)
+                .newInstance("bench.example.com", 0, "nio");
+        server.getClass().getMethod("start").invoke(server);
+        server.getClass().getMethod("awaitReady").invoke(server);
+        int port = (Integer) server.getClass().getMethod("getPort").invoke(server);
+
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+        receivers = new Receivers();
+        for (int index = 0; index < MEMBERS; index++) {
+            SocketChannel member = connect(address, "m" + index);
+            send(member, "JOIN " + CHANNEL + "\r\n");
+            receivers.add(member);
+        }
+        senders = new ArrayList<>();
+        for (int index = 0; index < SENDERS; index++) {
+            senders.add(connect(address, "s" + index));
+        }
+        receivers.start();
+        StringBuilder lines = new StringBuilder();
+        for (int index = 0; index < BATCH; index++) {
+            lines.append("PRIVMSG ").append(CHANNEL).append(" :message number ").append(index).append("\r\n");
+        }
+        batch = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.US_ASCII));
+        // Every member joined once a probe sent after the replies to the registrations reaches all of them.
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (true) {
+            long before = receivers.awaitQuiet();
+            send(senders.get(0), "PRIVMSG " + CHANNEL + " :probe\r\n");
+            if (receivers.awaitQuiet() - before == MEMBERS) {
+                break;
+            }
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("The members did not all join " + CHANNEL);
+            }
+        }
+    }
+
+    /**
+     * Close the clients and stop the server.
+     * @throws Exception If a client cannot be closed or the server cannot be stopped.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        receivers.stop();
+        for (SocketChannel sender : senders) {
+            sender.close();
+        }
+        server.getClass().getMethod("stop", long.class).invoke(server, STOP_MILLIS);
+    }
+
+    /**
+     * Let every sender send a batch of messages to the channel and wait until all members received them.
+     * @return Lines received by the members so far.
+     * @throws IOException If sending fails.
+     */
+    @Benchmark
+    @OperationsPerInvocation(SENDERS * BATCH)
+    public long fanOut() throws IOException {
+        long before = receivers.linesReceived();
+        for (SocketChannel sender : senders) {
+            send(sender, batch.duplicate());
+        }
+        if (!receivers.awaitLines(before, (long) MEMBERS * SENDERS * BATCH, TIMEOUT_NANOS)) {
+            throw new IllegalStateException("Messages were lost");
+        }
+        return receivers.linesReceived();
+    }
+
+    private static SocketChannel connect(InetSocketAddress address, String nickname) throws IOException {
+        SocketChannel channel = SocketChannel.open(address);
+        channel.socket().setTcpNoDelay(true);
+        send(channel, "NICK " + nickname + "\r\nUSER " + nickname + " 0 * :Benchmark user\r\n");
+        return channel;
+    }
+
+    private static void send(SocketChannel channel, String text) throws IOException {
+        send(channel, ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private static void send(SocketChannel channel, ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    /**
+    * The members, read by one selector thread which only counts the lines they receive.
+    */
+    private static final class Receivers implements Runnable {
+
+        private final Selector selector;
+        private final List<SocketChannel> members;
+        private final AtomicLong lines;
+        private final Thread thread;
+        private volatile boolean running;
+
+        private Receivers() throws IOException {
+            this.selector = Selector.open();
+            this.members = new ArrayList<>();
+            this.lines = new AtomicLong();
+            this.thread = new Thread(this, "receivers");
+            this.thread.setDaemon(true);
+        }
+
+        private void add(SocketChannel member) {
+            members.add(member);
+        }
+
+        private void start() throws IOException {
+            for (SocketChannel member : members) {
+                member.configureBlocking(false);
+                member.register(selector, SelectionKey.OP_READ);
+            }
+            running = true;
+            thread.start();
+        }
+
+        private long linesReceived() {
+            return lines.get();
+        }
+
+        private boolean awaitLines(long before, long expected, long timeoutNanos) {
+            long deadline = System.nanoTime() + timeoutNanos;
+            while (lines.get() - before < expected) {
+                if (System.nanoTime() > deadline) {
+                    return false;
+                }
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(POLL_MICROS));
+            }
+            return true;
+        }
+
+        /* Wait until no line arrived for a while, returning the number of lines received. */
+        private long awaitQuiet() {
+            long last = lines.get();
+            while (true) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(QUIET_MILLIS));
+                long current = lines.get();
+                if (current == last) {
+                    return current;
+                }
+                last = current;
+            }
+        }
+
+        private void stop() throws IOException {
+            running = false;
+            selector.wakeup();
+            for (SocketChannel member : members) {
+                member.close();
+            }
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+            try {
+                while (running) {
+                    selector.select();
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        buffer.clear();
+                        if (((SocketChannel) key.channel()).read(buffer) < 0) {
+                            key.cancel();
+                            continue;
+                        }
+                        buffer.flip();
+                        long count = 0;
+                        while (buffer.hasRemaining()) {
+                            if (buffer.get() == '\n') {
+                                count++;
+                            }
+                        }
+                        lines.addAndGet(count);
+                    }
+                    selector.selectedKeys().clear();
+                }
+            }
+            catch (IOException e) {
+                if (running) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package irc.loadgen;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+* Chooses which channels a client joins, following the configured distribution.
+*/
+public final class ChannelChooser {
+
+    private final double[] cumulative;
+
+    /**
+     * Prepare the distribution over the channels.
+     * @param channels Number of channels.
+     * @param distribution {@link LoadOptions#UNIFORM} or {@link LoadOptions#ZIPF}.
+     */
+    public ChannelChooser(int channels, String distribution) {
+        this.cumulative = new double[channels];
+        double total = 0;
+        for (int index = 0; index < channels; index++) {
+            total += distribution.equals(LoadOptions.ZIPF) ? 1.0 / (index + 1) : 1.0;
+            cumulative[index] = total;
+        }
+        for (int index = 0; index < channels; index++) {
+            cumulative[index] /= total;
+        }
+    }
+
+    /**
+     * Public method to draw distinct channels.
+     * @param random Source of randomness.
+     * @param count Number of channels, at most the number of channels.
+     * @return Indexes of the chosen channels.
+     */
+    public int[] chooseDistinct(Random random, int count) {
+        int[] chosen = new int[count];
+        boolean[] taken = new boolean[cumulative.length];
+        for (int index = 0; index < count; index++) {
+            int channel = choose(random);
+            while (taken[channel]) {
+                // Fall back to the next free channel rather than redrawing forever under zipf.
+                channel = (channel + 1) % cumulative.length;
+            }
+            taken[channel] = true;
+            chosen[index] = channel;
+        }
+        return chosen;
+    }
+
+    private int choose(Random random) {
+        int slot = Arrays.binarySearch(cumulative, random.nextDouble());
+        return Math.min(cumulative.length - 1, slot < 0 ? -slot - 1 : slot);
+    }
+}
@@ -0,0 +1,78 @@
+package irc.loadgen;
+
+import java.util.Arrays;
+
+/**
+* Records every sample of a run and reports exact percentiles at the end.
+* Samples are kept in a growing array, which for the length of a load test
+* costs less memory than the sockets of the clients producing them.
+*/
+public final class LatencyRecorder {
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final double NANOS_PER_MICRO = 1e3;
+    private static final double ALL = 100;
+    private static final double MEDIAN = 50;
+    private static final double TAIL = 99;
+    private static final double FAR_TAIL = 99.9;
+
+    private long[] samples;
+    private int count;
+    private boolean sorted;
+
+    /**
+     * Create an empty recorder.
+     */
+    public LatencyRecorder() {
+        this.samples = new long[INITIAL_CAPACITY];
+        this.count = 0;
+        this.sorted = true;
+    }
+
+    /**
+     * Public method to add a sample.
+     * @param nanos Latency in nanoseconds.
+     */
+    public void record(long nanos) {
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, samples.length * 2);
+        }
+        samples[count++] = nanos;
+        sorted = false;
+    }
+
+    /**
+     * Public getter to return the number of samples.
+     * @return The number of samples recorded.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Public method to return the sample below which the given share of samples lie.
+     * @param percentile Percentile between 0 and 100.
+     * @return The sample in nanoseconds, 0 if nothing was recorded.
+     */
+    public long percentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        if (!sorted) {
+            Arrays.sort(samples, 0, count);
+            sorted = true;
+        }
+        int rank = (int) Math.ceil(percentile / ALL * count);
+        return samples[Math.max(0, Math.min(count, rank) - 1)];
+    }
+
+    /**
+     * Public method to summarise the samples in microseconds.
+     * @return p50, p99, p99.9 and maximum of the samples.
+     */
+    public String summary() {
+        return String.format("p50=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus (%d samples)",
+                percentile(MEDIAN) / NANOS_PER_MICRO, percentile(TAIL) / NANOS_PER_MICRO,
+                percentile(FAR_TAIL) / NANOS_PER_MICRO, percentile(ALL) / NANOS_PER_MICRO, count);
+    }
+}
@@ -0,0 +1,374 @@
+package irc.loadgen;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+* Opens a swarm of loopback connections to a running IRC server, registers and joins
+* channels with every one of them, then sends PRIVMSG traffic at a fixed rate and measures
+* how long each line takes to reach each of its receivers.
+*
+* The schedule is open-loop: the i-th line is due at start + i / rate whatever the server does,
+* and carries that due time, so a stalled server shows up as latency instead of a lower rate.
+* All connections are served by one selector thread, which also sends, so the timestamps
+* of sender and receivers come from the same clock.
+*/
+public final class LoadGenerator implements SwarmClient.LineListener {
+
+    private static final String WELCOME_CODE = " 001 ";
+    private static final String ERROR_CODE = " 400 ";
+    private static final byte[] PRIVMSG = " PRIVMSG ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte SPACE = ' ';
+    private static final byte COLON = ':';
+    private static final int DECIMAL = 10;
+    private static final String PING = "PING ";
+    private static final String HELP = "--help";
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SETUP_POLL_MILLIS = 100;
+
+    private final LoadOptions options;
+    private final Random random;
+    private final SwarmClient[] clients;
+    private final int[] members;
+    private final String[] channelNames;
+    private final String padding;
+    private Selector selector;
+
+    private int nextToConnect;
+    private int settled;
+    private int failed;
+    private int disconnects;
+    private final LatencyRecorder setupLatency = new LatencyRecorder();
+    private final LatencyRecorder deliveryLatency = new LatencyRecorder();
+    private boolean measuring;
+    private long measureFromNanos;
+    private long measuredSent;
+    private long expectedDeliveries;
+    private long measuredDeliveries;
+
+    /**
+     * Plan a run: which channels every client joins.
+     * @param options Settings of the run.
+     */
+    public LoadGenerator(LoadOptions options) {
+        this.options = options;
+        this.random = new Random(options.getSeed());
+        this.clients = new SwarmClient[options.getClients()];
+        this.members = new int[options.getChannels()];
+        this.channelNames = new String[options.getChannels()];
+        for (int index = 0; index < channelNames.length; index++) {
+            channelNames[index] = "#load" + index;
+        }
+        char[] pad = new char[options.getPayloadBytes()];
+        Arrays.fill(pad, 'x');
+        this.padding = new String(pad);
+        ChannelChooser chooser = new ChannelChooser(options.getChannels(), options.getDistribution());
+        for (int index = 0; index < clients.length; index++) {
+            int[] joined = chooser.chooseDistinct(random, options.getChannelsPerClient());
+            for (int channel : joined) {
+                members[channel]++;
+            }
+            clients[index] = new SwarmClient(index, "l" + index, joined);
+        }
+    }
+
+    /**
+     * Entrance of the load generator.
+     * @param args Options of the form "--name=value", see {@link LoadOptions#usage()}.
+     */
+    public static void main(String[] args) {
+        if (Arrays.asList(args).contains(HELP)) {
+            System.out.println(LoadOptions.usage());
+            return;
+        }
+        LoadOptions options;
+        try {
+            options = LoadOptions.parse(args);
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(LoadOptions.usage());
+            System.exit(2);
+            return;
+        }
+        try {
+            new LoadGenerator(options).run();
+        }
+        catch (IOException ioe) {
+            System.err.println("Load generation failed: " + ioe.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Public method to perform the whole run and print the report.
+     * @throws IOException If the selector could not be opened.
+     */
+    public void run() throws IOException {
+        selector = Selector.open();
+        try {
+            long setupStart = System.nanoTime();
+            setUp();
+            long setupNanos = System.nanoTime() - setupStart;
+            long[] traffic = drive();
+            report(setupNanos, traffic[0], traffic[1]);
+        }
+        finally {
+            for (SwarmClient client : clients) {
+                client.close();
+            }
+            selector.close();
+        }
+    }
+
+    /* Connect, register and join with every client, a bounded number at a time. */
+    private void setUp() throws IOException {
+        long deadline = System.nanoTime() + options.getSetupTimeoutSeconds() * NANOS_PER_SECOND;
+        while (settled < clients.length) {
+            while (nextToConnect < clients.length && nextToConnect - settled < options.getConnectConcurrency()) {
+                connect(clients[nextToConnect++]);
+            }
+            if (System.nanoTime() > deadline) {
+                throw new IOException("Only " + (settled - failed) + " of " + clients.length
+                        + " clients were set up within " + options.getSetupTimeoutSeconds() + "s");
+            }
+            selector.select(SETUP_POLL_MILLIS);
+            processKeys();
+        }
+    }
+
+    /* Send at the target rate for warmup + duration, then wait for the last deliveries. */
+    private long[] drive() throws IOException {
+        long intervalNanos = Math.max(1, (long) (NANOS_PER_SECOND / options.getRate()));
+        long start = System.nanoTime();
+        measureFromNanos = start + options.getWarmupSeconds() * NANOS_PER_SECOND;
+        long end = measureFromNanos + options.getDurationSeconds() * NANOS_PER_SECOND;
+        long sent = 0;
+        long due = start;
+        while (due < end) {
+            long now = System.nanoTime();
+            while (due <= now && due < end) {
+                measuring = due >= measureFromNanos;
+                sendOne(due);
+                sent++;
+                due = start + sent * intervalNanos;
+            }
+            long waitMillis = (due - System.nanoTime()) / NANOS_PER_MILLI;
+            if (waitMillis > 0) {
+                selector.select(waitMillis);
+            }
+            else {
+                selector.selectNow();
+            }
+            processKeys();
+        }
+        long trafficEnd = System.nanoTime();
+        long drainDeadline = trafficEnd + options.getDrainSeconds() * NANOS_PER_SECOND;
+        while (measuredDeliveries < expectedDeliveries && System.nanoTime() < drainDeadline) {
+            selector.select(SETUP_POLL_MILLIS);
+            processKeys();
+        }
+        return new long[] {sent, trafficEnd - measureFromNanos};
+    }
+
+    private void connect(SwarmClient client) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        long startNanos = System.nanoTime();
+        SelectionKey key = channel.register(selector, SelectionKey.OP_CONNECT, client);
+        client.attach(channel, key, startNanos);
+        if (channel.connect(new InetSocketAddress(options.getHost(), options.getPort()))) {
+            onConnected(client);
+        }
+    }
+
+    private void onConnected(SwarmClient client) throws IOException {
+        client.send("NICK " + client.getNickname());
+        client.send("USER " + client.getNickname() + " 0 * :Load generator");
+    }
+
+    private void processKeys() {
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            SwarmClient client = (SwarmClient) key.attachment();
+            try {
+                if (key.isConnectable()) {
+                    client.getChannel().finishConnect();
+                    onConnected(client);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    client.flush();
+                }
+                if (key.isValid() && key.isReadable() && !client.read(this)) {
+                    lose(client);
+                }
+            }
+            catch (IOException ioe) {
+                lose(client);
+            }
+        }
+    }
+
+    private void lose(SwarmClient client) {
+        if (client.isClosed()) {
+            return;
+        }
+        client.close();
+        if (client.isReady()) {
+            disconnects++;
+        }
+        else {
+            failed++;
+            settled++;
+        }
+    }
+
+    /**
+     * Examine a line read by a client: deliveries are timed straight from the bytes,
+     * anything else only matters while setting up, or is a PING to be answered.
+     * @param client Client which read the line.
+     * @param bytes Array holding the line.
+     * @param start Index of the first byte of the line.
+     * @param end Index after the last byte of the line.
+     */
+    @Override
+    public void onLine(SwarmClient client, byte[] bytes, int start, int end) {
+        int verb = indexOf(bytes, start, end, SPACE);
+        if (verb >= 0 && regionMatches(bytes, verb, end, PRIVMSG)) {
+            onDelivery(bytes, verb + PRIVMSG.length, end);
+        }
+        else {
+            onLine(client, new String(bytes, start, end - start, StandardCharsets.UTF_8));
+        }
+    }
+
+    private void onLine(SwarmClient client, String line) {
+        try {
+            if (line.startsWith(PING)) {
+                client.send("PONG " + line.substring(PING.length()));
+            }
+            else if (!client.isRegistered() && line.contains(WELCOME_CODE)) {
+                client.setRegistered();
+                setupLatency.record(System.nanoTime() - client.getConnectStartNanos());
+                if (client.getChannels().length == 0) {
+                    ready(client);
+                }
+                for (int channel : client.getChannels()) {
+                    client.send("JOIN " + channelNames[channel]);
+                }
+            }
+            else if (!client.isReady() && line.startsWith(":" + client.getNickname() + " JOIN ")) {
+                if (client.joined()) {
+                    ready(client);
+                }
+            }
+            else if (!client.isReady() && line.contains(ERROR_CODE)) {
+                System.err.println(client.getNickname() + " was refused: " + line);
+                lose(client);
+            }
+        }
+        catch (IOException ioe) {
+            lose(client);
+        }
+    }
+
+    private void ready(SwarmClient client) {
+        client.setReady();
+        settled++;
+    }
+
+    /* The arguments are "<target> :<due time> <padding>". */
+    private void onDelivery(byte[] bytes, int arguments, int end) {
+        int text = indexOf(bytes, arguments, end, SPACE) + 1;
+        if (text == 0 || text == end || bytes[text] != COLON) {
+            return;
+        }
+        long sentAt = 0;
+        for (int index = text + 1; index < end && bytes[index] >= '0' && bytes[index] <= '9'; index++) {
+            sentAt = sentAt * DECIMAL + (bytes[index] - '0');
+        }
+        if (sentAt >= measureFromNanos) {
+            deliveryLatency.record(System.nanoTime() - sentAt);
+            measuredDeliveries++;
+        }
+    }
+
+    private static int indexOf(byte[] bytes, int start, int end, byte wanted) {
+        for (int index = start; index < end; index++) {
+            if (bytes[index] == wanted) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean regionMatches(byte[] bytes, int start, int end, byte[] expected) {
+        if (end - start < expected.length) {
+            return false;
+        }
+        for (int index = 0; index < expected.length; index++) {
+            if (bytes[start + index] != expected[index]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void sendOne(long due) {
+        SwarmClient sender = clients[random.nextInt(clients.length)];
+        if (!sender.isReady() || sender.isClosed()) {
+            return;
+        }
+        String target;
+        int receivers;
+        if (random.nextDouble() < options.getPrivateRatio()) {
+            target = clients[random.nextInt(clients.length)].getNickname();
+            receivers = 1;
+        }
+        else {
+            int[] joined = sender.getChannels();
+            int channel = joined[random.nextInt(joined.length)];
+            target = channelNames[channel];
+            receivers = members[channel];
+        }
+        try {
+            sender.send("PRIVMSG " + target + " :" + due + " " + padding);
+            if (measuring) {
+                measuredSent++;
+                expectedDeliveries += receivers;
+            }
+        }
+        catch (IOException ioe) {
+            lose(sender);
+        }
+    }
+
+    private void report(long setupNanos, long sent, long measuredNanos) {
+        double measuredSeconds = (double) measuredNanos / NANOS_PER_SECOND;
+        System.out.println("Clients:       " + (clients.length - failed) + " of " + clients.length + " set up in "
+                + TimeUnit.NANOSECONDS.toMillis(setupNanos) + "ms, " + disconnects + " disconnected later");
+        System.out.println("Registration:  " + setupLatency.summary());
+        System.out.println("Channels:      " + members.length + " (" + options.getDistribution() + "), "
+                + options.getChannelsPerClient() + " per client, largest has "
+                + Arrays.stream(members).max().orElse(0) + " members");
+        System.out.println("Sent:          " + sent + " lines in total, " + measuredSent + " measured, "
+                + String.format("%.1f", measuredSent / measuredSeconds) + " lines/s (target "
+                + options.getRate() + ")");
+        System.out.println("Delivered:     " + measuredDeliveries + " of " + expectedDeliveries + " expected, "
+                + String.format("%.1f", measuredDeliveries / measuredSeconds) + " deliveries/s");
+        System.out.println("Latency:       " + deliveryLatency.summary());
+    }
+}
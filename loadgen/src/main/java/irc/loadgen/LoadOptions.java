@@ -0,0 +1,277 @@
+package irc.loadgen;
+
+/**
+* Settings of a load generation run, parsed from "--name=value" command line arguments.
+*/
+public final class LoadOptions {
+
+    /** Channel distribution where every channel is equally likely to be joined. */
+    public static final String UNIFORM = "uniform";
+    /** Channel distribution where the n-th channel is joined with a probability proportional to 1/n. */
+    public static final String ZIPF = "zipf";
+
+    private static final String PREFIX = "--";
+    private static final int DEFAULT_PORT = 6667;
+    private static final int DEFAULT_CLIENTS = 100;
+    private static final int DEFAULT_CHANNELS = 10;
+    private static final double DEFAULT_RATE = 1000;
+    private static final int DEFAULT_DURATION = 10;
+    private static final int DEFAULT_WARMUP = 2;
+    private static final int DEFAULT_PAYLOAD = 32;
+    private static final int DEFAULT_CONNECT_CONCURRENCY = 100;
+    private static final int DEFAULT_SETUP_TIMEOUT = 60;
+    private static final int DEFAULT_DRAIN = 2;
+
+    private String host = "127.0.0.1";
+    private int port = DEFAULT_PORT;
+    private int clients = DEFAULT_CLIENTS;
+    private int channels = DEFAULT_CHANNELS;
+    private int channelsPerClient = 1;
+    private String distribution = UNIFORM;
+    private double rate = DEFAULT_RATE;
+    private double privateRatio = 0;
+    private int durationSeconds = DEFAULT_DURATION;
+    private int warmupSeconds = DEFAULT_WARMUP;
+    private int payloadBytes = DEFAULT_PAYLOAD;
+    private int connectConcurrency = DEFAULT_CONNECT_CONCURRENCY;
+    private int setupTimeoutSeconds = DEFAULT_SETUP_TIMEOUT;
+    private int drainSeconds = DEFAULT_DRAIN;
+    private long seed = System.nanoTime();
+
+    private LoadOptions() {
+    }
+
+    /**
+     * Parse the command line arguments, keeping the default of every option not given.
+     * @param args Arguments of the form "--name=value".
+     * @return The parsed options.
+     */
+    public static LoadOptions parse(String[] args) {
+        LoadOptions options = new LoadOptions();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith(PREFIX) || equals < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            options.set(arg.substring(PREFIX.length(), equals), arg.substring(equals + 1));
+        }
+        options.validate();
+        return options;
+    }
+
+    /**
+     * Public method to return the usage of the options.
+     * @return Text listing every option and its default.
+     */
+    public static String usage() {
+        return "Usage: java -jar loadgen/target/loadgen.jar [--help] [--name=value ...]\n"
+                + "  --host=127.0.0.1            server address\n"
+                + "  --port=6667                 server port\n"
+                + "  --clients=100               concurrent connections\n"
+                + "  --channels=10               channels the clients are spread over\n"
+                + "  --channels-per-client=1     channels joined by every client\n"
+                + "  --distribution=uniform      uniform or zipf choice of the joined channels\n"
+                + "  --rate=1000                 PRIVMSG lines sent per second by all clients together\n"
+                + "  --private-ratio=0           share of the lines sent to a user instead of a channel\n"
+                + "  --duration=10               seconds of measured traffic\n"
+                + "  --warmup=2                  seconds of traffic before measuring\n"
+                + "  --payload=32                bytes of padding in every message\n"
+                + "  --connect-concurrency=100   registrations in progress at once\n"
+                + "  --setup-timeout=60          seconds allowed to connect, register and join\n"
+                + "  --drain=2                   seconds to wait for deliveries after the last send\n"
+                + "  --seed=<random>             seed of the random choices";
+    }
+
+    private void set(String name, String value) {
+        switch (name) {
+            case "host":
+                host = value;
+                break;
+            case "port":
+                port = Integer.parseInt(value);
+                break;
+            case "clients":
+                clients = Integer.parseInt(value);
+                break;
+            case "channels":
+                channels = Integer.parseInt(value);
+                break;
+            case "channels-per-client":
+                channelsPerClient = Integer.parseInt(value);
+                break;
+            case "distribution":
+                distribution = value;
+                break;
+            case "rate":
+                rate = Double.parseDouble(value);
+                break;
+            case "private-ratio":
+                privateRatio = Double.parseDouble(value);
+                break;
+            case "duration":
+                durationSeconds = Integer.parseInt(value);
+                break;
+            case "warmup":
+                warmupSeconds = Integer.parseInt(value);
+                break;
+            case "payload":
+                payloadBytes = Integer.parseInt(value);
+                break;
+            case "connect-concurrency":
+                connectConcurrency = Integer.parseInt(value);
+                break;
+            case "setup-timeout":
+                setupTimeoutSeconds = Integer.parseInt(value);
+                break;
+            case "drain":
+                drainSeconds = Integer.parseInt(value);
+                break;
+            case "seed":
+                seed = Long.parseLong(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option --" + name);
+        }
+    }
+
+    private void validate() {
+        if (clients < 1 || channels < 1 || rate <= 0 || connectConcurrency < 1) {
+            throw new IllegalArgumentException("clients, channels, rate and connect-concurrency must be positive");
+        }
+        if (channelsPerClient < 0 || channelsPerClient > channels) {
+            throw new IllegalArgumentException("channels-per-client must be between 0 and channels");
+        }
+        if (!distribution.equals(UNIFORM) && !distribution.equals(ZIPF)) {
+            throw new IllegalArgumentException("distribution must be " + UNIFORM + " or " + ZIPF);
+        }
+        if (privateRatio < 0 || privateRatio > 1) {
+            throw new IllegalArgumentException("private-ratio must be between 0 and 1");
+        }
+        if (channelsPerClient == 0 && privateRatio < 1) {
+            throw new IllegalArgumentException("clients without channels can only send private messages");
+        }
+        if (durationSeconds < 1 || warmupSeconds < 0 || payloadBytes < 0 || drainSeconds < 0) {
+            throw new IllegalArgumentException("duration must be positive, warmup, payload and drain not negative");
+        }
+    }
+
+    /**
+     * Public getter to return the address of the server.
+     * @return Host name or address.
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * Public getter to return the port of the server.
+     * @return Port number.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Public getter to return the number of concurrent connections.
+     * @return Number of clients.
+     */
+    public int getClients() {
+        return clients;
+    }
+
+    /**
+     * Public getter to return the number of channels the clients are spread over.
+     * @return Number of channels.
+     */
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * Public getter to return how many channels every client joins.
+     * @return Channels per client.
+     */
+    public int getChannelsPerClient() {
+        return channelsPerClient;
+    }
+
+    /**
+     * Public getter to return how the joined channels are chosen.
+     * @return {@link #UNIFORM} or {@link #ZIPF}.
+     */
+    public String getDistribution() {
+        return distribution;
+    }
+
+    /**
+     * Public getter to return the number of lines sent per second by all clients together.
+     * @return Target rate.
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * Public getter to return the share of lines sent to a user instead of a channel.
+     * @return Ratio between 0 and 1.
+     */
+    public double getPrivateRatio() {
+        return privateRatio;
+    }
+
+    /**
+     * Public getter to return how long traffic is measured.
+     * @return Duration in seconds.
+     */
+    public int getDurationSeconds() {
+        return durationSeconds;
+    }
+
+    /**
+     * Public getter to return how long traffic runs before being measured.
+     * @return Warmup in seconds.
+     */
+    public int getWarmupSeconds() {
+        return warmupSeconds;
+    }
+
+    /**
+     * Public getter to return the padding appended to every message.
+     * @return Number of bytes.
+     */
+    public int getPayloadBytes() {
+        return payloadBytes;
+    }
+
+    /**
+     * Public getter to return how many registrations may be in progress at once.
+     * @return Number of connections.
+     */
+    public int getConnectConcurrency() {
+        return connectConcurrency;
+    }
+
+    /**
+     * Public getter to return how long connecting, registering and joining may take.
+     * @return Timeout in seconds.
+     */
+    public int getSetupTimeoutSeconds() {
+        return setupTimeoutSeconds;
+    }
+
+    /**
+     * Public getter to return how long to wait for deliveries after the last send.
+     * @return Time in seconds.
+     */
+    public int getDrainSeconds() {
+        return drainSeconds;
+    }
+
+    /**
+     * Public getter to return the seed of the random choices.
+     * @return The seed.
+     */
+    public long getSeed() {
+        return seed;
+    }
+}
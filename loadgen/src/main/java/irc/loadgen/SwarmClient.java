@@ -0,0 +1,245 @@
+package irc.loadgen;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+* One simulated client of the swarm: a non-blocking connection with its own
+* read and write buffers, served by the single event loop of the LoadGenerator.
+*/
+public final class SwarmClient {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final byte LF = '\n';
+    private static final byte CR = '\r';
+
+    private final int index;
+    private final String nickname;
+    private final int[] channels;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer in;
+    private ByteBuffer out;
+    private long connectStartNanos;
+    private int pendingJoins;
+    private boolean registered;
+    private boolean ready;
+    private boolean closed;
+
+    /**
+     * Create a client which has not connected yet.
+     * @param index Index of the client in the swarm.
+     * @param nickname Nickname the client registers with.
+     * @param channels Indexes of the channels the client joins.
+     */
+    public SwarmClient(int index, String nickname, int[] channels) {
+        this.index = index;
+        this.nickname = nickname;
+        this.channels = channels;
+        this.in = ByteBuffer.allocate(BUFFER_SIZE);
+        this.out = ByteBuffer.allocate(BUFFER_SIZE);
+        this.pendingJoins = channels.length;
+    }
+
+    /**
+     * Public method to attach the connection once it was opened.
+     * @param channel The connecting channel, in non-blocking mode.
+     * @param key Key the channel was registered with.
+     * @param startNanos Time the connection attempt started.
+     */
+    public void attach(SocketChannel channel, SelectionKey key, long startNanos) {
+        this.channel = channel;
+        this.key = key;
+        this.connectStartNanos = startNanos;
+    }
+
+    /**
+     * Public method to queue a line and write as much as the socket takes.
+     * @param line Line without line terminator.
+     * @throws IOException If writing failed.
+     */
+    public void send(String line) throws IOException {
+        byte[] bytes = (line + "\r\n").getBytes(StandardCharsets.UTF_8);
+        if (out.remaining() < bytes.length) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + bytes.length));
+            out.flip();
+            larger.put(out);
+            out = larger;
+        }
+        out.put(bytes);
+        flush();
+    }
+
+    /**
+     * Public method to write queued bytes, asking for OP_WRITE if the socket is full.
+     * @throws IOException If writing failed.
+     */
+    public void flush() throws IOException {
+        if (closed || !channel.isConnected()) {
+            return;
+        }
+        out.flip();
+        channel.write(out);
+        boolean pending = out.hasRemaining();
+        out.compact();
+        int ops = SelectionKey.OP_READ;
+        if (pending) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    /**
+     * Public method to read what arrived and hand every completed line to the listener.
+     * @param listener Receiver of the lines, without line terminators.
+     * @return False if the server closed the connection.
+     * @throws IOException If reading failed.
+     */
+    public boolean read(LineListener listener) throws IOException {
+        if (!in.hasRemaining()) {
+            ByteBuffer larger = ByteBuffer.allocate(in.capacity() * 2);
+            in.flip();
+            larger.put(in);
+            in = larger;
+        }
+        if (channel.read(in) < 0) {
+            return false;
+        }
+        int lineStart = 0;
+        for (int position = 0; position < in.position(); position++) {
+            if (in.get(position) == LF) {
+                int lineEnd = position;
+                if (lineEnd > lineStart && in.get(lineEnd - 1) == CR) {
+                    lineEnd--;
+                }
+                listener.onLine(this, in.array(), lineStart, lineEnd);
+                lineStart = position + 1;
+            }
+        }
+        in.limit(in.position());
+        in.position(lineStart);
+        in.compact();
+        return true;
+    }
+
+    /**
+     * Receiver of the lines read by a SwarmClient, given as a range of its read buffer
+     * so that the frequent lines can be examined without decoding them.
+     */
+    public interface LineListener {
+
+        /**
+         * Called for every completed line.
+         * @param client Client which read the line.
+         * @param bytes Array holding the line, only valid during the call.
+         * @param start Index of the first byte of the line.
+         * @param end Index after the last byte of the line, without line terminator.
+         */
+        void onLine(SwarmClient client, byte[] bytes, int start, int end);
+    }
+
+    /**
+     * Public method to close the connection.
+     */
+    public void close() {
+        closed = true;
+        if (channel != null) {
+            try {
+                channel.close();
+            }
+            catch (IOException ioe) {
+                // Nothing left to do with a connection being closed.
+            }
+        }
+    }
+
+    /**
+     * Public method to count one of the JOINs echoed back by the server.
+     * @return Whether all channels have now been joined.
+     */
+    public boolean joined() {
+        pendingJoins--;
+        return pendingJoins == 0;
+    }
+
+    /**
+     * Public getter to return the index of this client in the swarm.
+     * @return The index.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Public getter to return the nickname of this client.
+     * @return The nickname.
+     */
+    public String getNickname() {
+        return nickname;
+    }
+
+    /**
+     * Public getter to return the channels this client joins.
+     * @return Indexes of the channels.
+     */
+    public int[] getChannels() {
+        return channels;
+    }
+
+    /**
+     * Public getter to return the connection of this client.
+     * @return The channel, null before connecting.
+     */
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Public getter to return when the connection attempt started.
+     * @return Time in nanoseconds.
+     */
+    public long getConnectStartNanos() {
+        return connectStartNanos;
+    }
+
+    /**
+     * Public getter to return whether the server welcomed this client.
+     * @return Whether the client is registered.
+     */
+    public boolean isRegistered() {
+        return registered;
+    }
+
+    /**
+     * Public method to mark this client as registered.
+     */
+    public void setRegistered() {
+        this.registered = true;
+    }
+
+    /**
+     * Public getter to return whether this client registered and joined all its channels.
+     * @return Whether the client is ready to send.
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Public method to mark this client as ready to send.
+     */
+    public void setReady() {
+        this.ready = true;
+    }
+
+    /**
+     * Public getter to return whether the connection was closed.
+     * @return Whether the client is closed.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+}
@@ -0,0 +1,179 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+* Pool of the I/O buffers of an IrcServer, which connections borrow only while they have
+* data in flight and return once it is written, so an idle connection holds no buffer.
+* Buffers come in size classes, powers of two from {@link Configuration#BUFFER_MIN_CLASS_BYTES}
+* to {@link Configuration#BUFFER_MAX_CLASS_BYTES}; a larger buffer is allocated on demand and
+* not pooled. Returned buffers are kept in a lock-free queue per class, up to a total size,
+* and a thread which borrows most of them, such as a Reactor, may keep a few of each class
+* in a cache of its own, which it reaches without touching the shared queues.
+* The pool hands out direct buffers for channels, which the JDK would otherwise copy into
+* direct buffers of its own, or heap buffers for the streams of the thread-per-connection modes.
+*/
+public class BufferPool {
+
+    private boolean direct;
+    private int classCount;
+    private List<Queue<ByteBuffer>> shared;
+    private long maxIdleBytes;
+    /* Null for the threads without a cache of their own. */
+    private ThreadLocal<ThreadCache> caches;
+    private LongAdder acquired;
+    private LongAdder hits;
+    /* Bytes of all buffers allocated by the pool and not dropped, borrowed or idle. */
+    private AtomicLong allocatedBytes;
+    private AtomicLong idleBytes;
+
+    /**
+     * Create an empty pool.
+     * @param direct Whether the buffers are allocated outside the heap.
+     * @param maxIdleBytes Total size of the returned buffers kept, the others are left to the garbage collector.
+     */
+    public BufferPool(boolean direct, long maxIdleBytes) {
+        this.direct = direct;
+        this.classCount = Integer.numberOfTrailingZeros(Configuration.BUFFER_MAX_CLASS_BYTES)
+                - Integer.numberOfTrailingZeros(Configuration.BUFFER_MIN_CLASS_BYTES) + 1;
+        this.shared = new ArrayList<>();
+        for (int sizeClass = 0; sizeClass < classCount; sizeClass++) {
+            shared.add(new ConcurrentLinkedQueue<>());
+        }
+        this.maxIdleBytes = maxIdleBytes;
+        this.caches = new ThreadLocal<>();
+        this.acquired = new LongAdder();
+        this.hits = new LongAdder();
+        this.allocatedBytes = new AtomicLong();
+        this.idleBytes = new AtomicLong();
+    }
+
+    /**
+     * Public method to give the calling thread a cache of its own, for a thread
+     * which lives as long as the server and borrows buffers all the time.
+     */
+    public void enableThreadCache() {
+        caches.set(new ThreadCache(classCount));
+    }
+
+    /**
+     * Public method to hand the buffers cached by the calling thread back to the shared queues.
+     */
+    public void disableThreadCache() {
+        ThreadCache cache = caches.get();
+        caches.remove();
+        if (cache != null) {
+            for (int sizeClass = 0; sizeClass < classCount; sizeClass++) {
+                while (cache.counts[sizeClass] > 0) {
+                    ByteBuffer buffer = cache.buffers[sizeClass][--cache.counts[sizeClass]];
+                    idleBytes.addAndGet(-buffer.capacity());
+                    release(buffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Public method to borrow a buffer, which has to be returned by {@link #release} once it is no longer used.
+     * @param capacity Number of bytes needed.
+     * @return A cleared buffer whose limit is the capacity asked for.
+     */
+    public ByteBuffer acquire(int capacity) {
+        acquired.increment();
+        int sizeClass = classOf(capacity);
+        if (sizeClass < 0) {
+            return allocate(capacity);
+        }
+        ByteBuffer buffer = null;
+        ThreadCache cache = caches.get();
+        if (cache != null && cache.counts[sizeClass] > 0) {
+            buffer = cache.buffers[sizeClass][--cache.counts[sizeClass]];
+            cache.buffers[sizeClass][cache.counts[sizeClass]] = null;
+        }
+        else {
+            buffer = shared.get(sizeClass).poll();
+        }
+        if (buffer == null) {
+            return allocate(Configuration.BUFFER_MIN_CLASS_BYTES << sizeClass).limit(capacity);
+        }
+        hits.increment();
+        idleBytes.addAndGet(-buffer.capacity());
+        return buffer.limit(capacity);
+    }
+
+    /**
+     * Public method to return a borrowed buffer, which must not be used afterwards.
+     * @param buffer A buffer returned by {@link #acquire}.
+     */
+    public void release(ByteBuffer buffer) {
+        buffer.clear();
+        int sizeClass = classOf(buffer.capacity());
+        if (sizeClass < 0 || Configuration.BUFFER_MIN_CLASS_BYTES << sizeClass != buffer.capacity()) {
+            allocatedBytes.addAndGet(-buffer.capacity());
+            return;
+        }
+        ThreadCache cache = caches.get();
+        if (cache != null && cache.counts[sizeClass] < Configuration.BUFFER_THREAD_CACHE_SIZE) {
+            cache.buffers[sizeClass][cache.counts[sizeClass]++] = buffer;
+            idleBytes.addAndGet(buffer.capacity());
+        }
+        else if (idleBytes.addAndGet(buffer.capacity()) <= maxIdleBytes) {
+            shared.get(sizeClass).add(buffer);
+        }
+        else {
+            idleBytes.addAndGet(-buffer.capacity());
+            allocatedBytes.addAndGet(-buffer.capacity());
+        }
+    }
+
+    /**
+     * Public method to add the counters of this pool to a snapshot of the metrics,
+     * such as the share of the buffers borrowed without allocating one.
+     * @param snapshot Metric name -> value, in the order they are reported.
+     */
+    public void addTo(Map<String, Long> snapshot) {
+        long acquiredCount = acquired.sum();
+        long hitCount = hits.sum();
+        long idle = idleBytes.get();
+        long allocated = allocatedBytes.get();
+        snapshot.put("buffers.acquired", acquiredCount);
+        snapshot.put("buffers.hits", hitCount);
+        snapshot.put("buffers.hit.percent", acquiredCount == 0 ? 0 : hitCount * Configuration.PERCENT / acquiredCount);
+        snapshot.put("buffers.bytes", allocated);
+        snapshot.put("buffers.bytes.idle", idle);
+        snapshot.put("buffers.bytes.borrowed", allocated - idle);
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        allocatedBytes.addAndGet(capacity);
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /* The smallest class holding the capacity, or -1 if it is larger than all classes. */
+    private int classOf(int capacity) {
+        if (capacity > Configuration.BUFFER_MAX_CLASS_BYTES) {
+            return -1;
+        }
+        int rounded = Math.max(Configuration.BUFFER_MIN_CLASS_BYTES, Integer.highestOneBit(capacity - 1) << 1);
+        return Integer.numberOfTrailingZeros(rounded) - Integer.numberOfTrailingZeros(Configuration.BUFFER_MIN_CLASS_BYTES);
+    }
+
+    /**
+    * The buffers kept by one thread, a small stack per size class.
+    */
+    private static final class ThreadCache {
+
+        private final ByteBuffer[][] buffers;
+        private final int[] counts;
+
+        ThreadCache(int classCount) {
+            this.buffers = new ByteBuffer[classCount][Configuration.BUFFER_THREAD_CACHE_SIZE];
+            this.counts = new int[classCount];
+        }
+    }
+}
@@ -1,13 +1,34 @@
-import java.util.List;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**Represents a channel opened on the IrcServer.*/
 public class Channel {
 
+    private static final RemoteUser[] NO_REMOTE_USERS = new RemoteUser[0];
+
     private IrcServer ircS;
     private String channelName;
-    private List<ConnectionHandler> joinedClients;
+    /* User ID -> joined client of this server: JOIN and PART cost O(1) however big the
+       channel is, and a broadcast iterates over the clients without holding any lock. */
+    private IntHashMap<ConnectionHandler> joinedClients;
+    /* Incremented by every JOIN or PART of a client of this server, while holding membershipLock. */
+    private volatile long membershipVersion;
+    /* Joined users of other servers of the network. Copy-on-write: every JOIN or PART
+       publishes a new array, few of them are expected since each server has its own clients. */
+    private volatile RemoteUser[] remoteMembers;
+    /* Serialises the writers of joinedClients, remoteMembers and closed,
+       a ReentrantLock does not pin virtual threads. */
+    private ReentrantLock membershipLock;
+    private boolean closed;
+    /* Last rendering of the nicknames, reused while it matches the current members and nicknames. */
+    private volatile NamesRendering namesRendering;
+    /* Limits the messages sent to this channel by all its members together. */
+    private TokenBucket messageBucket;
+    /* Broadcasts handed over to the fan-out threads, in the order they were sent. */
+    private FanOutLane fanOutLane;
 
      /**
      * Open a channel on the IrcServer with specified channel name.
@@ -15,7 +36,12 @@ public class Channel {
      */
     public Channel(String channelName) {
         this.channelName = channelName;
-        joinedClients = new ArrayList<>();
+        joinedClients = new IntHashMap<>();
+        membershipVersion = 0;
+        remoteMembers = NO_REMOTE_USERS;
+        membershipLock = new ReentrantLock();
+        closed = false;
+        fanOutLane = new FanOutLane();
     }
 
     /**
@@ -28,23 +54,67 @@ public class Channel {
 
     /**
      * Public getter to return the number of joined clients of this channel.
-     * @return The number of currently joined clients.
+     * @return The number of currently joined clients, including the users of other servers.
      */
     public int getCurrentClientsNum() {
-        return joinedClients.size();
+        return joinedClients.size() + remoteMembers.length;
+    }
+
+    /**
+     * Public getter to return the joined users of other servers of the network.
+     * @return A snapshot of the remote members, not to be modified.
+     */
+    public RemoteUser[] getRemoteMembers() {
+        return remoteMembers;
     }
 
     /**
      * Public getter to return the nickname of all joined clients of this channel.
+     * The clients of this server come first, in the order of their user IDs, then the users of other servers.
+     * The rendering is cached until a client joins, leaves or any nickname changes,
+     * so repeated NAMES requests for a big channel do not rebuild it.
      * @return String contains space-separated list of the nicknames of all joined clients.
      */
     public String getCurrentClientsNicks() {
-        String allNicks = "";
-        for (ConnectionHandler poll: joinedClients) {
-            allNicks += poll.getNickname() + " ";
+        // Read before the members and the nicknames, a change completing meanwhile then invalidates this rendering.
+        long version = membershipVersion;
+        RemoteUser[] remote = remoteMembers;
+        long nicknameVersion = ircS.getNicknameVersion();
+        NamesRendering cached = namesRendering;
+        if (cached != null && cached.membershipVersion == version && cached.remoteMembers == remote
+                && cached.nicknameVersion == nicknameVersion) {
+            return cached.text;
+        }
+        int[] userIds = joinedClients.keys();
+        Arrays.sort(userIds);
+        StringBuilder allNicks = new StringBuilder();
+        for (int userId: userIds) {
+            ConnectionHandler poll = joinedClients.get(userId);
+            // Null if the client left since the IDs were read.
+            if (poll != null) {
+                if (allNicks.length() > 0) {
+                    allNicks.append(' ');
+                }
+                allNicks.append(poll.getNickname());
+            }
         }
-        allNicks = allNicks.substring(0, allNicks.length() - 1);
-        return allNicks;
+        for (RemoteUser poll: remote) {
+            if (allNicks.length() > 0) {
+                allNicks.append(' ');
+            }
+            allNicks.append(poll.getNickname());
+        }
+        String text = allNicks.toString();
+        namesRendering = new NamesRendering(version, remote, nicknameVersion, text);
+        return text;
+    }
+
+    /**
+     * Public method to add all currently joined clients of this channel to a collection.
+     * @param clients Collection receiving the clients.
+     */
+    public void addJoinedClientsTo(Collection<ConnectionHandler> clients) {
+        joinedClients.forEachValue(clients::add);
     }
 
     /**
@@ -53,16 +123,125 @@ public class Channel {
      */
     public void setIrcServer(IrcServer ircS) {
         this.ircS = ircS;
+        this.messageBucket = ircS.getFloodControl().newChannelBucket();
+    }
+
+    /**
+     * Public method to take a token for a message sent to this channel. While the fan-out threads
+     * fall behind with the lines of this channel, no token is taken and the message has to wait.
+     * @param nowNanos The current time of System.nanoTime().
+     * @return 0 if the message may be sent now, otherwise the nanoseconds to wait for.
+     */
+    public long acquireMessage(long nowNanos) {
+        long delay = backlogDelay();
+        return delay > 0 ? delay : messageBucket.tryAcquire(nowNanos);
+    }
+
+    /**
+     * Public method to return how long a line to this channel, or joining or leaving it, has to wait
+     * while the fan-out threads fall behind with the lines of this channel.
+     * @return 0 if the fan-out threads are not behind, otherwise the nanoseconds to wait for.
+     */
+    public long backlogDelay() {
+        return fanOutLane.isBacklogged() ? TimeUnit.MILLISECONDS.toNanos(Configuration.FANOUT_RETRY_MILLIS) : 0;
     }
 
     /**
      * Public method to add a client to this channel.
-     * @param client A connection from a client.
+     * Joining a channel the client is already joined to changes nothing, nor does
+     * joining once the client quit, such as when it was disconnected by another thread.
+     * @param client A registered client of this server.
+     * @return False if the channel was already closed and the client was not added.
      */
-    public void addJoinedClient(ConnectionHandler client) {
-        joinedClients.add(client);
-        this.broadcastMsg(":" + client.getNickname()
+    public boolean addJoinedClient(ConnectionHandler client) {
+        membershipLock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            int userId = client.getUserId();
+            if (joinedClients.containsKey(userId) || !client.addJoinedChannel(this)) {
+                return true;
+            }
+            joinedClients.putIfAbsent(userId, client);
+            membershipVersion++;
+        }
+        finally {
+            membershipLock.unlock();
+        }
+        int receivers = this.broadcastMsg(":" + client.getNickname()
+                + " " + Configuration.JOIN + " " + channelName, client);
+        ircS.getMetrics().recordBroadcast(Configuration.JOIN, receivers);
+        return true;
+    }
+
+    /**
+     * Public method to add a user of another server to this channel and to send JOIN to the clients of this server.
+     * @param user A remote user.
+     * @return False if the channel was already closed and the user was not added.
+     */
+    public boolean addRemoteMember(RemoteUser user) {
+        membershipLock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            RemoteUser[] current = remoteMembers;
+            for (RemoteUser poll: current) {
+                if (poll == user) {
+                    return true;
+                }
+            }
+            RemoteUser[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = user;
+            remoteMembers = updated;
+            user.addJoinedChannel(this);
+        }
+        finally {
+            membershipLock.unlock();
+        }
+        int receivers = this.broadcastMsg(":" + user.getNickname()
                 + " " + Configuration.JOIN + " " + channelName);
+        ircS.getMetrics().recordBroadcast(Configuration.JOIN, receivers);
+        return true;
+    }
+
+    /**
+     * Public method to remove a user of another server from this channel and to send PART to the clients of this server.
+     * @param user A remote user.
+     */
+    public void partRemoteMember(RemoteUser user) {
+        if (removeRemoteMember(user)) {
+            int receivers = this.broadcastMsg(":" + user.getNickname()
+                    + " " + Configuration.PART + " " + channelName);
+            ircS.getMetrics().recordBroadcast(Configuration.PART, receivers);
+        }
+    }
+
+    /**
+     * Public method to remove a user of another server from this channel without sending PART.
+     * @param user A remote user.
+     * @return Whether the user was a member of this channel.
+     */
+    public boolean removeRemoteMember(RemoteUser user) {
+        membershipLock.lock();
+        try {
+            RemoteUser[] current = remoteMembers;
+            for (int index = 0; index < current.length; index++) {
+                if (current[index] == user) {
+                    RemoteUser[] updated = new RemoteUser[current.length - 1];
+                    System.arraycopy(current, 0, updated, 0, index);
+                    System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+                    remoteMembers = updated;
+                    user.removeJoinedChannel(this);
+                    return true;
+                }
+            }
+            return false;
+        }
+        finally {
+            membershipLock.unlock();
+        }
     }
 
     /**
@@ -70,9 +249,10 @@ public class Channel {
      * @param client A connection from a client.
      */
     public void partJoinedClient(ConnectionHandler client) {
-        this.broadcastMsg(":" + client.getNickname()
-                + " " + Configuration.PART + " " + channelName);
-        joinedClients.remove(client);
+        int receivers = this.broadcastMsg(":" + client.getNickname()
+                + " " + Configuration.PART + " " + channelName, client);
+        ircS.getMetrics().recordBroadcast(Configuration.PART, receivers);
+        forcedQuitJoinedClient(client);
     }
 
     /**
@@ -80,18 +260,150 @@ public class Channel {
      * @param client A connection from a client.
      */
     public void forcedQuitJoinedClient(ConnectionHandler client) {
-        joinedClients.remove(client);
+        membershipLock.lock();
+        try {
+            if (joinedClients.remove(client.getUserId())) {
+                membershipVersion++;
+                // May free the ID, only once it is out of the map.
+                client.removeJoinedChannel(this);
+            }
+        }
+        finally {
+            membershipLock.unlock();
+        }
     }
 
     /**
-     * Public method to print some text to all joined users of this channel.
+     * Public method to close this channel if no client of any server is joined,
+     * after which no client can be added to it anymore.
+     * @return Whether the channel is empty and closed.
+     */
+    public boolean closeIfEmpty() {
+        membershipLock.lock();
+        try {
+            if (joinedClients.size() == 0 && remoteMembers.length == 0) {
+                closed = true;
+            }
+            return closed;
+        }
+        finally {
+            membershipLock.unlock();
+        }
+    }
+
+    /**
+     * Public method to print some text to all joined clients of this server in this channel.
+     * The text is encoded only once and the same Frame is handed to every member.
+     * @param text String to be sent.
+     * @return The number of members the text was sent to.
+     */
+    public int broadcastMsg(String text) {
+        return broadcastFrame(Frame.of(text), null);
+    }
+
+    /**
+     * Public method to print some text sent by a client of this server to all joined clients of this server
+     * in this channel, see {@link #broadcastFrame(Frame, ConnectionHandler)}.
      * @param text String to be sent.
+     * @param sender The client the text comes from.
+     * @return The number of members the text was sent to.
      */
-    public void broadcastMsg(String text) {
-        ConnectionHandler poll;
-        for (int counter = 0; counter < joinedClients.size(); counter++) {
-            poll = joinedClients.get(counter);
-            poll.printToWriter(text);
+    public int broadcastMsg(String text, ConnectionHandler sender) {
+        return broadcastFrame(Frame.of(text), sender);
+    }
+
+    /**
+     * Public method to send an already encoded line to all joined users of this channel.
+     * @param frame Encoded line to be sent.
+     * @return The number of members the line was sent to.
+     */
+    public int broadcastFrame(Frame frame) {
+        return broadcastFrame(frame, null);
+    }
+
+    /**
+     * Public method to send an already encoded line to all joined users of this channel.
+     * Once the channel has {@link IrcServer#getFanOutThreshold()} members of this server, the line is
+     * handed over to the fan-out threads with a snapshot of the members and this method returns at once,
+     * only the sender is given it at once, before any reply to its command.
+     * The lines sent after it are handed over as well until it was delivered, so none overtakes it,
+     * and the sender's next lines to other clients wait behind it, see {@link ConnectionHandler#sendToChannel}.
+     * @param frame Encoded line to be sent.
+     * @param sender The client the line comes from, null for a server or a user of another server.
+     * @return The number of members the line was sent to.
+     */
+    public int broadcastFrame(Frame frame, ConnectionHandler sender) {
+        FanOutPool fanOut = ircS == null ? null : ircS.getFanOutPool();
+        if (fanOut == null || !fanOut.isEnabled()) {
+            return joinedClients.forEachValue(poll -> poll.sendFrame(frame));
+        }
+        int receivers = joinedClients.size();
+        if (sender == null) {
+            deliverToMembers(frame, null);
+            return receivers;
+        }
+        if (joinedClients.get(sender.getUserId()) == sender) {
+            sender.sendFrame(frame);
+        }
+        sender.sendToChannel(frame, this);
+        return receivers;
+    }
+
+    /**
+     * Public method to deliver a line to the members other than the client it comes from, by the calling
+     * thread while this channel is small and nothing waits in its lane, otherwise by handing it over to
+     * the lane, which tells the client once the line was delivered. Only used while the FanOutPool is enabled.
+     * @param frame Encoded line to be sent.
+     * @param sender The client of this server the line comes from, or null.
+     */
+    public void deliverToMembers(Frame frame, ConnectionHandler sender) {
+        if (fanOutLane.isIdle() && joinedClients.size() < ircS.getFanOutThreshold()) {
+            joinedClients.forEachValue(poll -> {
+                if (poll != sender) {
+                    poll.sendFrame(frame);
+                }
+            });
+            return;
+        }
+        if (sender != null) {
+            sender.broadcastSubmitted();
+        }
+        fanOutLane.submit(ircS.getFanOutPool(), frame, joinedClients.snapshotValues(), sender, sender);
+    }
+
+    /**
+     * Public method to run a task once the lines handed over to the fan-out threads so far were delivered,
+     * such as sending a QUIT line which must not overtake them. Never waits, see {@link FanOutLane#runAfterSubmitted}.
+     * @param task The task to be run.
+     */
+    public void runAfterBroadcasts(Runnable task) {
+        fanOutLane.runAfterSubmitted(ircS.getFanOutPool(), task);
+    }
+
+    /**
+     * Public method to wait until the lines sent to this channel so far were delivered by the fan-out
+     * threads, such as by a benchmark. Not to be called by a Reactor or by those threads.
+     */
+    public void awaitBroadcasts() {
+        fanOutLane.awaitSubmitted();
+    }
+
+    /**
+    * Nicknames rendered for a snapshot of the members. Every JOIN or PART increments the
+    * membership version or publishes a new array of remote members, which tells whether the members changed.
+    */
+    private static final class NamesRendering {
+
+        private final long membershipVersion;
+        private final RemoteUser[] remoteMembers;
+        private final long nicknameVersion;
+        private final String text;
+
+        NamesRendering(long membershipVersion, RemoteUser[] remoteMembers, long nicknameVersion, String text) {
+            this.membershipVersion = membershipVersion;
+            this.remoteMembers = remoteMembers;
+            this.nicknameVersion = nicknameVersion;
+            this.text = text;
         }
     }
 }
@@ -0,0 +1,234 @@
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+* The messages sent to one channel, kept even while nobody is joined. The most recent lines
+* are held in memory for fast replay, and if a history directory is set every line is
+* also appended to the channel's HistoryLog by the writer thread of the HistoryStore,
+* so delivering a message never waits for the disk. Older lines are read from the log.
+* Lines are numbered in the order they were sent; the log continues the numbering it found
+* on disk, which it only learns once opened, so lines in memory are numbered from 0 and
+* found in the log at the next number it had when opened plus their number.
+*/
+public class ChannelHistory {
+
+    private static final Charset CHARSET = Charset.defaultCharset();
+
+    private HistoryStore store;
+    /* Directory of the log, null if lines are only kept in memory. */
+    private Path logDirectory;
+    /* The most recent lines, oldest first; guarded by lock together with nextNumber. */
+    private ArrayDeque<HistoryEntry> recent;
+    private long nextNumber;
+    private long lastTimestamp;
+    private ReentrantLock lock;
+    /* Opened on first use by the writer or a reader, guarded by logLock. */
+    private volatile HistoryLog log;
+    private long logBase;
+    private boolean logFailed;
+    private ReentrantLock logLock;
+
+    /**
+     * Create the history of a channel.
+     * @param store The HistoryStore whose writer appends to the log.
+     * @param logDirectory Directory of the log of the channel, null to keep the lines in memory only.
+     */
+    public ChannelHistory(HistoryStore store, Path logDirectory) {
+        this.store = store;
+        this.logDirectory = logDirectory;
+        this.recent = new ArrayDeque<>();
+        this.nextNumber = 0;
+        this.lastTimestamp = 0;
+        this.lock = new ReentrantLock();
+        this.logLock = new ReentrantLock();
+    }
+
+    /**
+     * Public method to add a line sent to the channel, only touching memory.
+     * @param line The line as delivered to the members.
+     */
+    public void append(String line) {
+        lock.lock();
+        try {
+            // Timestamps never go backwards, so the log can be searched by time.
+            lastTimestamp = Math.max(lastTimestamp, System.currentTimeMillis());
+            HistoryEntry entry = new HistoryEntry(nextNumber++, lastTimestamp, line);
+            // The capacity may have been lowered by a reload.
+            int capacity = store.getCapacity();
+            while (recent.size() >= capacity) {
+                recent.removeFirst();
+            }
+            recent.addLast(entry);
+            if (logDirectory != null) {
+                // Queued under the lock, so the writer appends the lines in order.
+                store.enqueue(() -> persist(entry));
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Public method to return the most recent lines.
+     * @param limit Maximum number of lines.
+     * @return Up to limit lines, oldest first.
+     */
+    public List<HistoryEntry> latest(int limit) {
+        List<HistoryEntry> lines = new ArrayList<>();
+        long firstInMemory;
+        lock.lock();
+        try {
+            firstInMemory = nextNumber - recent.size();
+            Iterator<HistoryEntry> newestFirst = recent.descendingIterator();
+            while (lines.size() < limit && newestFirst.hasNext()) {
+                lines.add(newestFirst.next());
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        Collections.reverse(lines);
+        int missing = limit - lines.size();
+        HistoryLog opened = missing > 0 ? openLog() : null;
+        if (opened != null) {
+            long end = logBase + firstInMemory;
+            List<HistoryEntry> older = opened.read(Math.max(opened.getFirstNumber(), end - missing), end);
+            older.addAll(lines);
+            return older;
+        }
+        return lines;
+    }
+
+    /**
+     * Public method to return the lines sent after a point in time.
+     * @param timestamp Time in milliseconds since the epoch, lines sent later are returned.
+     * @param limit Maximum number of lines.
+     * @return Up to limit lines, oldest first.
+     */
+    public List<HistoryEntry> after(long timestamp, int limit) {
+        List<HistoryEntry> inMemory = new ArrayList<>();
+        long firstInMemory;
+        boolean olderNeeded;
+        lock.lock();
+        try {
+            firstInMemory = nextNumber - recent.size();
+            HistoryEntry oldest = recent.peekFirst();
+            olderNeeded = oldest == null || oldest.getTimestamp() > timestamp;
+            for (HistoryEntry entry : recent) {
+                if (entry.getTimestamp() > timestamp && inMemory.size() < limit) {
+                    inMemory.add(entry);
+                }
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        HistoryLog opened = olderNeeded ? openLog() : null;
+        if (opened == null) {
+            return inMemory;
+        }
+        long end = logBase + firstInMemory;
+        long start = opened.findFirstAfter(timestamp);
+        List<HistoryEntry> lines = opened.read(start, Math.min(end, start + limit));
+        for (HistoryEntry entry : inMemory) {
+            if (lines.size() == limit) {
+                break;
+            }
+            lines.add(entry);
+        }
+        return lines;
+    }
+
+    /* Run by the writer thread of the HistoryStore. */
+    private void persist(HistoryEntry entry) {
+        HistoryLog opened = openLog();
+        if (opened != null) {
+            try {
+                opened.append(logBase + entry.getNumber(), entry.getTimestamp(), entry.getLine().getBytes(CHARSET));
+            }
+            catch (IOException ioe) {
+                System.err.println("Cannot append to the history in " + logDirectory + ": " + ioe.getMessage());
+            }
+        }
+    }
+
+    /* Open the log on first use, continuing the numbering found on disk. */
+    private HistoryLog openLog() {
+        HistoryLog opened = log;
+        if (opened != null || logDirectory == null) {
+            return opened;
+        }
+        logLock.lock();
+        try {
+            if (log == null && !logFailed) {
+                try {
+                    HistoryLog created = new HistoryLog(logDirectory, store.getSegmentBytes(), store.getMaxSegments());
+                    logBase = created.getNextNumber();
+                    log = created;
+                }
+                catch (IOException ioe) {
+                    logFailed = true;
+                    System.err.println("Cannot open the history in " + logDirectory + ": " + ioe.getMessage());
+                }
+            }
+            return log;
+        }
+        finally {
+            logLock.unlock();
+        }
+    }
+
+    /**
+    * A line of the history with the time it was sent.
+    */
+    public static final class HistoryEntry {
+
+        private final long number;
+        private final long timestamp;
+        private final String line;
+
+        /**
+         * Create an entry.
+         * @param number Number of the line in its history.
+         * @param timestamp Time in milliseconds since the epoch the line was sent at.
+         * @param line The line as delivered to the members.
+         */
+        public HistoryEntry(long number, long timestamp, String line) {
+            this.number = number;
+            this.timestamp = timestamp;
+            this.line = line;
+        }
+
+        /**
+         * Public getter to return the number of the line in its history.
+         * @return The number of the line.
+         */
+        public long getNumber() {
+            return number;
+        }
+
+        /**
+         * Public getter to return the time the line was sent at.
+         * @return Milliseconds since the epoch.
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Public getter to return the line.
+         * @return The line as delivered to the members.
+         */
+        public String getLine() {
+            return line;
+        }
+    }
+}
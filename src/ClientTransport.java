@@ -0,0 +1,61 @@
+/**
+* Represents the outbound side of a client connection,
+* which a ConnectionHandler writes its replies to regardless of
+* whether the connection is served by a thread or by the Reactor.
+*/
+public interface ClientTransport {
+
+    /**
+     * Queue one already encoded line to be sent to the client.
+     * The Frame may be shared with other transports and must not be modified.
+     * @param frame Encoded line to be sent.
+     * @return False if the outbound queue overflowed and the client has to be disconnected.
+     */
+    boolean sendFrame(Frame frame);
+
+    /**
+     * Queue one line of text to be sent to the client, the line terminator will be appended.
+     * @param text String to be sent.
+     * @return False if the outbound queue overflowed and the client has to be disconnected.
+     */
+    default boolean sendLine(String text) {
+        return sendFrame(Frame.of(text));
+    }
+
+    /**
+     * Hold back writing until endBatch() is called, so the replies to all the lines
+     * of one input batch are written to the client together.
+     */
+    void beginBatch();
+
+    /**
+     * Write everything that was held back since beginBatch().
+     */
+    void endBatch();
+
+    /**
+     * Public getter to return the number of bytes queued and not written yet.
+     * @return The number of queued bytes.
+     */
+    long getQueuedBytes();
+
+    /**
+     * Run a task on the thread serving the connection if that thread runs tasks, such as a Reactor,
+     * otherwise at once on the calling thread. May be called by any thread.
+     * @param task Task to be run.
+     */
+    default void execute(Runnable task) {
+        task.run();
+    }
+
+    /**
+     * Close the connection once everything already queued has been delivered.
+     */
+    void close();
+
+    /**
+     * Close the connection at once, dropping whatever is still queued or half written,
+     * such as when the client stopped reading and close() would wait forever. May be called by any thread.
+     */
+    void abort();
+}
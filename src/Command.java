@@ -0,0 +1,59 @@
+/**
+* Reusable result of parsing one line of client's input.
+* Instead of copying the verb and the arguments out of the line,
+* only their positions are recorded, so parsing a line allocates nothing.
+*/
+public class Command {
+
+    /**Verb index of a line whose verb is not in {@link Configuration#COMMANDSET}.*/
+    public static final int UNKNOWN_VERB = -1;
+
+    private String line;
+    private int verb;
+    private int argumentsStart;
+
+    /**
+     * Create an empty Command to be filled by {@link CommandParser#parse}.
+     */
+    public Command() {
+        this.line = "";
+        this.verb = UNKNOWN_VERB;
+        this.argumentsStart = -1;
+    }
+
+    /**
+     * Public method to record the result of parsing a line.
+     * @param line The whole line sent by the client.
+     * @param verb Index of the verb in {@link Configuration#COMMANDSET}, or {@link #UNKNOWN_VERB}.
+     * @param argumentsStart Index of the first character after the separating space, or -1 if there is none.
+     */
+    public void set(String line, int verb, int argumentsStart) {
+        this.line = line;
+        this.verb = verb;
+        this.argumentsStart = argumentsStart;
+    }
+
+    /**
+     * Public getter to return the verb of the line.
+     * @return Index of the verb in {@link Configuration#COMMANDSET}, or {@link #UNKNOWN_VERB}.
+     */
+    public int getVerb() {
+        return verb;
+    }
+
+    /**
+     * Public method to return whether the verb was followed by a space, i.e. arguments were given.
+     * @return Whether the line has an arguments part, which may still be empty.
+     */
+    public boolean hasArguments() {
+        return argumentsStart >= 0;
+    }
+
+    /**
+     * Public getter to return everything after the first space of the line.
+     * @return The arguments part of the line.
+     */
+    public String getArguments() {
+        return line.substring(argumentsStart);
+    }
+}
@@ -0,0 +1,279 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+* Hand-written replacement of the regular expressions used to take client's input apart.
+* Verbs are looked up in a small open-addressing table over the characters of the line,
+* and nicknames, channel names and the argument delimiters of USER and PRIVMSG are checked
+* character by character, so no Pattern is compiled and no substring is created.
+*/
+public final class CommandParser {
+
+    private static final char SPACE = ' ';
+    private static final char CHANNEL_PREFIX = '#';
+    private static final char UNDERSCORE = '_';
+    private static final char TRAILING_PREFIX = ':';
+    private static final char MASK_SEPARATOR = ',';
+    private static final char MASK_ANY_SEQUENCE = '*';
+    private static final char MASK_ANY_CHAR = '?';
+    /* Stands for any whitespace character in USER_DELIMITER. */
+    private static final char WHITESPACE = '\0';
+    /* The USER delimiter, what the regular expression \s0\s\*\s: used to match. */
+    private static final char[] USER_DELIMITER = {WHITESPACE, '0', WHITESPACE, '*', WHITESPACE, TRAILING_PREFIX};
+    private static final int HASH_MULTIPLIER = 31;
+
+    /* Slot -> index in Configuration.COMMANDSET, Command.UNKNOWN_VERB for empty slots. */
+    private static final int[] VERB_TABLE = buildVerbTable();
+
+    private CommandParser() {
+    }
+
+    /**
+     * Public method to split a line into its verb and its arguments.
+     * As before, the verb is everything up to the first space and the arguments everything after it.
+     * @param line The line sent by the client, without line terminator.
+     * @param command The reusable Command receiving the result.
+     */
+    public static void parse(String line, Command command) {
+        int space = line.indexOf(SPACE);
+        int verbEnd = space < 0 ? line.length() : space;
+        int argumentsStart = space < 0 ? -1 : space + 1;
+        command.set(line, lookupVerb(line, 0, verbEnd), argumentsStart);
+    }
+
+    /**
+     * Public method to find a verb in {@link Configuration#COMMANDSET}, case-sensitively.
+     * @param text Characters containing the verb.
+     * @param start Index of the first character of the verb.
+     * @param end Index after the last character of the verb.
+     * @return Index of the verb in {@link Configuration#COMMANDSET}, or {@link Command#UNKNOWN_VERB}.
+     */
+    public static int lookupVerb(CharSequence text, int start, int end) {
+        int mask = VERB_TABLE.length - 1;
+        int slot = hash(text, start, end) & mask;
+        while (VERB_TABLE[slot] != Command.UNKNOWN_VERB) {
+            String candidate = Configuration.COMMANDSET[VERB_TABLE[slot]];
+            if (regionEquals(candidate, text, start, end)) {
+                return VERB_TABLE[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return Command.UNKNOWN_VERB;
+    }
+
+    /**
+     * Public method to check a nickname: 1 to {@link Configuration#NICK_MAX_LENGTH} letters,
+     * digits and underscores, not starting with a digit.
+     * @param nickname The nickname to be checked.
+     * @return Whether the nickname is valid.
+     */
+    public static boolean isValidNickname(CharSequence nickname) {
+        int length = nickname.length();
+        if (length == 0 || length > Configuration.NICK_MAX_LENGTH || isDigit(nickname.charAt(0))) {
+            return false;
+        }
+        for (int index = 0; index < length; index++) {
+            if (!isNameChar(nickname.charAt(index))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Public method to check a channel name: a single '#' followed by any number of
+     * letters, digits and underscores.
+     * @param channelName The channel name to be checked.
+     * @return Whether the channel name is valid.
+     */
+    public static boolean isValidChannelName(CharSequence channelName) {
+        int length = channelName.length();
+        if (length == 0 || channelName.charAt(0) != CHANNEL_PREFIX) {
+            return false;
+        }
+        for (int index = 1; index < length; index++) {
+            if (!isNameChar(channelName.charAt(index))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Public method to find the delimiter between target and text of PRIVMSG arguments,
+     * a whitespace character followed by ':'.
+     * @param arguments The arguments of the PRIVMSG command.
+     * @return Index of the whitespace character of the first delimiter, or -1 if there is none.
+     */
+    public static int indexOfPrivmsgDelimiter(String arguments) {
+        for (int index = 0; index + 1 < arguments.length(); index++) {
+            if (isWhitespace(arguments.charAt(index)) && arguments.charAt(index + 1) == TRAILING_PREFIX) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Public method to find the delimiter between username and real name of USER arguments,
+     * "0" and "*" surrounded by whitespace characters and followed by ':'.
+     * @param arguments The arguments of the USER command.
+     * @return Index of the first character of the first delimiter, or -1 if there is none.
+     */
+    public static int indexOfUserDelimiter(String arguments) {
+        for (int index = 0; index + USER_DELIMITER.length <= arguments.length(); index++) {
+            if (matchesUserDelimiter(arguments, index)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Public method to return the number of characters of the USER delimiter.
+     * @return The length of the delimiter found by {@link #indexOfUserDelimiter}.
+     */
+    public static int getUserDelimiterLength() {
+        return USER_DELIMITER.length;
+    }
+
+    /**
+     * Public method to split arguments into words separated by runs of whitespace characters,
+     * so doubled or leading spaces do not produce empty words.
+     * @param arguments The arguments of a command.
+     * @return The words of the arguments, none of them empty.
+     */
+    public static String[] splitWords(String arguments) {
+        List<String> words = new ArrayList<>();
+        int index = 0;
+        while (index < arguments.length()) {
+            while (index < arguments.length() && isWhitespace(arguments.charAt(index))) {
+                index++;
+            }
+            int start = index;
+            while (index < arguments.length() && !isWhitespace(arguments.charAt(index))) {
+                index++;
+            }
+            if (index > start) {
+                words.add(arguments.substring(start, index));
+            }
+        }
+        return words.toArray(new String[0]);
+    }
+
+    /**
+     * Public method to check a name against a comma-separated list of masks, where '*'
+     * stands for any sequence of characters and '?' for any single character.
+     * @param masks One or more masks separated by ','.
+     * @param name The name to be checked, such as a channel name.
+     * @return Whether the name matches any of the masks.
+     */
+    public static boolean matchesAnyMask(String masks, String name) {
+        int maskStart = 0;
+        while (maskStart <= masks.length()) {
+            int maskEnd = masks.indexOf(MASK_SEPARATOR, maskStart);
+            if (maskEnd < 0) {
+                maskEnd = masks.length();
+            }
+            if (matchesMask(masks, maskStart, maskEnd, name)) {
+                return true;
+            }
+            maskStart = maskEnd + 1;
+        }
+        return false;
+    }
+
+    /* Glob matching which backtracks to the last '*' only, linear for masks without '*'. */
+    private static boolean matchesMask(String mask, int start, int end, String name) {
+        int maskIndex = start;
+        int nameIndex = 0;
+        int starIndex = -1;
+        int starMatch = 0;
+        while (nameIndex < name.length()) {
+            if (maskIndex < end && mask.charAt(maskIndex) == MASK_ANY_SEQUENCE) {
+                starIndex = maskIndex;
+                starMatch = nameIndex;
+                maskIndex++;
+            }
+            else if (maskIndex < end
+                    && (mask.charAt(maskIndex) == MASK_ANY_CHAR || mask.charAt(maskIndex) == name.charAt(nameIndex))) {
+                maskIndex++;
+                nameIndex++;
+            }
+            else if (starIndex >= 0) {
+                // Let the last '*' swallow one more character and retry from there.
+                starMatch++;
+                nameIndex = starMatch;
+                maskIndex = starIndex + 1;
+            }
+            else {
+                return false;
+            }
+        }
+        while (maskIndex < end && mask.charAt(maskIndex) == MASK_ANY_SEQUENCE) {
+            maskIndex++;
+        }
+        return maskIndex == end;
+    }
+
+    private static boolean matchesUserDelimiter(String arguments, int start) {
+        for (int offset = 0; offset < USER_DELIMITER.length; offset++) {
+            char actual = arguments.charAt(start + offset);
+            char expected = USER_DELIMITER[offset];
+            if (expected == WHITESPACE ? !isWhitespace(actual) : actual != expected) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isNameChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || isDigit(c) || c == UNDERSCORE;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /* The characters matched by \s of java.util.regex. */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private static int hash(CharSequence text, int start, int end) {
+        int hash = 0;
+        for (int index = start; index < end; index++) {
+            hash = HASH_MULTIPLIER * hash + text.charAt(index);
+        }
+        return hash ^ (hash >>> Short.SIZE);
+    }
+
+    private static boolean regionEquals(String candidate, CharSequence text, int start, int end) {
+        if (candidate.length() != end - start) {
+            return false;
+        }
+        for (int index = 0; index < candidate.length(); index++) {
+            if (candidate.charAt(index) != text.charAt(start + index)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int[] buildVerbTable() {
+        // At most half full, so probe sequences stay short.
+        int[] table = new int[Integer.highestOneBit(Configuration.COMMANDSET.length) << 2];
+        Arrays.fill(table, Command.UNKNOWN_VERB);
+        int mask = table.length - 1;
+        for (int verb = 0; verb < Configuration.COMMANDSET.length; verb++) {
+            String name = Configuration.COMMANDSET[verb];
+            int slot = hash(name, 0, name.length()) & mask;
+            while (table[slot] != Command.UNKNOWN_VERB) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = verb;
+        }
+        return table;
+    }
+}
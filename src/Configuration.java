@@ -4,6 +4,20 @@ public abstract class Configuration {
     /**String used for checking the legality of the input strings via args[].*/
     public static final String INVALID_ARGUMENT_PROMPT = "Usage: java IrcServerMain <server_name> <port>";
 
+    /**Execution mode serving every connection by a thread of a cached thread pool.*/
+    public static final String MODE_THREADED = "threaded";
+
+    /**Execution mode sharing all connections between non-blocking Reactor threads, one per core by default.*/
+    public static final String MODE_NIO = "nio";
+
+    /**Execution mode serving every connection by its own virtual thread (JDK 21 or later).
+     * Shared state touched by these threads must be guarded by java.util.concurrent locks
+     * rather than synchronized blocks, which pin the carrier thread while blocking.*/
+    public static final String MODE_VIRTUAL = "virtual";
+
+    /**A collection of all valid execution modes that can be passed to IrcServerMain.*/
+    public static final String[] MODESET = {MODE_THREADED, MODE_NIO, MODE_VIRTUAL};
+
     /**String used for matching if client's input is this commands.*/
     public static final String QUIT = "QUIT";
 
@@ -37,26 +51,30 @@ public abstract class Configuration {
     /**{@link #QUIT readDocHere}.*/
     public static final String PONG = "PONG";
 
+    /**Command to request the metrics of the server.*/
+    public static final String STATS = "STATS";
+
     /**{@link #QUIT readDocHere}.*/
     public static final String PRIVMSG = "PRIVMSG";
 
-    /**A collection of all valid Constants used for matching
-     * if client's input contains one of the commands.*/
-    public static final String[] COMMANDSET = {QUIT, NICK, USER, JOIN, PART, PRIVMSG, NAMES, LIST, TIME, INFO, PING};
+    /**Command to request the messages sent to a channel before.*/
+    public static final String CHATHISTORY = "CHATHISTORY";
 
+    /**Command to negotiate the optional capabilities of the server, see {@link #CAP_BATCH}.*/
+    public static final String CAP = "CAP";
 
+    /**Command sent by the server right before it closes a client's connection.*/
+    public static final String ERROR = "ERROR";
 
-    /**Regular expression to check the validity of the nickname.*/
-    public static final String NICK_VALIDITY_REGEX = "^[a-zA-z_][a-zA-Z0-9_]{0,8}";
+    /**A collection of all valid Constants used for matching
+     * if client's input contains one of the commands.*/
+    public static final String[] COMMANDSET = {QUIT, NICK, USER, JOIN, PART, PRIVMSG, NAMES, LIST, TIME, INFO, PING, PONG,
+        STATS, CHATHISTORY, CAP};
 
-    /**Regular expression as delimiter to split the argument of USER command.*/
-    public static final String USER_PERMISSION_REGEX = "\\s0\\s\\*\\s:";
 
-    /**Regular expression to check the validity of the channelName.*/
-    public static final String CHANNELNAME_VALIDITY_REGEX = "#[a-zA-Z0-9_]*";
 
-    /**Regular expression as delimiter to split the argument of PRIVMSG command.*/
-    public static final String PRIVMSG_REGEX = "\\s:";
+    /**Maximum number of characters of a nickname, checked by {@link CommandParser#isValidNickname}.*/
+    public static final int NICK_MAX_LENGTH = 9;
 
 
     /**<text> used for structural reply(error) message sent by server.*/
@@ -77,6 +95,9 @@ public abstract class Configuration {
     /**{@link #NO_NICKNAME readDocHere}.*/
     public static final String INVALID_NICK = "Invalid nickname";
 
+    /**{@link #NO_NICKNAME readDocHere}.*/
+    public static final String NICK_IN_USE = "Nickname is already in use";
+
     /**{@link #NO_NICKNAME readDocHere}.*/
     public static final String INVALID_USER_ARG = "Invalid arguments to USER command";
 
@@ -86,6 +107,12 @@ public abstract class Configuration {
     /**{@link #NO_NICKNAME readDocHere}.*/
     public static final String INVALID_PRIVMSG_ARG = "Invalid arguments to PRIVMSG command";
 
+    /**{@link #NO_NICKNAME readDocHere}.*/
+    public static final String INVALID_CHATHISTORY_ARG = "Invalid arguments to CHATHISTORY command";
+
+    /**{@link #NO_NICKNAME readDocHere}.*/
+    public static final String INVALID_CAP_ARG = "Invalid arguments to CAP command";
+
     /**{@link #NO_NICKNAME readDocHere}.*/
     public static final String LACKED_USER_ARG = "Not enough arguments";
 
@@ -95,6 +122,27 @@ public abstract class Configuration {
     /**{@link #NO_NICKNAME readDocHere}.*/
     public static final String END_OF_LIST = "End of LIST";
 
+    /**{@link #NO_NICKNAME readDocHere}.*/
+    public static final String END_OF_STATS = "End of STATS";
+
+    /**{@link #NO_NICKNAME readDocHere}.*/
+    public static final String SLOW_CONSUMER = "Closing link (SendQ exceeded)";
+
+    /**{@link #NO_NICKNAME readDocHere}.*/
+    public static final String PING_TIMEOUT = "Closing link (Ping timeout)";
+
+    /**{@link #NO_NICKNAME readDocHere}.*/
+    public static final String NICK_COLLISION = "Closing link (Nickname collision)";
+
+    /**{@link #NO_NICKNAME readDocHere}.*/
+    public static final String SERVER_ALREADY_LINKED = "Server already linked";
+
+    /**{@link #NO_NICKNAME readDocHere}.*/
+    public static final String LINK_NOT_REGISTERED = "Server link not registered";
+
+    /**{@link #NO_NICKNAME readDocHere}.*/
+    public static final String SERVER_SHUTTING_DOWN = "Closing link (Server shutting down)";
+
     /**{@link #NO_NICKNAME readDocHere}.*/
     public static final String SERVER_INFO = "This server was implemented by student 220021270\n"
             + "which supports simple multiuser realtime communication via TCP.";
@@ -122,9 +170,352 @@ public abstract class Configuration {
     /**{@link #ERROR_CODE readDocHere}.*/
     public static final String LIST_END_CODE = "323";
 
+    /**{@link #ERROR_CODE readDocHere}.*/
+    public static final String STATS_CODE = "249";
+
+    /**{@link #ERROR_CODE readDocHere}.*/
+    public static final String STATS_END_CODE = "219";
+
     /**The minimum value of the port number.*/
     public static final int PORTNUM_MIN = 0;
 
     /**The maximum value of the port number.*/
     public static final int PORTNUM_MAX = 65536;
+
+    /**System property with the number of Reactor threads of the nio mode, the number of cores by default.*/
+    public static final String REACTORS_PROPERTY = "irc.reactors";
+
+    /**Size in bytes of the buffer the Reactor reads connections' input into.*/
+    public static final int REACTOR_READ_BUFFER_SIZE = 8192;
+
+    /**Default maximum number of connections waiting to be accepted.*/
+    public static final int ACCEPT_BACKLOG = 50;
+
+    /**System property overriding {@link #ACCEPT_BACKLOG}.*/
+    public static final String ACCEPT_BACKLOG_PROPERTY = "irc.accept.backlog";
+
+    /**Default number of threads accepting connections.*/
+    public static final int ACCEPTORS = 1;
+
+    /**System property overriding {@link #ACCEPTORS}.*/
+    public static final String ACCEPTORS_PROPERTY = "irc.acceptors";
+
+    /**System property with the time in milliseconds IrcServerMain gives the server to shut down gracefully
+    * when the JVM is asked to exit, such as by SIGTERM; the JVM exits at once if it is not set.*/
+    public static final String SHUTDOWN_TIMEOUT_PROPERTY = "irc.shutdown.timeout.ms";
+
+    /**Interval in milliseconds at which a stopping server checks whether its connections are closed.*/
+    public static final long SHUTDOWN_POLL_MILLIS = 10;
+
+    /**System property with the size in bytes of the receive buffer of a connection's socket, the OS default if 0.*/
+    public static final String SOCKET_RECEIVE_BUFFER_PROPERTY = "irc.socket.receive.buffer";
+
+    /**System property with the size in bytes of the send buffer of a connection's socket, the OS default if 0.*/
+    public static final String SOCKET_SEND_BUFFER_PROPERTY = "irc.socket.send.buffer";
+
+    /**System property set to true to disable Nagle's algorithm on the sockets of the connections.*/
+    public static final String TCP_NODELAY_PROPERTY = "irc.tcp.nodelay";
+
+    /**Default time in milliseconds between two checks of the configuration file for changes.*/
+    public static final long CONFIG_POLL_MILLIS = 2000;
+
+    /**System property overriding {@link #CONFIG_POLL_MILLIS}.*/
+    public static final String CONFIG_POLL_PROPERTY = "irc.config.poll.ms";
+
+    /**Size in bytes of the smallest buffer of the BufferPool, its size classes are the powers of two from it on.*/
+    public static final int BUFFER_MIN_CLASS_BYTES = 512;
+
+    /**Size in bytes of the largest buffer kept by the BufferPool, larger ones are allocated on demand.*/
+    public static final int BUFFER_MAX_CLASS_BYTES = 65536;
+
+    /**Number of buffers of each size class a thread with a cache of its own keeps.*/
+    public static final int BUFFER_THREAD_CACHE_SIZE = 8;
+
+    /**Default total size in bytes of the idle buffers the BufferPool keeps.*/
+    public static final long BUFFER_POOL_BYTES = 16777216;
+
+    /**System property overriding {@link #BUFFER_POOL_BYTES}.*/
+    public static final String BUFFER_POOL_BYTES_PROPERTY = "irc.buffers.pool.bytes";
+
+    /**Number of slots of an empty IntHashMap, a power of two.*/
+    public static final int INT_MAP_MIN_CAPACITY = 8;
+
+    /**Number of freed user IDs a server has room for at first, the room grows as more are freed at once.*/
+    public static final int USER_ID_POOL_CAPACITY = 1024;
+
+    /**System property with the number of threads delivering the broadcasts of large channels,
+       one per processor by default, 0 to deliver every broadcast on the sender's thread.*/
+    public static final String FANOUT_THREADS_PROPERTY = "irc.fanout.threads";
+
+    /**Default number of members of this server from which a channel's broadcasts are delivered by the fan-out threads.*/
+    public static final int FANOUT_THRESHOLD = 4096;
+
+    /**System property overriding {@link #FANOUT_THRESHOLD}.*/
+    public static final String FANOUT_THRESHOLD_PROPERTY = "irc.fanout.threshold";
+
+    /**Default number of slots of a channel's member table delivered by one fan-out task.*/
+    public static final int FANOUT_CHUNK_SLOTS = 1024;
+
+    /**System property overriding {@link #FANOUT_CHUNK_SLOTS}.*/
+    public static final String FANOUT_CHUNK_PROPERTY = "irc.fanout.chunk";
+
+    /**Number of broadcasts of one channel, or lines of one client, waiting for the fan-out threads
+     * beyond which the messages of the channel's members, or of the client, are held back.*/
+    public static final int FANOUT_MAX_PENDING = 64;
+
+    /**Time in milliseconds after which a message held back because of {@link #FANOUT_MAX_PENDING} is retried.*/
+    public static final long FANOUT_RETRY_MILLIS = 10;
+
+    /**Hundred, for the metrics given in percent.*/
+    public static final long PERCENT = 100;
+
+    /**Size in bytes of the chunks a thread serving a connection reads its input in.*/
+    public static final int INPUT_CHUNK_SIZE = 4096;
+
+    /**Initial size in bytes of the buffer holding an unfinished line of a non-blocking connection.*/
+    public static final int LINE_BUFFER_INITIAL_SIZE = 128;
+
+    /**Outbound queue policy dropping the oldest queued lines of a client that reads too slowly.*/
+    public static final String SENDQ_POLICY_DROP_OLDEST = "drop-oldest";
+
+    /**Outbound queue policy disconnecting a client that reads too slowly.*/
+    public static final String SENDQ_POLICY_DISCONNECT = "disconnect";
+
+    /**A collection of all valid outbound queue policies.*/
+    public static final String[] SENDQ_POLICYSET = {SENDQ_POLICY_DROP_OLDEST, SENDQ_POLICY_DISCONNECT};
+
+    /**Default maximum number of bytes queued for a single client.*/
+    public static final long SENDQ_MAX_BYTES = 1048576;
+
+    /**Default maximum number of lines queued for a single client.*/
+    public static final int SENDQ_MAX_MESSAGES = 8192;
+
+    /**System property overriding {@link #SENDQ_MAX_BYTES}.*/
+    public static final String SENDQ_BYTES_PROPERTY = "irc.sendq.bytes";
+
+    /**System property overriding {@link #SENDQ_MAX_MESSAGES}.*/
+    public static final String SENDQ_MESSAGES_PROPERTY = "irc.sendq.messages";
+
+    /**System property selecting one of {@link #SENDQ_POLICYSET}, {@link #SENDQ_POLICY_DISCONNECT} by default.*/
+    public static final String SENDQ_POLICY_PROPERTY = "irc.sendq.policy";
+
+    /**Time in milliseconds a client disconnected for reading too slowly or for a ping timeout has to take
+       its ERROR line, after which its connection is closed and whatever is still queued is dropped.*/
+    public static final long DISCONNECT_LINGER_MILLIS = 2000;
+
+    /**Size in bytes of the buffer queued lines are coalesced into before a single socket write.*/
+    public static final int WRITE_BUFFER_SIZE = 8192;
+
+    /**Maximum number of queued lines taken from an outbound queue at once by the writer of a connection.*/
+    public static final int WRITE_BATCH_FRAMES = 64;
+
+    /**Default time in milliseconds lines sent by other clients are held back to be coalesced, 0 to write at once.*/
+    public static final long FLUSH_WINDOW_MILLIS = 0;
+
+    /**System property overriding {@link #FLUSH_WINDOW_MILLIS} for the threaded and virtual modes.*/
+    public static final String FLUSH_WINDOW_PROPERTY = "irc.flush.window.ms";
+
+    /**System property with the port WebSocket clients connect to, which is only opened if it is set.*/
+    public static final String WEBSOCKET_PORT_PROPERTY = "irc.websocket.port";
+
+    /**Maximum size in bytes of a message of a WebSocket client, all its fragments together.*/
+    public static final int WEBSOCKET_MAX_MESSAGE_BYTES = 16384;
+
+    /**Maximum size in bytes of the HTTP request upgrading a connection to a WebSocket.*/
+    public static final int WEBSOCKET_MAX_REQUEST_BYTES = 8192;
+
+    /**System property with the loopback port of the HTTP metrics endpoint, which is only opened if it is set.*/
+    public static final String METRICS_PORT_PROPERTY = "irc.metrics.port";
+
+    /**Default time in milliseconds a client may stay silent before the server sends it a PING, 0 to never ping.*/
+    public static final long PING_INTERVAL_MILLIS = 120000;
+
+    /**Default time in milliseconds a client has to answer a PING before its connection is closed.*/
+    public static final long PING_TIMEOUT_MILLIS = 60000;
+
+    /**System property overriding {@link #PING_INTERVAL_MILLIS}.*/
+    public static final String PING_INTERVAL_PROPERTY = "irc.ping.interval.ms";
+
+    /**System property overriding {@link #PING_TIMEOUT_MILLIS}.*/
+    public static final String PING_TIMEOUT_PROPERTY = "irc.ping.timeout.ms";
+
+    /**Duration in milliseconds of a tick of the TimingWheel running the connections' timeouts.*/
+    public static final long TIMER_TICK_MILLIS = 100;
+
+    /**Number of slots of the TimingWheel, covering this many ticks before timeouts wrap around.*/
+    public static final int TIMER_WHEEL_SLOTS = 1024;
+
+    /**Name of the flood control class of PRIVMSG, used in its properties and metrics.*/
+    public static final String FLOOD_MESSAGES = "messages";
+
+    /**Name of the flood control class of JOIN and PART.*/
+    public static final String FLOOD_MEMBERSHIP = "membership";
+
+    /**Name of the flood control class of NAMES, LIST, STATS and CHATHISTORY.*/
+    public static final String FLOOD_QUERIES = "queries";
+
+    /**Name of the flood control class of the messages sent to one channel by all its members.*/
+    public static final String FLOOD_CHANNEL = "channel";
+
+    /**Prefix of the flood control properties, followed by the name of a class and a suffix.*/
+    public static final String FLOOD_PROPERTY_PREFIX = "irc.flood.";
+
+    /**Suffix of the property with the tokens per second of a flood control class, 0 for no limit.*/
+    public static final String FLOOD_RATE_SUFFIX = ".rate";
+
+    /**Suffix of the property with the burst of a flood control class.*/
+    public static final String FLOOD_BURST_SUFFIX = ".burst";
+
+    /**Default messages per second a client may send.*/
+    public static final long FLOOD_MESSAGES_RATE = 10;
+
+    /**Default burst of messages a client may send at once.*/
+    public static final long FLOOD_MESSAGES_BURST = 20;
+
+    /**Default JOIN and PART commands per second a client may send.*/
+    public static final long FLOOD_MEMBERSHIP_RATE = 5;
+
+    /**Default burst of JOIN and PART commands a client may send at once.*/
+    public static final long FLOOD_MEMBERSHIP_BURST = 10;
+
+    /**Default NAMES, LIST, STATS and CHATHISTORY commands per second a client may send.*/
+    public static final long FLOOD_QUERIES_RATE = 5;
+
+    /**Default burst of NAMES, LIST, STATS and CHATHISTORY commands a client may send at once.*/
+    public static final long FLOOD_QUERIES_BURST = 10;
+
+    /**Default messages per second all members of a channel may send to it together.*/
+    public static final long FLOOD_CHANNEL_RATE = 50;
+
+    /**Default burst of messages all members of a channel may send to it at once.*/
+    public static final long FLOOD_CHANNEL_BURST = 100;
+
+    /**System property with the port other servers link to, no link is accepted if it is not set.*/
+    public static final String LINK_PORT_PROPERTY = "irc.link.port";
+
+    /**System property with the address the link port is opened on, only the loopback interface if it is not set.*/
+    public static final String LINK_ADDRESS_PROPERTY = "irc.link.address";
+
+    /**System property with the comma-separated host:port of the servers to link to.*/
+    public static final String LINK_PEERS_PROPERTY = "irc.link.peers";
+
+    /**Default time in milliseconds between two attempts to link to a peer that is down or was split.*/
+    public static final long LINK_RETRY_MILLIS = 2000;
+
+    /**System property overriding {@link #LINK_RETRY_MILLIS}.*/
+    public static final String LINK_RETRY_PROPERTY = "irc.link.retry.ms";
+
+    /**Maximum number of bytes queued for a server link before it is split.*/
+    public static final long LINK_SENDQ_MAX_BYTES = 16777216;
+
+    /**Maximum number of lines queued for a server link before it is split.*/
+    public static final int LINK_SENDQ_MAX_MESSAGES = 262144;
+
+    /**Link command introducing a server, first sent by both ends of a new link.*/
+    public static final String SERVER = "SERVER";
+
+    /**Link command announcing that a server left the network.*/
+    public static final String SQUIT = "SQUIT";
+
+    /**Link command announcing the new nickname of a user.*/
+    public static final String RENAME = "RENAME";
+
+    /**Link command asking the server of a user to disconnect it after a nickname collision.*/
+    public static final String KILL = "KILL";
+
+    /**CHATHISTORY subcommand requesting the most recent messages.*/
+    public static final String HISTORY_LATEST = "LATEST";
+
+    /**CHATHISTORY subcommand requesting the messages sent after a point in time.*/
+    public static final String HISTORY_AFTER = "AFTER";
+
+    /**Prefix of the point in time of {@link #HISTORY_AFTER}.*/
+    public static final String HISTORY_TIMESTAMP_PREFIX = "timestamp=";
+
+    /**Command enclosing the lines replayed by CHATHISTORY.*/
+    public static final String BATCH = "BATCH";
+
+    /**Type of the batch of lines replayed by CHATHISTORY.*/
+    public static final String HISTORY_BATCH_TYPE = "chathistory";
+
+    /**Format of the time tag of a replayed line, in UTC.*/
+    public static final String HISTORY_TIME_PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
+
+    /**CAP subcommand listing the capabilities of the server.*/
+    public static final String CAP_LS = "LS";
+
+    /**CAP subcommand enabling, or with a '-' prefix disabling, some capabilities.*/
+    public static final String CAP_REQ = "REQ";
+
+    /**CAP subcommand ending the negotiation, which needs no reply.*/
+    public static final String CAP_END = "END";
+
+    /**CAP reply accepting all the capabilities of a {@link #CAP_REQ}.*/
+    public static final String CAP_ACK = "ACK";
+
+    /**CAP reply rejecting a {@link #CAP_REQ} naming an unknown capability, which changes nothing.*/
+    public static final String CAP_NAK = "NAK";
+
+    /**Capability enclosing the lines replayed by CHATHISTORY in a {@link #BATCH}.*/
+    public static final String CAP_BATCH = "batch";
+
+    /**Capability tagging the lines replayed by CHATHISTORY with the time they were sent.*/
+    public static final String CAP_SERVER_TIME = "server-time";
+
+    /**Maximum number of lines a single CHATHISTORY request returns.*/
+    public static final int HISTORY_MAX_LIMIT = 1000;
+
+    /**Default number of recent lines per channel kept in memory.*/
+    public static final int HISTORY_LINES = 256;
+
+    /**System property overriding {@link #HISTORY_LINES}.*/
+    public static final String HISTORY_LINES_PROPERTY = "irc.history.lines";
+
+    /**System property with the directory of the history logs, the history is only kept in memory if it is not set.*/
+    public static final String HISTORY_DIR_PROPERTY = "irc.history.dir";
+
+    /**Default size in bytes of the lines file of a segment of a history log.*/
+    public static final int HISTORY_SEGMENT_BYTES = 4194304;
+
+    /**System property overriding {@link #HISTORY_SEGMENT_BYTES}.*/
+    public static final String HISTORY_SEGMENT_BYTES_PROPERTY = "irc.history.segment.bytes";
+
+    /**Default number of segments kept per channel, the oldest ones beyond are deleted.*/
+    public static final int HISTORY_SEGMENTS = 8;
+
+    /**System property overriding {@link #HISTORY_SEGMENTS}.*/
+    public static final String HISTORY_SEGMENTS_PROPERTY = "irc.history.segments";
+
+    /**Line length in bytes the index of a segment is sized for, shorter lines on average fill the index first.*/
+    public static final int HISTORY_AVERAGE_LINE_BYTES = 32;
+
+    /**Maximum number of lines waiting to be appended to the history logs.*/
+    public static final int HISTORY_QUEUE_CAPACITY = 65536;
+
+    /**System property with the directory of the registration and channel state, the state is not kept across restarts if it is not set.*/
+    public static final String STATE_DIR_PROPERTY = "irc.state.dir";
+
+    /**File name of the snapshot of the state.*/
+    public static final String STATE_SNAPSHOT_FILE = "state.snapshot";
+
+    /**Prefix of the file names of the write-ahead logs of the state, followed by their generation.*/
+    public static final String STATE_WAL_PREFIX = "state-";
+
+    /**Suffix of the file names of the write-ahead logs of the state.*/
+    public static final String STATE_WAL_SUFFIX = ".wal";
+
+    /**Default number of records logged after which a snapshot of the state is made.*/
+    public static final long STATE_SNAPSHOT_RECORDS = 100000;
+
+    /**System property overriding {@link #STATE_SNAPSHOT_RECORDS}.*/
+    public static final String STATE_SNAPSHOT_RECORDS_PROPERTY = "irc.state.snapshot.records";
+
+    /**Default time in milliseconds after which a snapshot is made if any record was logged.*/
+    public static final long STATE_SNAPSHOT_INTERVAL_MILLIS = 300000;
+
+    /**System property overriding {@link #STATE_SNAPSHOT_INTERVAL_MILLIS}.*/
+    public static final String STATE_SNAPSHOT_INTERVAL_PROPERTY = "irc.state.snapshot.interval.ms";
+
+    /**System property set to true to force every batch of records to the disk before going on.*/
+    public static final String STATE_FSYNC_PROPERTY = "irc.state.fsync";
 }
@@ -1,12 +1,24 @@
-import java.net.Socket;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.BufferedReader;
-import java.io.PrintWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 /**
 * Represents the synthesis of a connected client and
@@ -14,37 +26,100 @@ import java.time.LocalDateTime;
 */
 public class ConnectionHandler implements Runnable {
 
+    /* Action of every verb, indexed like Configuration.COMMANDSET. */
+    private static final CommandAction[] DISPATCH_TABLE = buildDispatchTable();
+    private static final DateTimeFormatter HISTORY_TIME = DateTimeFormatter
+            .ofPattern(Configuration.HISTORY_TIME_PATTERN).withZone(ZoneOffset.UTC);
+    /* Subcommand, channel, selector and limit of CHATHISTORY. */
+    private static final int HISTORY_WORDS = 4;
+
     private IrcServer ircS;
     private InputStream clientIs;
-    private OutputStream clientOs;
-    private BufferedReader clientBr;
-    private PrintWriter clientPw;
-    private String nickname;
+    private InputDecoder clientDecoder;
+    /* Reused for every line, only the connection's own thread parses. */
+    private Command command;
+    private ClientTransport transport;
+    private ReplyEncoder replies;
+    /* Read by other clients' threads when rendering NAMES. */
+    private volatile String nickname;
     private String realname;
     private String username;
-    private boolean quitStatus;
+    /* Set once by whichever thread ends the connection first. */
+    private AtomicBoolean quitStatus;
     private boolean registered;
+    /* Channels this client is joined to, maintained by Channel, so QUIT only visits these. */
+    private Set<Channel> joinedChannels;
+    /* Compact ID assigned by the server at registration, by which the channels hold their members. */
+    private volatile int userId;
+    /* The registration and every channel joined hold a reference, the ID is freed with the last one,
+       so it is never given to another user while a channel may still list it. */
+    private AtomicInteger userIdReferences;
+    /* Time of the last line received, in TimingWheel.nowMillis(). */
+    private volatile long lastActivityMillis;
+    /* The keepalive state below is only touched by the thread advancing the TimingWheel. */
+    private TimingWheel timingWheel;
+    private volatile TimingWheel.Timeout keepAliveTimeout;
+    private boolean awaitingPong;
+    private long pingSentMillis;
+    /* One TokenBucket per class of FloodControl. */
+    private TokenBucket[] floodBuckets;
+    /* Lines held back by flood control, in order, only touched by the thread reading the input. */
+    private ArrayDeque<String> pendingLines;
+    /* When the first pending line may be retried, in System.nanoTime(). */
+    private long pendingUntilNanos;
+    /* Capabilities enabled by CAP REQ, only touched by this client's thread. */
+    private boolean batchCapability;
+    private boolean serverTimeCapability;
+    /* The lines of this client to other clients waiting behind its lines still in a FanOutLane,
+       with the number of those, guarded by outboxLock as the fan-out threads report deliveries. */
+    private ReentrantLock outboxLock;
+    private ArrayDeque<OutboxLine> outbox;
+    private int pendingBroadcasts;
+    /* Set while a thread sends the lines of the outbox, the next lines then wait behind them. */
+    private boolean flushingOutbox;
 
     /**
     * Instantiate a synthesis.
     * The function of the input processing
-    * via acquiring InputStream and OutputStream via socket(connection).
+    * via the InputStream acquired from the socket(connection).
     * Client's information would also be recorded to this instance.
-    * @param socket Connection accepted by the ServerSocket.
+    * @param clientIs Stream to get data from client on.
+    * @param transport Transport used to send data back to the client.
     */
-    public ConnectionHandler(Socket socket) {
-        try {
-            clientIs = socket.getInputStream(); // Get data from client on this InputStream.
-            clientOs = socket.getOutputStream(); // Send data back to client via this OutputStream.
-            clientBr = new BufferedReader(new InputStreamReader(clientIs));
-            clientPw = new PrintWriter(new OutputStreamWriter(clientOs), true);
-            nickname = "*"; // Initialise with this for structural reply to be sent.
-            registered = false;
-            quitStatus = false;
-        }
-        catch (Exception e) {
-            System.err.println(e.getMessage());
-        }
+    public ConnectionHandler(InputStream clientIs, ClientTransport transport) {
+        this(clientIs, transport, new LineDecoder(Charset.defaultCharset()));
+    }
+
+    /**
+    * Instantiate a synthesis whose input is not plain lines, such as a WebSocket connection.
+    * @param clientIs Stream to get data from client on.
+    * @param transport Transport used to send data back to the client.
+    * @param clientDecoder Decoder turning the input into lines.
+    */
+    public ConnectionHandler(InputStream clientIs, ClientTransport transport, InputDecoder clientDecoder) {
+        this(transport);
+        this.clientIs = clientIs;
+        this.clientDecoder = clientDecoder;
+    }
+
+    /**
+    * Instantiate a synthesis for a connection whose input is decoded elsewhere,
+    * such as by the Reactor, which passes every line to handleLine().
+    * @param transport Transport used to send data back to the client.
+    */
+    public ConnectionHandler(ClientTransport transport) {
+        this.transport = transport;
+        this.command = new Command();
+        nickname = "*"; // Initialise with this for structural reply to be sent.
+        registered = false;
+        quitStatus = new AtomicBoolean(false);
+        joinedChannels = ConcurrentHashMap.newKeySet();
+        userIdReferences = new AtomicInteger();
+        lastActivityMillis = TimingWheel.nowMillis();
+        awaitingPong = false;
+        pendingLines = new ArrayDeque<>();
+        outboxLock = new ReentrantLock();
+        outbox = new ArrayDeque<>();
     }
 
     /**
@@ -52,78 +127,181 @@ public class ConnectionHandler implements Runnable {
     * recurrently until "QUIT" was detected or unknown interruption occur.
     */
     private void processClientMessage() throws IOException {
-        String originalLine;
-        while (!quitStatus) {
-            originalLine = clientBr.readLine();
-            String[] partitionedLine;
-            String command, arguments;
-            /* Connection will not be closed instantly
-               if client hit "Enter" directly. */
-            if (originalLine == null || originalLine.equals("")) {
-                continue;
+        byte[] inputChunk = new byte[Configuration.INPUT_CHUNK_SIZE];
+        int count;
+        while (!quitStatus.get()) {
+            count = clientIs.read(inputChunk);
+            // The client closed its side of the connection.
+            if (count < 0) {
+                handleConnectionLost();
+                return;
+            }
+            ircS.getMetrics().recordBytesIn(count);
+            // Replies to all lines that arrived together are written together.
+            transport.beginBatch();
+            clientDecoder.decode(ByteBuffer.wrap(inputChunk, 0, count), this::handleLine);
+            transport.endBatch();
+            // A throttled client is not read until its held back lines have been processed.
+            long delay = getPendingDelayNanos();
+            while (delay > 0) {
+                LockSupport.parkNanos(delay);
+                transport.beginBatch();
+                processPendingLines();
+                transport.endBatch();
+                delay = getPendingDelayNanos();
+            }
+        }
+    }
+
+    /**
+    * Public method to process a single line of client's input,
+    * invoked for every line no matter how the connection is served.
+    * @param originalLine The line sent by the client, without line terminator.
+    */
+    public void handleLine(String originalLine) {
+        if (quitStatus.get()) {
+            return;
+        }
+        // Any line proves the client alive, whether it answers a PING or not.
+        lastActivityMillis = TimingWheel.nowMillis();
+        if (originalLine.isEmpty()) {
+            return;
+        }
+        // Keep the order of the lines once any line is held back.
+        if (!pendingLines.isEmpty()) {
+            pendingLines.add(originalLine);
+            return;
+        }
+        long delay = processLine(originalLine);
+        if (delay > 0) {
+            pendingLines.add(originalLine);
+            pendingUntilNanos = System.nanoTime() + delay;
+        }
+    }
+
+    /**
+    * Public method to process the lines held back by flood control, as far as its limits allow,
+    * to be called by the thread reading the input once {@link #getPendingDelayNanos} has passed.
+    */
+    public void processPendingLines() {
+        while (!pendingLines.isEmpty()) {
+            if (quitStatus.get()) {
+                pendingLines.clear();
+                return;
+            }
+            long delay = processLine(pendingLines.peek());
+            if (delay > 0) {
+                pendingUntilNanos = System.nanoTime() + delay;
+                return;
+            }
+            pendingLines.poll();
+        }
+    }
+
+    /**
+    * Public method to return how long the input of this client should not be read,
+    * because lines are held back by flood control.
+    * @return Nanoseconds until the held back lines may be retried, 0 if none are held back.
+    */
+    public long getPendingDelayNanos() {
+        if (pendingLines.isEmpty() || quitStatus.get()) {
+            return 0;
+        }
+        return Math.max(1, pendingUntilNanos - System.nanoTime());
+    }
+
+    /* Process a line unless flood control holds it back, returning how long to hold it back for. */
+    private long processLine(String line) {
+        CommandParser.parse(line, command);
+        long delay = throttle();
+        if (delay > 0) {
+            return delay;
+        }
+        ircS.getMetrics().recordIn(command.getVerb());
+        /* Check if the input contains one of the valid commands
+         specified in the protocol. */
+        if (command.getVerb() == Command.UNKNOWN_VERB) {
+            reply(Frame.of(ircS.getServerName() + ": Usage: " + "<command> <arguments>"));
+        }
+        else {
+            DISPATCH_TABLE[command.getVerb()].execute(this, command);
+        }
+        return 0;
+    }
+
+    /* Take the tokens the parsed command needs, a message to a channel also needs one of the channel.
+       The token of this client is only taken once the channel gave its own, so a line held back
+       by the channel and retried later costs this client one token in total. Nothing is taken while
+       the fan-out threads fall behind with the lines of this client or of the channel. */
+    private long throttle() {
+        int floodClass = FloodControl.classOf(command.getVerb());
+        if (floodClass == FloodControl.UNLIMITED) {
+            return 0;
+        }
+        if (floodClass != FloodControl.QUERIES && isOutboxFull()) {
+            // Held back like a flood until the fan-out threads delivered the lines of this client.
+            return TimeUnit.MILLISECONDS.toNanos(Configuration.FANOUT_RETRY_MILLIS);
+        }
+        long now = System.nanoTime();
+        TokenBucket bucket = floodBuckets[floodClass];
+        long delay;
+        if (floodClass == FloodControl.MEMBERSHIP && registered && command.hasArguments()) {
+            // Nor does joining or leaving a channel add to the lines the fan-out threads are behind with.
+            delay = ircS.checkChannelBacklog(command.getArguments());
+            if (delay > 0) {
+                floodClass = FloodControl.CHANNEL;
             }
             else {
-                partitionedLine = partitionKeyboardConditionally(originalLine, " ");
-                command = partitionedLine[0];
-                boolean validCommand = checkCommandValidity(command);
-                /* Check if the input contains one of the valid commands
-                 specified in the protocol. */
-                if (!validCommand) {
-                    //clientPw.println(command);
-                    printToWriter(ircS.getServerName() + ": Usage: " + "<command> <arguments>");
+                delay = bucket.tryAcquire(now);
+            }
+        }
+        else if (floodClass == FloodControl.MESSAGES && registered && command.hasArguments()) {
+            delay = bucket.nanosUntilToken(now);
+            if (delay == 0) {
+                delay = ircS.acquireChannelMessage(command.getArguments(), now);
+                if (delay > 0) {
+                    floodClass = FloodControl.CHANNEL;
                 }
                 else {
-                    /* Branch for "<command>-only operation",
-                       can be performed if the match is successful*/
-                    if (command.equals(Configuration.QUIT)) {
-                        requestQuit();
-                    }
-                    else if (command.equals(Configuration.TIME)) {
-                        printTime();
-                    }
-                    else if (command.equals(Configuration.INFO)) {
-                        requestInfo();
-                    }
-                    else if (command.equals(Configuration.LIST)) {
-                        requestList();
-                    }
-
-                   /* Branch for "<command> <arguments>-operation"
-                      <arguments> part might need further partition
-                      according to the specification of <command> */
-                    else {
-                        try {
-                            arguments = partitionedLine[1];
-                            if (command.equals(Configuration.NICK)) {
-                                setNickname(arguments);
-                            }
-                            else if (command.equals(Configuration.JOIN)) {
-                                requestJoin(arguments);
-                            }
-                            else if (command.equals(Configuration.PART)) {
-                                requestLeave(arguments);
-                            }
-                            else if (command.equals(Configuration.NAMES)) {
-                                requestNames(arguments);
-                            }
-                            else if (command.equals(Configuration.PRIVMSG)) {
-                                sendPrivateMsg(arguments);
-                            }
-                            else if (command.equals(Configuration.PING)) {
-                                requestPong(arguments);
-                            }
-                            else if (command.equals(Configuration.USER)) {
-                                setUser(arguments);
-                            }
-                        }
-                        catch (ArrayIndexOutOfBoundsException e) {
-                            printServerReply(Configuration.ERROR_CODE, Configuration.LACKED_USER_ARG);
-                        }
-
-                    }
+                    // Only this client's thread takes from its buckets, so the token is still left.
+                    bucket.tryAcquire(now);
                 }
             }
         }
+        else {
+            delay = bucket.tryAcquire(now);
+        }
+        if (delay > 0) {
+            ircS.getMetrics().recordThrottled(floodClass);
+        }
+        return delay;
+    }
+
+    /**
+    * Public method to release this client when its connection was closed
+    * by the peer, performing the same cleanup as a "QUIT" command.
+    */
+    public void handleConnectionLost() {
+        requestQuit();
+    }
+
+    /**
+     * Public method to set the wheel running the timeouts of this client, such as the deadline
+     * its connection is closed at once it was disconnected for reading too slowly.
+     * @param timingWheel Wheel whose advancing thread may send to this client.
+     */
+    public void setTimingWheel(TimingWheel timingWheel) {
+        this.timingWheel = timingWheel;
+    }
+
+    /**
+     * Public method to start sending this client a PING whenever it stayed silent for
+     * the ping interval of the server, and to close its connection if it does not answer.
+     * @param timingWheel Wheel running the keepalive, whose advancing thread may send to this client.
+     */
+    public void startKeepAlive(TimingWheel timingWheel) {
+        setTimingWheel(timingWheel);
+        this.keepAliveTimeout = timingWheel.schedule(this::checkKeepAlive, ircS.getPingIntervalMillis());
     }
 
     /**
@@ -134,12 +312,83 @@ public class ConnectionHandler implements Runnable {
         return this.nickname;
     }
 
+    /**
+     * Public method to record that this client was added to a channel, called by the Channel.
+     * @param channel The channel joined.
+     * @return False if the client already quit and its user ID may be freed, so it must not be added.
+     */
+    public boolean addJoinedChannel(Channel channel) {
+        int references = userIdReferences.get();
+        while (references > 0) {
+            if (userIdReferences.compareAndSet(references, references + 1)) {
+                joinedChannels.add(channel);
+                return true;
+            }
+            references = userIdReferences.get();
+        }
+        return false;
+    }
+
+    /**
+     * Public method to record that this client was removed from a channel, called by the Channel.
+     * @param channel The channel left.
+     */
+    public void removeJoinedChannel(Channel channel) {
+        joinedChannels.remove(channel);
+        releaseUserId();
+    }
+
+    /**
+     * Public method to set the user ID the server assigned to this client at its registration.
+     * @param userId A positive ID.
+     */
+    public void setUserId(int userId) {
+        this.userId = userId;
+        userIdReferences.set(1);
+    }
+
+    /**
+     * Public getter to return the user ID of this client.
+     * @return The ID assigned at registration, 0 if the client never registered.
+     */
+    public int getUserId() {
+        return userId;
+    }
+
+    /**
+     * Public method to drop a reference to the user ID of this client, such as its registration once
+     * it quit; the server frees the ID with the last reference.
+     */
+    public void releaseUserId() {
+        if (userIdReferences.decrementAndGet() == 0) {
+            ircS.releaseUserId(userId);
+        }
+    }
+
+    /**
+     * Public method to return the channels this client is currently joined to.
+     * @return A copy of the joined channels.
+     */
+    public List<Channel> getJoinedChannels() {
+        return new ArrayList<>(joinedChannels);
+    }
+
+    /**
+     * Public method to return the number of bytes queued for this client and not written yet.
+     * @return The number of queued bytes.
+     */
+    public long getQueuedBytes() {
+        return transport.getQueuedBytes();
+    }
+
     /**
      * Public method to set the IRC Server this client connected to.
      * @param ircS The IRC Server this client connected to.
      */
     public void setIrcServer(IrcServer ircS) {
         this.ircS = ircS;
+        this.replies = new ReplyEncoder(ircS.getReplyPrefix());
+        this.floodBuckets = ircS.getFloodControl().newConnectionBuckets();
     }
 
     /**
@@ -147,17 +396,144 @@ public class ConnectionHandler implements Runnable {
      * @param text String to be sent.
      */
     public void printToWriter(String text) {
-        this.clientPw.println(text);
+        if (!this.transport.sendLine(text)) {
+            disconnectSlowConsumer();
+        }
     }
 
-    private boolean checkCommandValidity(String command) {
-        for (int counter = 0; counter < Configuration.COMMANDSET.length; counter++) {
-            //System.out.println(Configuration.COMMANDSET[counter]);
-            if (command.equals(Configuration.COMMANDSET[counter])) {
-                return true;
+    /**
+     * Public method to send an already encoded line to this client,
+     * used when the same line is delivered to many clients.
+     * @param frame Encoded line to be sent.
+     */
+    public void sendFrame(Frame frame) {
+        if (!this.transport.sendFrame(frame)) {
+            disconnectSlowConsumer();
+        }
+    }
+
+    /**
+     * Public method to send a line of this client to other clients of this server, such as a private
+     * message or its QUIT line, never before the lines it handed over to the FanOutLanes of large channels
+     * earlier: while any of those waits, the line waits in the outbox of this client behind them.
+     * @param frame Encoded line to be sent.
+     * @param receivers The clients to send it to.
+     */
+    public void sendToClients(Frame frame, ConnectionHandler[] receivers) {
+        OutboxLine line = new OutboxLine(frame, null, receivers);
+        if (!holdInOutbox(line)) {
+            deliverLine(line);
+        }
+    }
+
+    /**
+     * Public method to deliver a line of this client to the other members of a channel, which
+     * was given the line itself already, in order with its other lines, see {@link #sendToClients}.
+     * @param frame Encoded line to be sent.
+     * @param channel The channel the line is sent to.
+     */
+    public void sendToChannel(Frame frame, Channel channel) {
+        OutboxLine line = new OutboxLine(frame, channel, null);
+        if (!holdInOutbox(line)) {
+            deliverLine(line);
+        }
+    }
+
+    /**
+     * Public method to count a line of this client which is handed over to a FanOutLane,
+     * its next lines to other clients then wait in its outbox until the lane called {@link #broadcastDelivered}.
+     */
+    public void broadcastSubmitted() {
+        outboxLock.lock();
+        try {
+            pendingBroadcasts++;
+        }
+        finally {
+            outboxLock.unlock();
+        }
+    }
+
+    /**
+     * Public method called by a FanOutLane once a line of this client was delivered. In the nio mode the
+     * Frames may still wait among the tasks of the Reactors, so the outbox is sent by the Reactor of this
+     * client after its tasks, and reaches the Reactors of the receivers after the Frames handed over to them.
+     */
+    public void broadcastDelivered() {
+        transport.execute(this::countDelivered);
+    }
+
+    /* Whether the lines of this client waiting for the fan-out threads are as many as a lane may hold. */
+    private boolean isOutboxFull() {
+        outboxLock.lock();
+        try {
+            return pendingBroadcasts + outbox.size() >= Configuration.FANOUT_MAX_PENDING;
+        }
+        finally {
+            outboxLock.unlock();
+        }
+    }
+
+    /* Queue the line in the outbox unless nothing it must not overtake is waiting. */
+    private boolean holdInOutbox(OutboxLine line) {
+        outboxLock.lock();
+        try {
+            if (pendingBroadcasts == 0 && !flushingOutbox && outbox.isEmpty()) {
+                return false;
+            }
+            outbox.add(line);
+            return true;
+        }
+        finally {
+            outboxLock.unlock();
+        }
+    }
+
+    private void countDelivered() {
+        boolean flush;
+        outboxLock.lock();
+        try {
+            pendingBroadcasts--;
+            flush = pendingBroadcasts == 0 && !flushingOutbox && !outbox.isEmpty();
+            if (flush) {
+                flushingOutbox = true;
+            }
+        }
+        finally {
+            outboxLock.unlock();
+        }
+        if (flush) {
+            flushOutbox();
+        }
+    }
+
+    /* Send the lines of the outbox in order, until one of them is handed over to a FanOutLane again. */
+    private void flushOutbox() {
+        while (true) {
+            OutboxLine next;
+            outboxLock.lock();
+            try {
+                next = pendingBroadcasts == 0 ? outbox.poll() : null;
+                if (next == null) {
+                    flushingOutbox = false;
+                    return;
+                }
+            }
+            finally {
+                outboxLock.unlock();
+            }
+            deliverLine(next);
+        }
+    }
+
+    private void deliverLine(OutboxLine line) {
+        if (line.channel != null) {
+            line.channel.deliverToMembers(line.frame, this);
+        }
+        else {
+            for (ConnectionHandler poll: line.receivers) {
+                poll.sendFrame(line.frame);
             }
         }
-        return false;
     }
 
     private void printTime() {
@@ -170,7 +546,7 @@ public class ConnectionHandler implements Runnable {
             printServerReply(Configuration.ERROR_CODE, Configuration.NOT_REGISTERED);
         }
         else {
-            if (channelName.matches(Configuration.CHANNELNAME_VALIDITY_REGEX)) {
+            if (CommandParser.isValidChannelName(channelName)) {
                 ircS.handleJoinRequest(channelName, this);
             }
             else {
@@ -202,37 +578,260 @@ public class ConnectionHandler implements Runnable {
                 printServerReply(Configuration.ERROR_CODE, Configuration.CHANNEL_NOT_FOUND);
             }
             else {
-                String text = " " + channelName + " :" + ircS.handleNamesRequest(channelName);
-                printServerReply(Configuration.NAMES_EXIST_CODE, text);
+                reply(replies.begin(Configuration.NAMES_EXIST_CODE).appendParameter("=")
+                        .appendParameter(channelName)
+                        .appendTrailing(ircS.handleNamesRequest(channelName)).toFrame());
+            }
+        }
+    }
+
+    /* Without masks every channel is listed by name only, with masks the matching
+       channels are listed with their number of members as "<channel> <members> :". */
+    private void requestList(String masks) {
+        if (!registered) {
+            printServerReply(Configuration.ERROR_CODE, Configuration.NOT_REGISTERED);
+        }
+        else {
+            for (Channel room : ircS.handleListRequest(masks)) {
+                replies.begin(Configuration.LIST_CHAN_CODE).appendParameter(room.getChannelname());
+                if (masks != null) {
+                    replies.appendParameter(Integer.toString(room.getCurrentClientsNum())).appendTrailing("");
+                }
+                reply(replies.toFrame());
+            }
+            printServerReply(Configuration.LIST_END_CODE, Configuration.END_OF_LIST);
+        }
+    }
+
+    private void requestStats() {
+        if (!registered) {
+            printServerReply(Configuration.ERROR_CODE, Configuration.NOT_REGISTERED);
+        }
+        else {
+            for (Map.Entry<String, Long> metric : ircS.getMetricsSnapshot().entrySet()) {
+                reply(replies.begin(Configuration.STATS_CODE)
+                        .appendTrailing(metric.getKey() + " " + metric.getValue()).toFrame());
             }
+            printServerReply(Configuration.STATS_END_CODE, Configuration.END_OF_STATS);
         }
     }
 
-    private void requestList() {
+    /* "LATEST <channel> * <limit>" or "AFTER <channel> timestamp=<time> <limit>". */
+    private void requestHistory(String originalArguments) {
+        String[] words = CommandParser.splitWords(originalArguments);
+        int limit = words.length == HISTORY_WORDS ? parseHistoryLimit(words[HISTORY_WORDS - 1]) : -1;
         if (!registered) {
             printServerReply(Configuration.ERROR_CODE, Configuration.NOT_REGISTERED);
         }
+        else if (limit <= 0 || !CommandParser.isValidChannelName(words[1])) {
+            printServerReply(Configuration.ERROR_CODE, Configuration.INVALID_CHATHISTORY_ARG);
+        }
+        else if (words[0].equals(Configuration.HISTORY_LATEST) && words[2].equals("*")) {
+            ChannelHistory history = ircS.findChannelHistory(words[1]);
+            replayHistory(words[1], history == null ? new ArrayList<>() : history.latest(limit));
+        }
+        else if (words[0].equals(Configuration.HISTORY_AFTER)
+                && words[2].startsWith(Configuration.HISTORY_TIMESTAMP_PREFIX)) {
+            Instant after = parseHistoryTime(words[2].substring(Configuration.HISTORY_TIMESTAMP_PREFIX.length()));
+            if (after == null) {
+                printServerReply(Configuration.ERROR_CODE, Configuration.INVALID_CHATHISTORY_ARG);
+            }
+            else {
+                ChannelHistory history = ircS.findChannelHistory(words[1]);
+                replayHistory(words[1], history == null ? new ArrayList<>()
+                        : history.after(after.toEpochMilli(), limit));
+            }
+        }
         else {
-            String originalChannelNames = ircS.handleListRequest();
-            printServerReply(Configuration.LIST_CHAN_CODE, originalChannelNames);
+            printServerReply(Configuration.ERROR_CODE, Configuration.INVALID_CHATHISTORY_ARG);
+        }
+    }
+
+    /* Send the original lines, enclosed in a batch and tagged with the time they were sent
+       as far as the client enabled those capabilities. */
+    private void replayHistory(String channelName, List<ChannelHistory.HistoryEntry> lines) {
+        String reference = batchCapability ? ircS.newHistoryBatchReference() : null;
+        if (batchCapability) {
+            reply(Frame.of(":" + ircS.getServerName() + " " + Configuration.BATCH + " +" + reference
+                    + " " + Configuration.HISTORY_BATCH_TYPE + " " + channelName));
+        }
+        for (ChannelHistory.HistoryEntry poll: lines) {
+            String tags = "";
+            if (batchCapability) {
+                tags = "batch=" + reference;
+            }
+            if (serverTimeCapability) {
+                tags += (tags.isEmpty() ? "" : ";") + "time=" + HISTORY_TIME.format(Instant.ofEpochMilli(poll.getTimestamp()));
+            }
+            reply(Frame.of(tags.isEmpty() ? poll.getLine() : "@" + tags + " " + poll.getLine()));
+        }
+        if (batchCapability) {
+            reply(Frame.of(":" + ircS.getServerName() + " " + Configuration.BATCH + " -" + reference));
+        }
+    }
+
+    /* "LS", "REQ :<capabilities>" or "END"; any client may negotiate, registered or not. */
+    private void requestCapabilities(String originalArguments) {
+        String[] words = CommandParser.splitWords(originalArguments);
+        if (words.length == 1 && words[0].equals(Configuration.CAP_LS)) {
+            reply(replies.begin(Configuration.CAP).appendParameter(Configuration.CAP_LS)
+                    .appendTrailing(Configuration.CAP_BATCH + " " + Configuration.CAP_SERVER_TIME).toFrame());
+        }
+        else if (words.length > 1 && words[0].equals(Configuration.CAP_REQ)) {
+            String requested = originalArguments.substring(originalArguments.indexOf(words[1]));
+            if (requested.startsWith(":")) {
+                requested = requested.substring(1);
+            }
+            String[] capabilities = CommandParser.splitWords(requested);
+            String answer = capabilities.length > 0 && enableCapabilities(capabilities)
+                    ? Configuration.CAP_ACK : Configuration.CAP_NAK;
+            reply(replies.begin(Configuration.CAP).appendParameter(answer).appendTrailing(requested).toFrame());
+        }
+        else if (words.length == 1 && words[0].equals(Configuration.CAP_END)) {
+            // Registration is not held back by the negotiation, so there is nothing left to do.
+            return;
+        }
+        else {
+            printServerReply(Configuration.ERROR_CODE, Configuration.INVALID_CAP_ARG);
+        }
+    }
+
+    /* Enable, or with a '-' prefix disable, the capabilities if all of them are known, else change nothing. */
+    private boolean enableCapabilities(String[] capabilities) {
+        for (String capability: capabilities) {
+            String name = capability.startsWith("-") ? capability.substring(1) : capability;
+            if (!name.equals(Configuration.CAP_BATCH) && !name.equals(Configuration.CAP_SERVER_TIME)) {
+                return false;
+            }
+        }
+        for (String capability: capabilities) {
+            boolean enable = !capability.startsWith("-");
+            if (capability.endsWith(Configuration.CAP_BATCH)) {
+                batchCapability = enable;
+            }
+            else {
+                serverTimeCapability = enable;
+            }
+        }
+        return true;
+    }
+
+    private static int parseHistoryLimit(String limit) {
+        try {
+            return Math.min(Integer.parseInt(limit), Configuration.HISTORY_MAX_LIMIT);
+        }
+        catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    private static Instant parseHistoryTime(String time) {
+        try {
+            return Instant.parse(time);
+        }
+        catch (DateTimeParseException dtpe) {
+            return null;
         }
     }
 
     private void requestQuit() {
+        if (quitStatus.compareAndSet(false, true)) {
+            releaseConnection();
+        }
+    }
+
+    /**
+    * Disconnect this client because its outbound queue overflowed,
+    * which may be detected by the thread of any client sending to it.
+    */
+    private void disconnectSlowConsumer() {
+        if (quitStatus.compareAndSet(false, true)) {
+            ircS.recordSlowConsumerDisconnect();
+            transport.sendLine(Configuration.ERROR + " :" + Configuration.SLOW_CONSUMER);
+            releaseConnection();
+            abortAfterLinger();
+        }
+    }
+
+    /* Run by the TimingWheel, then re-armed for whenever the client is due to be checked next. */
+    private void checkKeepAlive() {
+        // A reload may have turned the keepalive off.
+        if (quitStatus.get() || ircS.getPingIntervalMillis() <= 0) {
+            return;
+        }
+        long now = TimingWheel.nowMillis();
+        long lastActivity = lastActivityMillis;
+        long delay;
+        if (awaitingPong && lastActivity < pingSentMillis) {
+            if (now - pingSentMillis >= ircS.getPingTimeoutMillis()) {
+                disconnectUnresponsive();
+                return;
+            }
+            delay = pingSentMillis + ircS.getPingTimeoutMillis() - now;
+        }
+        else if (now - lastActivity >= ircS.getPingIntervalMillis()) {
+            awaitingPong = true;
+            pingSentMillis = now;
+            sendFrame(Frame.of(Configuration.PING + " :" + ircS.getServerName()));
+            ircS.getMetrics().recordOut(Configuration.PING, 1);
+            delay = ircS.getPingTimeoutMillis();
+        }
+        else {
+            awaitingPong = false;
+            delay = lastActivity + ircS.getPingIntervalMillis() - now;
+        }
+        keepAliveTimeout = timingWheel.schedule(this::checkKeepAlive, delay);
+    }
+
+    /**
+     * Public method to disconnect this client, such as after a nickname collision with a user of another server.
+     * @param reason Text of the ERROR line sent to the client before its connection is closed.
+     */
+    public void disconnect(String reason) {
+        if (quitStatus.compareAndSet(false, true)) {
+            transport.sendLine(Configuration.ERROR + " :" + reason);
+            releaseConnection();
+        }
+    }
+
+    /* Disconnect this client because it did not answer a PING within the ping timeout. */
+    private void disconnectUnresponsive() {
+        if (quitStatus.compareAndSet(false, true)) {
+            ircS.recordPingTimeoutDisconnect();
+            transport.sendLine(Configuration.ERROR + " :" + Configuration.PING_TIMEOUT);
+            releaseConnection();
+            abortAfterLinger();
+        }
+    }
+
+    private void releaseConnection() {
+        TimingWheel.Timeout timeout = keepAliveTimeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
         if (registered) {
             ircS.handleQuitRequest(":" + nickname + " " + Configuration.QUIT, this);
         }
         ircS.removeConnectionReference(this);
-        this.setIrcServer(null);
-        closeCloseable(clientBr);
-        closeCloseable(clientIs);
-        closeCloseable(clientPw);
-        closeCloseable(clientOs);
-        quitStatus = true;
+        // Closing the transport closes the socket, and with it the input,
+        // once the queued replies such as the QUIT line have been written.
+        transport.close();
+    }
+
+    /* A slow or unresponsive client which does not read never lets close() finish,
+       so its connection is closed anyway once it had a short while to take the ERROR line. */
+    private void abortAfterLinger() {
+        TimingWheel wheel = timingWheel;
+        if (wheel == null) {
+            transport.abort();
+        }
+        else {
+            wheel.schedule(transport::abort, Configuration.DISCONNECT_LINGER_MILLIS);
+        }
     }
 
     private void requestPong(String text) {
-        printToWriter(Configuration.PONG + " " + text);
+        reply(Frame.of(Configuration.PONG + " " + text));
     }
 
     private void sendPrivateMsg(String originalArguments) {
@@ -240,18 +839,17 @@ public class ConnectionHandler implements Runnable {
             printServerReply(Configuration.ERROR_CODE, Configuration.NOT_REGISTERED);
         }
         else {
-            String[] partitionedArguments
-                    = partitionKeyboardConditionally(originalArguments, Configuration.PRIVMSG_REGEX);
-            String target = partitionedArguments[0];
-            if (partitionedArguments.length < 2 || target.contains(" ")) {
+            int delimiter = CommandParser.indexOfPrivmsgDelimiter(originalArguments);
+            if (delimiter < 0 || originalArguments.lastIndexOf(' ', delimiter - 1) >= 0) {
                 printServerReply(Configuration.ERROR_CODE, Configuration.INVALID_PRIVMSG_ARG);
             }
             else {
+                String target = originalArguments.substring(0, delimiter);
                 String text = ":" + this.nickname + " " + Configuration.PRIVMSG
-                        + " " + target + " :" + partitionedArguments[1];
-                if (target.matches(Configuration.CHANNELNAME_VALIDITY_REGEX)) {
+                        + " " + target + " :" + originalArguments.substring(delimiter + 2);
+                if (CommandParser.isValidChannelName(target)) {
                     if (ircS.checkChannelExistence(target)) {
-                        ircS.handleBroadcastMsgRequest(target, text);
+                        ircS.handleBroadcastMsgRequest(target, text, this);
                     }
                     else {
                         printServerReply(Configuration.ERROR_CODE, Configuration.CHANNEL_NOT_FOUND);
@@ -260,7 +858,7 @@ public class ConnectionHandler implements Runnable {
                 }
                 else {
                     if (ircS.checkUserExistence(target)) {
-                        ircS.handlePrivateMsgRequest(target, text);
+                        ircS.handlePrivateMsgRequest(target, text, this);
                     }
                     else {
                         printServerReply(Configuration.ERROR_CODE, Configuration.USER_NOT_FOUND);
@@ -270,11 +868,28 @@ public class ConnectionHandler implements Runnable {
         }
     }
     private void setNickname(String nickname) {
-        if (nickname.matches(Configuration.NICK_VALIDITY_REGEX)) {
-            this.nickname = nickname;
+        if (!CommandParser.isValidNickname(nickname)) {
+            printServerReply(Configuration.ERROR_CODE, Configuration.INVALID_NICK);
+        }
+        else if (nickname.equals(this.nickname)) {
+            return;
+        }
+        else if (registered) {
+            if (ircS.renameRegisteredUser(this.nickname, nickname, this)) {
+                this.nickname = nickname;
+                ircS.recordNicknameChange();
+                replies.setNickname(nickname);
+            }
+            else {
+                printServerReply(Configuration.ERROR_CODE, Configuration.NICK_IN_USE);
+            }
+        }
+        else if (ircS.checkUserExistence(nickname)) {
+            printServerReply(Configuration.ERROR_CODE, Configuration.NICK_IN_USE);
         }
         else {
-            printServerReply(Configuration.ERROR_CODE, Configuration.INVALID_NICK);
+            this.nickname = nickname;
+            replies.setNickname(nickname);
         }
     }
 
@@ -283,9 +898,8 @@ public class ConnectionHandler implements Runnable {
     }
 
     private void setUser(String originalArguments) {
-        String[] partitionedArguments = partitionKeyboardConditionally(originalArguments, Configuration.USER_PERMISSION_REGEX);
-        //clientPw.println(partitionedArguments[0]);
-        if (partitionedArguments.length < 2) {
+        int delimiter = CommandParser.indexOfUserDelimiter(originalArguments);
+        if (delimiter < 0) {
             printServerReply(Configuration.ERROR_CODE, Configuration.LACKED_USER_ARG);
         }
         else {
@@ -296,17 +910,23 @@ public class ConnectionHandler implements Runnable {
                 printServerReply(Configuration.ERROR_CODE, Configuration.NO_NICKNAME);
             }
             else {
-                String username = partitionedArguments[0];
-                String realname = partitionedArguments[1];
+                String username = originalArguments.substring(0, delimiter);
                 if (username.contains(" ")) {
                     printServerReply(Configuration.ERROR_CODE, Configuration.INVALID_USER_ARG);
                 }
+                // The nickname may have been taken by another client since NICK.
+                else if (!ircS.addRegisteredUser(this.nickname, this)) {
+                    printServerReply(Configuration.ERROR_CODE, Configuration.NICK_IN_USE);
+                }
                 else {
                     this.username = username;
-                    this.realname = realname;
+                    this.realname = originalArguments.substring(delimiter + CommandParser.getUserDelimiterLength());
                     this.registered = true;
-                    ircS.addRegisteredUser(this.nickname);
                     printServerReply(Configuration.USER_CODE, Configuration.USER_WELCOME);
+                    // Back in the channels it was in before the server restarted.
+                    for (String channelName : ircS.recordRegistration(this.nickname, username, this.realname)) {
+                        ircS.handleJoinRequest(channelName, this);
+                    }
                 }
             }
         }
@@ -318,50 +938,86 @@ public class ConnectionHandler implements Runnable {
     * depending on the needs of different methods.
     */
     private void printServerReply(String replyCode, String text) {
-        String reply = ":" + ircS.getServerName() + " " + replyCode
-                + " " + nickname;
-        String spaceColonPlusText = " :" + text;
-        String spaceEqualPlusText = " =" + text;
         if (replyCode.equals(Configuration.USER_CODE)) {
-            this.printToWriter(reply + spaceColonPlusText + ", " + nickname);
-        }
-        else if (replyCode.equals(Configuration.NAMES_EXIST_CODE)) {
-            this.printToWriter(reply + spaceEqualPlusText);
-        }
-        else if (replyCode.equals(Configuration.LIST_CHAN_CODE)) {
-            String intermediate = text.replaceAll("\\#", "\n" + reply + " #");
-            intermediate = intermediate.replaceFirst("\n", "") + "\n"
-                    + reply.replace(replyCode, Configuration.LIST_END_CODE) + " :" + Configuration.END_OF_LIST;
-            this.printToWriter(intermediate);
+            reply(replies.begin(replyCode).appendTrailing(text).append(", ").append(nickname).toFrame());
         }
         // Fix the bug of printing the nickname of the user instead of '*'
         // for the case of not enough arguments.
-        else if (text.contains(Configuration.LACKED_USER_ARG)) {
-            reply = ":" + ircS.getServerName() + " " + replyCode
-                    + " " + "*";
-            this.printToWriter(reply + spaceColonPlusText);
+        else if (text.equals(Configuration.LACKED_USER_ARG)) {
+            reply(replies.beginWithoutNickname(replyCode).appendTrailing(text).toFrame());
         }
         else {
-            this.printToWriter(reply + spaceColonPlusText);
+            reply(replies.begin(replyCode).appendTrailing(text).toFrame());
         }
     }
 
+    /* Send a reply to the command being processed, counted under its verb. */
+    private void reply(Frame frame) {
+        ircS.getMetrics().recordOut(command.getVerb(), 1);
+        sendFrame(frame);
+    }
 
-    private void closeCloseable(AutoCloseable closeable) {
-        if (closeable != null) {
-            try {
-                closeable.close();
+    /* Branch for "<command>-only operation" and for "<command> <arguments>-operation",
+       <arguments> part might need further partition according to the specification of <command>. */
+    private static CommandAction[] buildDispatchTable() {
+        CommandAction[] table = new CommandAction[Configuration.COMMANDSET.length];
+        register(table, Configuration.QUIT, (client, command) -> client.requestQuit());
+        register(table, Configuration.TIME, (client, command) -> client.printTime());
+        register(table, Configuration.INFO, (client, command) -> client.requestInfo());
+        register(table, Configuration.LIST, (client, command) -> client.requestList(
+                command.hasArguments() && !command.getArguments().isEmpty() ? command.getArguments() : null));
+        register(table, Configuration.STATS, (client, command) -> client.requestStats());
+        register(table, Configuration.NICK, requiringArguments(ConnectionHandler::setNickname));
+        register(table, Configuration.JOIN, requiringArguments(ConnectionHandler::requestJoin));
+        register(table, Configuration.PART, requiringArguments(ConnectionHandler::requestLeave));
+        register(table, Configuration.NAMES, requiringArguments(ConnectionHandler::requestNames));
+        register(table, Configuration.PRIVMSG, requiringArguments(ConnectionHandler::sendPrivateMsg));
+        register(table, Configuration.CHATHISTORY, requiringArguments(ConnectionHandler::requestHistory));
+        register(table, Configuration.CAP, requiringArguments(ConnectionHandler::requestCapabilities));
+        register(table, Configuration.PING, requiringArguments(ConnectionHandler::requestPong));
+        // Nothing to reply, receiving the line already counted as activity.
+        register(table, Configuration.PONG, (client, command) -> { });
+        register(table, Configuration.USER, requiringArguments(ConnectionHandler::setUser));
+        return table;
+    }
+
+    private static void register(CommandAction[] table, String verb, CommandAction action) {
+        table[CommandParser.lookupVerb(verb, 0, verb.length())] = action;
+    }
+
+    private static CommandAction requiringArguments(BiConsumer<ConnectionHandler, String> handler) {
+        return (client, command) -> {
+            if (command.hasArguments()) {
+                handler.accept(client, command.getArguments());
             }
-            catch (Exception e) {
-                System.err.println(e.getMessage());
+            else {
+                client.printServerReply(Configuration.ERROR_CODE, Configuration.LACKED_USER_ARG);
             }
-        }
+        };
     }
 
+    /**
+    * A line of this client waiting in its outbox, to the members of a channel or to some clients.
+    */
+    private static final class OutboxLine {
+
+        private final Frame frame;
+        /* Null for a line to the receivers. */
+        private final Channel channel;
+        private final ConnectionHandler[] receivers;
 
-    private String[] partitionKeyboardConditionally(String keyboard, String delimiter) {
-        String[] partitionedKeyboard = keyboard.split(delimiter, 2);
-        return partitionedKeyboard;
+        OutboxLine(Frame frame, Channel channel, ConnectionHandler[] receivers) {
+            this.frame = frame;
+            this.channel = channel;
+            this.receivers = receivers;
+        }
+    }
+
+    /**
+    * Action performed for one verb of {@link Configuration#COMMANDSET}.
+    */
+    private interface CommandAction {
+        void execute(ConnectionHandler client, Command command);
     }
 
     /**
@@ -374,9 +1030,16 @@ public class ConnectionHandler implements Runnable {
         try {
             processClientMessage();
         }
+        catch (IOException ioe) {
+            // Reading fails as expected once another thread closed the connection,
+            // otherwise the connection was lost, such as by a reset from the client.
+            handleConnectionLost();
+        }
         catch (Exception e) {
-            System.err.println(e.getMessage());
-            e.printStackTrace();
+            if (!quitStatus.get()) {
+                System.err.println(e.getMessage());
+                e.printStackTrace();
+            }
         }
     }
 }
@@ -0,0 +1,186 @@
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+* The broadcasts of one Channel handed over to the FanOutPool, delivered one after the other:
+* the chunks of a broadcast are delivered in parallel, but the next broadcast only starts once
+* every member was given the previous one, so each member receives the lines of the channel in
+* the order they were sent. At most one thread of the pool drains a lane at a time.
+* Handing a broadcast over never waits; once {@link Configuration#FANOUT_MAX_PENDING} broadcasts
+* are waiting the lane is backlogged, and the channel takes no more messages until it caught up.
+* The client a broadcast comes from is told once it was delivered, see {@link ConnectionHandler#broadcastDelivered}.
+*/
+public class FanOutLane {
+
+    private ReentrantLock lock;
+    /* Signalled whenever a broadcast was delivered. */
+    private Condition delivered;
+    /* The broadcast being delivered stays at the head until it is done. */
+    private Queue<Broadcast> pending;
+    private boolean draining;
+    private long submittedCount;
+    private long deliveredCount;
+    /* Size of pending, read without the lock by the senders. */
+    private volatile int pendingCount;
+
+    /**
+     * Create an empty lane.
+     */
+    public FanOutLane() {
+        this.lock = new ReentrantLock();
+        this.delivered = lock.newCondition();
+        this.pending = new ArrayDeque<>();
+    }
+
+    /**
+     * Public method to return whether every broadcast handed over was delivered, after which
+     * the channel may deliver a broadcast by itself without overtaking any.
+     * @return Whether nothing is pending.
+     */
+    public boolean isIdle() {
+        return pendingCount == 0;
+    }
+
+    /**
+     * Public method to return whether {@link Configuration#FANOUT_MAX_PENDING} broadcasts are waiting,
+     * so the members of the channel should not be read until the fan-out threads caught up.
+     * @return Whether the lane is backlogged.
+     */
+    public boolean isBacklogged() {
+        return pendingCount >= Configuration.FANOUT_MAX_PENDING;
+    }
+
+    /**
+     * Public method to hand a broadcast over, delivered after those handed over before, without waiting.
+     * If the pool does not accept it, the calling thread delivers the pending broadcasts itself.
+     * @param fanOut The pool delivering the broadcast.
+     * @param frame Encoded line to be sent.
+     * @param receivers The members to send it to, see {@link IntHashMap#snapshotValues}.
+     * @param skipped A member which was already given the Frame, or null.
+     * @param sender The client of this server the line comes from, told once it was delivered, or null.
+     */
+    public void submit(FanOutPool fanOut, Frame frame, Object[] receivers, ConnectionHandler skipped,
+            ConnectionHandler sender) {
+        // Whatever this Reactor sent before must not be overtaken by the fan-out threads.
+        Reactor.handOverOutboxes();
+        enqueue(fanOut, new Broadcast(frame, receivers, skipped, sender, null));
+    }
+
+    /**
+     * Public method to run a task once the broadcasts handed over so far were delivered, on the thread
+     * which delivered the last of them, or at once by the calling thread if none is waiting. Never waits.
+     * @param fanOut The pool delivering the broadcasts.
+     * @param task The task, such as sending a line which must not overtake the broadcasts.
+     */
+    public void runAfterSubmitted(FanOutPool fanOut, Runnable task) {
+        if (isIdle()) {
+            task.run();
+        }
+        else {
+            enqueue(fanOut, new Broadcast(null, null, null, null, task));
+        }
+    }
+
+    /**
+     * Public method to wait until every broadcast handed over so far was delivered,
+     * not for those handed over meanwhile. Must not be called by a Reactor or a thread of the FanOutPool.
+     */
+    public void awaitSubmitted() {
+        lock.lock();
+        try {
+            long target = submittedCount;
+            while (deliveredCount < target) {
+                delivered.awaitUninterruptibly();
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(FanOutPool fanOut, Broadcast broadcast) {
+        boolean start;
+        lock.lock();
+        try {
+            pending.add(broadcast);
+            pendingCount = pending.size();
+            submittedCount++;
+            start = !draining;
+            draining = true;
+        }
+        finally {
+            lock.unlock();
+        }
+        if (start && !fanOut.execute(() -> drain(fanOut))) {
+            drain(fanOut);
+        }
+    }
+
+    private void drain(FanOutPool fanOut) {
+        while (true) {
+            Broadcast next;
+            lock.lock();
+            try {
+                next = pending.peek();
+                if (next == null) {
+                    draining = false;
+                    return;
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+            try {
+                if (next.frame != null) {
+                    fanOut.deliver(next.frame, next.receivers, next.skipped);
+                }
+            }
+            finally {
+                lock.lock();
+                try {
+                    pending.remove();
+                    pendingCount = pending.size();
+                    deliveredCount++;
+                    delivered.signalAll();
+                }
+                finally {
+                    lock.unlock();
+                }
+                next.completed();
+            }
+        }
+    }
+
+    /**
+    * A Frame handed over to this lane and the members it is sent to,
+    * or only a task to be run once the broadcasts before it were delivered.
+    */
+    private static final class Broadcast {
+
+        private final Frame frame;
+        private final Object[] receivers;
+        private final ConnectionHandler skipped;
+        private final ConnectionHandler sender;
+        private final Runnable task;
+
+        Broadcast(Frame frame, Object[] receivers, ConnectionHandler skipped, ConnectionHandler sender, Runnable task) {
+            this.frame = frame;
+            this.receivers = receivers;
+            this.skipped = skipped;
+            this.sender = sender;
+            this.task = task;
+        }
+
+        /* Tell whoever waits for this broadcast that every member was given it. */
+        void completed() {
+            if (sender != null) {
+                sender.broadcastDelivered();
+            }
+            if (task != null) {
+                task.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,190 @@
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+* Threads delivering the broadcasts of large channels, so that the thread of the sender is not
+* kept busy for as long as it takes to reach tens of thousands of members. The members a broadcast
+* is delivered to are split into chunks of slots of the channel's member table, which the threads
+* of a ForkJoinPool deliver in parallel, taking chunks over from one another when they run out.
+* Each channel hands its broadcasts over through a FanOutLane, which keeps them in order.
+* A pool without threads is disabled, and every broadcast is delivered by the sender.
+*/
+public class FanOutPool {
+
+    /* Null if the pool is disabled. */
+    private ForkJoinPool pool;
+    private int chunkSlots;
+    private AtomicInteger threadCount;
+    /* The Reactors the connections belong to in the non-blocking mode, null in the other modes. */
+    private volatile Reactor[] reactors;
+    private LongAdder broadcasts;
+    private LongAdder chunks;
+
+    /**
+     * Create a pool, whose threads are only started once there is something to deliver.
+     * @param parallelism Number of threads, 0 to disable the pool.
+     * @param chunkSlots Number of slots of the member table delivered by one task.
+     */
+    public FanOutPool(int parallelism, int chunkSlots) {
+        this.threadCount = new AtomicInteger();
+        if (parallelism > 0) {
+            this.pool = new ForkJoinPool(parallelism, this::newThread, null, false);
+        }
+        this.chunkSlots = Math.max(1, chunkSlots);
+        this.broadcasts = new LongAdder();
+        this.chunks = new LongAdder();
+    }
+
+    /**
+     * Public method to return whether broadcasts may be handed over to this pool.
+     * @return Whether the pool has threads.
+     */
+    public boolean isEnabled() {
+        return pool != null;
+    }
+
+    /**
+     * Public setter to let the threads hand the Frames for a Reactor's connections over
+     * once per chunk rather than once per Frame.
+     * @param reactors All Reactors of the server.
+     */
+    public void setReactors(Reactor[] reactors) {
+        this.reactors = reactors;
+    }
+
+    /**
+     * Public method to return whether the calling thread is one of the threads of this pool,
+     * which must never wait for a broadcast to be delivered.
+     * @return Whether the caller is a fan-out thread.
+     */
+    public boolean inWorker() {
+        return pool != null && ForkJoinTask.getPool() == pool;
+    }
+
+    /**
+     * Public method to run a task on a thread of this pool.
+     * @param task The task, such as draining a FanOutLane.
+     * @return False if the pool is disabled or shut down, and the task has not been accepted.
+     */
+    public boolean execute(Runnable task) {
+        if (pool == null) {
+            return false;
+        }
+        try {
+            pool.execute(task);
+            return true;
+        }
+        catch (RejectedExecutionException ree) {
+            return false;
+        }
+    }
+
+    /**
+     * Public method to deliver a Frame to every client of a snapshot of a channel's members,
+     * chunk by chunk in parallel on a thread of this pool, or in one go on any other thread.
+     * Returns once every member was given the Frame.
+     * @param frame Encoded line to be sent.
+     * @param receivers The ConnectionHandlers, null for the empty slots, see {@link IntHashMap#snapshotValues}.
+     * @param skipped A receiver which was already given the Frame, or null.
+     */
+    public void deliver(Frame frame, Object[] receivers, ConnectionHandler skipped) {
+        broadcasts.increment();
+        if (inWorker()) {
+            new Chunk(frame, receivers, skipped, 0, receivers.length).invoke();
+        }
+        else {
+            deliverChunk(frame, receivers, skipped, 0, receivers.length);
+        }
+    }
+
+    /**
+     * Public method to stop accepting broadcasts and wait until those accepted are delivered.
+     * @param timeoutMillis Time in milliseconds to wait for.
+     * @return Whether every thread ended in time.
+     * @throws InterruptedException If the calling thread was interrupted while waiting.
+     */
+    public boolean shutdown(long timeoutMillis) throws InterruptedException {
+        if (pool == null) {
+            return true;
+        }
+        pool.shutdown();
+        return pool.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Public method to add the counters of this pool to a snapshot of the metrics.
+     * @param snapshot Metric name -> value, in the order they are reported.
+     */
+    public void addTo(Map<String, Long> snapshot) {
+        snapshot.put("fanout.broadcasts", broadcasts.sum());
+        snapshot.put("fanout.chunks", chunks.sum());
+    }
+
+    private void deliverChunk(Frame frame, Object[] receivers, ConnectionHandler skipped, int from, int to) {
+        chunks.increment();
+        Reactor[] group = reactors;
+        if (group != null) {
+            Reactor.collectDeliveries(group);
+        }
+        try {
+            for (int index = from; index < to; index++) {
+                ConnectionHandler poll = (ConnectionHandler) receivers[index];
+                if (poll != null && poll != skipped) {
+                    poll.sendFrame(frame);
+                }
+            }
+        }
+        finally {
+            if (group != null) {
+                Reactor.handOverDeliveries(group);
+            }
+        }
+    }
+
+    private ForkJoinWorkerThread newThread(ForkJoinPool owner) {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(owner);
+        thread.setName("fanout-" + threadCount.getAndIncrement());
+        return thread;
+    }
+
+    /**
+    * The slots from one index up to another, split in halves until they fit in a chunk.
+    */
+    private final class Chunk extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient Frame frame;
+        private final transient Object[] receivers;
+        private final transient ConnectionHandler skipped;
+        private final int from;
+        private final int to;
+
+        Chunk(Frame frame, Object[] receivers, ConnectionHandler skipped, int from, int to) {
+            this.frame = frame;
+            this.receivers = receivers;
+            this.skipped = skipped;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunkSlots) {
+                deliverChunk(frame, receivers, skipped, from, to);
+            }
+            else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Chunk(frame, receivers, skipped, from, middle),
+                        new Chunk(frame, receivers, skipped, middle, to));
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+import java.util.Arrays;
+
+/**
+* Flood control of an IrcServer. Commands are sorted into classes, and every connection
+* gets its own TokenBucket per class, while every channel gets one more bucket limiting
+* the messages sent to it by all its members together. A command finding its bucket empty
+* is not dropped but held back until a token is left, and its connection is not read meanwhile.
+* The limits are read from system properties such as irc.flood.messages.rate, and each class
+* has one TokenBucket.Limit shared by all its buckets, so a reload applies to every connection
+* and channel at once.
+*/
+public class FloodControl {
+
+    /**Class of the commands which are never limited, such as QUIT or PING.*/
+    public static final int UNLIMITED = -1;
+
+    /**Class of PRIVMSG.*/
+    public static final int MESSAGES = 0;
+
+    /**Class of JOIN and PART.*/
+    public static final int MEMBERSHIP = 1;
+
+    /**Class of NAMES, LIST, STATS and CHATHISTORY.*/
+    public static final int QUERIES = 2;
+
+    /**Aggregate class of the messages sent to a single channel.*/
+    public static final int CHANNEL = 3;
+
+    /**Number of classes, the classes of the connections first.*/
+    public static final int CLASS_COUNT = 4;
+
+    private static final String[] CLASS_NAMES = {
+        Configuration.FLOOD_MESSAGES, Configuration.FLOOD_MEMBERSHIP,
+        Configuration.FLOOD_QUERIES, Configuration.FLOOD_CHANNEL};
+
+    /* Verb index in Configuration.COMMANDSET -> class. */
+    private static final int[] VERB_CLASSES = buildVerbClasses();
+
+    private TokenBucket.Limit[] limits;
+
+    /**
+     * Read the limits of every class, falling back to the defaults in {@link Configuration}.
+     */
+    public FloodControl() {
+        limits = new TokenBucket.Limit[CLASS_COUNT];
+        for (int floodClass = 0; floodClass < CLASS_COUNT; floodClass++) {
+            limits[floodClass] = new TokenBucket.Limit(0, 1);
+        }
+        reload();
+    }
+
+    /**
+     * Public method to read the limits of every class again, applying them to the existing buckets.
+     */
+    public void reload() {
+        configure(MESSAGES, Configuration.FLOOD_MESSAGES_RATE, Configuration.FLOOD_MESSAGES_BURST);
+        configure(MEMBERSHIP, Configuration.FLOOD_MEMBERSHIP_RATE, Configuration.FLOOD_MEMBERSHIP_BURST);
+        configure(QUERIES, Configuration.FLOOD_QUERIES_RATE, Configuration.FLOOD_QUERIES_BURST);
+        configure(CHANNEL, Configuration.FLOOD_CHANNEL_RATE, Configuration.FLOOD_CHANNEL_BURST);
+    }
+
+    /**
+     * Public method to return the class a verb is limited by.
+     * @param verb Index of the verb in {@link Configuration#COMMANDSET}, or {@link Command#UNKNOWN_VERB}.
+     * @return One of the classes of a connection, or {@link #UNLIMITED}.
+     */
+    public static int classOf(int verb) {
+        return verb == Command.UNKNOWN_VERB ? UNLIMITED : VERB_CLASSES[verb];
+    }
+
+    /**
+     * Public method to return the name of a class, as used by its properties and metrics.
+     * @param floodClass One of the classes.
+     * @return The name of the class, such as "messages".
+     */
+    public static String getClassName(int floodClass) {
+        return CLASS_NAMES[floodClass];
+    }
+
+    /**
+     * Public method to create the buckets of a new connection, full.
+     * @return One TokenBucket per class of a connection, indexed by class.
+     */
+    public TokenBucket[] newConnectionBuckets() {
+        TokenBucket[] buckets = new TokenBucket[CHANNEL];
+        for (int floodClass = 0; floodClass < CHANNEL; floodClass++) {
+            buckets[floodClass] = new TokenBucket(limits[floodClass]);
+        }
+        return buckets;
+    }
+
+    /**
+     * Public method to create the bucket of a new channel, full.
+     * @return The TokenBucket limiting the messages sent to the channel.
+     */
+    public TokenBucket newChannelBucket() {
+        return new TokenBucket(limits[CHANNEL]);
+    }
+
+    private void configure(int floodClass, long defaultRate, long defaultBurst) {
+        String prefix = Configuration.FLOOD_PROPERTY_PREFIX + CLASS_NAMES[floodClass];
+        limits[floodClass].set(Long.getLong(prefix + Configuration.FLOOD_RATE_SUFFIX, defaultRate),
+                Long.getLong(prefix + Configuration.FLOOD_BURST_SUFFIX, defaultBurst));
+    }
+
+    private static int[] buildVerbClasses() {
+        int[] classes = new int[Configuration.COMMANDSET.length];
+        Arrays.fill(classes, UNLIMITED);
+        classes[verbIndex(Configuration.PRIVMSG)] = MESSAGES;
+        classes[verbIndex(Configuration.JOIN)] = MEMBERSHIP;
+        classes[verbIndex(Configuration.PART)] = MEMBERSHIP;
+        classes[verbIndex(Configuration.NAMES)] = QUERIES;
+        classes[verbIndex(Configuration.LIST)] = QUERIES;
+        classes[verbIndex(Configuration.STATS)] = QUERIES;
+        classes[verbIndex(Configuration.CHATHISTORY)] = QUERIES;
+        return classes;
+    }
+
+    private static int verbIndex(String verb) {
+        return CommandParser.lookupVerb(verb, 0, verb.length());
+    }
+}
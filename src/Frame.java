@@ -0,0 +1,138 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+* Represents one outbound line already encoded to bytes, including its line terminator.
+* A Frame is immutable, so the same instance can be queued to any number of clients
+* and a channel message only has to be encoded once however many members receive it.
+* A WebSocket connection sends the same bytes without the line terminator as the payload
+* of a message, unless the Frame is verbatim, such as a WebSocket control frame.
+*/
+public final class Frame {
+
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final String LINE_TERMINATOR = System.lineSeparator();
+
+    private static final byte LF = '\n';
+    private static final byte CR = '\r';
+
+    private final byte[] encoded;
+    private final boolean verbatim;
+
+    private Frame(byte[] encoded, boolean verbatim) {
+        this.encoded = encoded;
+        this.verbatim = verbatim;
+    }
+
+    /**
+     * Encode a line of text the same way a PrintWriter on the connection would print it.
+     * @param text Line to be encoded, without line terminator.
+     * @return The encoded Frame.
+     */
+    public static Frame of(String text) {
+        return new Frame((text + LINE_TERMINATOR).getBytes(CHARSET), false);
+    }
+
+    /**
+     * Wrap bytes that were already encoded, such as by the ReplyEncoder.
+     * @param bytes Array holding the encoded line, including its line terminator.
+     * @param length Number of bytes of the line, starting at index 0.
+     * @return A Frame holding its own copy of the bytes.
+     */
+    public static Frame copyOf(byte[] bytes, int length) {
+        return new Frame(Arrays.copyOf(bytes, length), false);
+    }
+
+    /**
+     * Wrap bytes which are written to any connection exactly as they are, not being a line.
+     * @param bytes The bytes, which must not be modified afterwards.
+     * @return A verbatim Frame over the bytes.
+     */
+    public static Frame verbatim(byte[] bytes) {
+        return new Frame(bytes, true);
+    }
+
+    /**
+     * Public getter to return whether the bytes are written as they are, even to a WebSocket connection.
+     * @return Whether this Frame is verbatim.
+     */
+    public boolean isVerbatim() {
+        return verbatim;
+    }
+
+    /**
+     * Public getter to return the number of encoded bytes of the line, without its line terminator.
+     * @return The length of the line in bytes.
+     */
+    public int lineLength() {
+        int length = encoded.length;
+        if (length > 0 && encoded[length - 1] == LF) {
+            length--;
+        }
+        if (length > 0 && encoded[length - 1] == CR) {
+            length--;
+        }
+        return length;
+    }
+
+    /**
+     * Public getter to return the number of encoded bytes, including the line terminator.
+     * @return The length of this Frame in bytes.
+     */
+    public int length() {
+        return encoded.length;
+    }
+
+    /**
+     * Public method to return a read-only view of the bytes with its own position,
+     * so every receiver can be written independently without copying.
+     * @return A new read-only ByteBuffer over the encoded bytes.
+     */
+    public ByteBuffer asBuffer() {
+        return ByteBuffer.wrap(encoded).asReadOnlyBuffer();
+    }
+
+    /**
+     * Public method to copy the encoded bytes into an array.
+     * @param destination Array to copy into.
+     * @param offset Index of the first byte to be written in the destination.
+     */
+    public void copyTo(byte[] destination, int offset) {
+        copyTo(destination, offset, encoded.length);
+    }
+
+    /**
+     * Public method to copy the first encoded bytes into an array.
+     * @param destination Array to copy into.
+     * @param offset Index of the first byte to be written in the destination.
+     * @param length Number of bytes to be copied, such as {@link #lineLength()}.
+     */
+    public void copyTo(byte[] destination, int offset, int length) {
+        System.arraycopy(encoded, 0, destination, offset, length);
+    }
+
+    /**
+     * Public method to copy a range of the encoded bytes into a buffer, as many as it has room for.
+     * @param destination Buffer in write mode.
+     * @param from Index of the first byte to be copied.
+     * @param to Index after the last byte to be copied, such as {@link #length()}.
+     * @return The number of bytes copied.
+     */
+    public int copyTo(ByteBuffer destination, int from, int to) {
+        int count = Math.min(destination.remaining(), to - from);
+        destination.put(encoded, from, count);
+        return count;
+    }
+
+    /**
+     * Public method to write the encoded bytes to a stream.
+     * @param os Stream to write to.
+     * @throws IOException If writing to the stream failed.
+     */
+    public void writeTo(OutputStream os) throws IOException {
+        os.write(encoded);
+    }
+}
@@ -0,0 +1,231 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+
+/**
+* Append-only log of the lines of one channel, stored in a directory as segments.
+* Each segment is a pair of memory-mapped files named after the number of its first line:
+* "<number>.log" holds the lines, each followed by '\n', and "<number>.idx" holds one
+* fixed-size entry per line with its timestamp, position and length, so the n-th line of a
+* segment and the first line after a point in time are found without scanning the lines.
+* Only the oldest segments beyond the retention are deleted. Appending is left to a single
+* thread, while any thread may read the lines published so far.
+*/
+public class HistoryLog {
+
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+    /* Timestamp (long), position (int) and length (int) of a line. */
+    private static final int INDEX_ENTRY_BYTES = 16;
+    private static final int POSITION_OFFSET = 8;
+    private static final int LENGTH_OFFSET = 12;
+    private static final byte LINE_TERMINATOR = '\n';
+
+    private Path directory;
+    private int segmentBytes;
+    private int maxSegments;
+    /* Oldest first, the last one is appended to. */
+    private List<Segment> segments;
+
+    /**
+     * Open the log in a directory, creating it if needed, and map the segments found there.
+     * @param directory Directory of the log.
+     * @param segmentBytes Size of the lines file of a segment.
+     * @param maxSegments Number of segments kept, the oldest ones beyond are deleted.
+     * @throws IOException If the directory or a segment cannot be opened.
+     */
+    public HistoryLog(Path directory, int segmentBytes, int maxSegments) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+        this.segments = new CopyOnWriteArrayList<>();
+        Files.createDirectories(directory);
+        List<Long> firstNumbers = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.endsWith(LOG_SUFFIX))
+                    .forEach(name -> firstNumbers.add(Long.parseLong(name.substring(0,
+                            name.length() - LOG_SUFFIX.length()))));
+        }
+        firstNumbers.sort(null);
+        for (long firstNumber : firstNumbers) {
+            segments.add(new Segment(directory, firstNumber, segmentBytes, getIndexEntries()));
+        }
+    }
+
+    /**
+     * Public getter to return the number of the oldest line kept.
+     * @return The number of the first line of the oldest segment.
+     */
+    public long getFirstNumber() {
+        return segments.isEmpty() ? 0 : segments.get(0).firstNumber;
+    }
+
+    /**
+     * Public getter to return the number the next line appended will get.
+     * @return One more than the number of the last line appended.
+     */
+    public long getNextNumber() {
+        return segments.isEmpty() ? 0 : segments.get(segments.size() - 1).getNextNumber();
+    }
+
+    /**
+     * Public method to append a line, to be called by a single thread.
+     * A line numbered past the next number leaves a gap, such as after lines were dropped.
+     * @param number Number of the line, at least the next number.
+     * @param timestamp Time in milliseconds since the epoch the line was sent at.
+     * @param line Encoded line, without line terminator.
+     * @throws IOException If a new segment cannot be created.
+     */
+    public void append(long number, long timestamp, byte[] line) throws IOException {
+        if (line.length + 1 > segmentBytes) {
+            return;
+        }
+        Segment current = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (current == null || current.getNextNumber() != number || !current.fits(line.length + 1)) {
+            current = new Segment(directory, number, segmentBytes, getIndexEntries());
+            segments.add(current);
+            while (segments.size() > maxSegments) {
+                segments.remove(0).delete(directory);
+            }
+        }
+        current.append(timestamp, line);
+    }
+
+    /**
+     * Public method to read the lines of a range of numbers, skipping those no longer kept.
+     * @param from Number of the first line.
+     * @param to Number after the last line.
+     * @return The lines, oldest first.
+     */
+    public List<ChannelHistory.HistoryEntry> read(long from, long to) {
+        List<ChannelHistory.HistoryEntry> lines = new ArrayList<>();
+        for (Segment segment : segments) {
+            long start = Math.max(from, segment.firstNumber);
+            long end = Math.min(to, segment.getNextNumber());
+            for (long number = start; number < end; number++) {
+                lines.add(segment.read((int) (number - segment.firstNumber)));
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Public method to find the first line sent after a point in time, by binary search over the indexes.
+     * @param timestamp Time in milliseconds since the epoch.
+     * @return The number of the first line sent later, or the next number if there is none.
+     */
+    public long findFirstAfter(long timestamp) {
+        for (Segment segment : segments) {
+            int count = segment.count;
+            if (count > 0 && segment.getTimestamp(count - 1) > timestamp) {
+                int low = 0;
+                int high = count - 1;
+                while (low < high) {
+                    int middle = (low + high) >>> 1;
+                    if (segment.getTimestamp(middle) > timestamp) {
+                        high = middle;
+                    }
+                    else {
+                        low = middle + 1;
+                    }
+                }
+                return segment.firstNumber + low;
+            }
+        }
+        return getNextNumber();
+    }
+
+    /* As many index entries as lines of an average length fit into the lines file. */
+    private int getIndexEntries() {
+        return segmentBytes / Configuration.HISTORY_AVERAGE_LINE_BYTES;
+    }
+
+    /**
+    * The two mapped files of a segment. The number of lines is published last,
+    * so a reader never sees an index entry before the line it points to.
+    */
+    private static final class Segment {
+
+        private final long firstNumber;
+        private final MappedByteBuffer lines;
+        private final MappedByteBuffer index;
+        private final int indexEntries;
+        private volatile int count;
+        /* Only touched by the appending thread. */
+        private int position;
+
+        Segment(Path directory, long firstNumber, int segmentBytes, int indexEntries) throws IOException {
+            this.firstNumber = firstNumber;
+            this.indexEntries = indexEntries;
+            this.lines = map(directory.resolve(fileName(firstNumber, LOG_SUFFIX)), segmentBytes);
+            this.index = map(directory.resolve(fileName(firstNumber, INDEX_SUFFIX)),
+                    indexEntries * INDEX_ENTRY_BYTES);
+            // The index is zero-filled past its last entry, and no line is empty.
+            int found = 0;
+            while (found < indexEntries && index.getInt(found * INDEX_ENTRY_BYTES + LENGTH_OFFSET) > 0) {
+                found++;
+            }
+            this.position = found == 0 ? 0 : index.getInt((found - 1) * INDEX_ENTRY_BYTES + POSITION_OFFSET)
+                    + index.getInt((found - 1) * INDEX_ENTRY_BYTES + LENGTH_OFFSET);
+            this.count = found;
+        }
+
+        long getNextNumber() {
+            return firstNumber + count;
+        }
+
+        boolean fits(int length) {
+            return count < indexEntries && position + length <= lines.capacity();
+        }
+
+        void append(long timestamp, byte[] line) {
+            lines.put(position, line);
+            lines.put(position + line.length, LINE_TERMINATOR);
+            int entry = count * INDEX_ENTRY_BYTES;
+            index.putLong(entry, timestamp);
+            index.putInt(entry + POSITION_OFFSET, position);
+            index.putInt(entry + LENGTH_OFFSET, line.length + 1);
+            position += line.length + 1;
+            count++;
+        }
+
+        long getTimestamp(int line) {
+            return index.getLong(line * INDEX_ENTRY_BYTES);
+        }
+
+        ChannelHistory.HistoryEntry read(int line) {
+            int entry = line * INDEX_ENTRY_BYTES;
+            byte[] bytes = new byte[index.getInt(entry + LENGTH_OFFSET) - 1];
+            lines.get(index.getInt(entry + POSITION_OFFSET), bytes);
+            return new ChannelHistory.HistoryEntry(firstNumber + line, index.getLong(entry),
+                    new String(bytes, CHARSET));
+        }
+
+        void delete(Path directory) throws IOException {
+            // The mappings stay valid for readers still holding this segment.
+            Files.deleteIfExists(directory.resolve(fileName(firstNumber, LOG_SUFFIX)));
+            Files.deleteIfExists(directory.resolve(fileName(firstNumber, INDEX_SUFFIX)));
+        }
+
+        private static MappedByteBuffer map(Path file, int size) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+
+        private static String fileName(long firstNumber, String suffix) {
+            return String.format("%020d", firstNumber) + suffix;
+        }
+    }
+}
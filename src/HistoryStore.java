@@ -0,0 +1,185 @@
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+* The ChannelHistory of every channel a message was sent to. If a history directory is set
+* by {@link Configuration#HISTORY_DIR_PROPERTY}, each channel gets a HistoryLog in a sub-directory
+* named after the URL-encoded channel name, and a single writer thread appends the queued lines
+* to the logs. The queue is bounded: if the disk cannot keep up, lines are left out of the logs
+* rather than slowing down the delivery of messages.
+*/
+public class HistoryStore implements Runnable {
+
+    /* Queued by stop(), ending the writer thread once the lines queued before it are appended. */
+    private static final Runnable STOP = () -> { };
+
+    private Map<String, ChannelHistory> histories;
+    /* Null if the lines are only kept in memory. */
+    private Path directory;
+    private volatile int capacity;
+    private int segmentBytes;
+    private int maxSegments;
+    private BlockingQueue<Runnable> appends;
+    private LongAdder droppedAppends;
+    private AtomicLong batchCounter;
+    private Thread writer;
+
+    /**
+     * Read the settings of the history, and start the writer thread if lines are logged to disk.
+     */
+    public HistoryStore() {
+        this.histories = new ConcurrentHashMap<>();
+        String path = System.getProperty(Configuration.HISTORY_DIR_PROPERTY);
+        this.directory = path == null || path.isEmpty() ? null : Paths.get(path);
+        reload();
+        this.segmentBytes = Integer.getInteger(Configuration.HISTORY_SEGMENT_BYTES_PROPERTY,
+                Configuration.HISTORY_SEGMENT_BYTES);
+        this.maxSegments = Math.max(1, Integer.getInteger(Configuration.HISTORY_SEGMENTS_PROPERTY,
+                Configuration.HISTORY_SEGMENTS));
+        this.appends = new LinkedBlockingQueue<>(Configuration.HISTORY_QUEUE_CAPACITY);
+        this.droppedAppends = new LongAdder();
+        this.batchCounter = new AtomicLong();
+        if (directory != null) {
+            writer = new Thread(this, "history-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    /**
+     * Public method to add a line sent to a channel to its history.
+     * @param channelName The name of the channel.
+     * @param line The line as delivered to the members.
+     */
+    public void append(String channelName, String line) {
+        histories.computeIfAbsent(channelName, this::newHistory).append(line);
+    }
+
+    /**
+     * Public method to return the history of a channel, without creating one for
+     * a channel that was never sent a message.
+     * @param channelName The name of the channel.
+     * @return The ChannelHistory of the channel, or null if it has none.
+     */
+    public ChannelHistory find(String channelName) {
+        ChannelHistory history = histories.get(channelName);
+        if (history == null && directory != null && Files.isDirectory(logDirectory(channelName))) {
+            // Sent messages before the server was restarted.
+            history = histories.computeIfAbsent(channelName, this::newHistory);
+        }
+        return history;
+    }
+
+    /**
+     * Public method to queue an append for the writer thread, never blocking.
+     * @param append Task appending a line to a log.
+     */
+    public void enqueue(Runnable append) {
+        if (!appends.offer(append)) {
+            droppedAppends.increment();
+        }
+    }
+
+    /**
+     * Public method to end the writer thread once the lines queued so far are appended.
+     * @param timeoutMillis Time in milliseconds to wait at most.
+     * @return Whether the writer thread ended in time.
+     * @throws InterruptedException If the calling thread was interrupted while waiting.
+     */
+    public boolean stop(long timeoutMillis) throws InterruptedException {
+        if (writer == null) {
+            return true;
+        }
+        if (appends.offer(STOP, timeoutMillis, TimeUnit.MILLISECONDS)) {
+            writer.join(Math.max(1, timeoutMillis));
+        }
+        return !writer.isAlive();
+    }
+
+    /**
+     * Public method to read the number of recent lines kept in memory again, which every
+     * channel follows from its next line on.
+     */
+    public void reload() {
+        capacity = Math.max(1, Integer.getInteger(Configuration.HISTORY_LINES_PROPERTY,
+                Configuration.HISTORY_LINES));
+    }
+
+    /**
+     * Public getter to return how many recent lines of a channel are kept in memory.
+     * @return The number of lines.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Public getter to return the size of the lines file of a segment.
+     * @return The size of a segment in bytes.
+     */
+    public int getSegmentBytes() {
+        return segmentBytes;
+    }
+
+    /**
+     * Public getter to return how many segments of a channel are kept.
+     * @return The number of segments kept per channel.
+     */
+    public int getMaxSegments() {
+        return maxSegments;
+    }
+
+    /**
+     * Public getter to return how many lines were left out of the logs because the queue was full.
+     * @return The number of dropped appends.
+     */
+    public long getDroppedAppends() {
+        return droppedAppends.sum();
+    }
+
+    /**
+     * Public method to return a new reference for a batch of history lines.
+     * @return A reference unique on this server.
+     */
+    public String newBatchReference() {
+        return Long.toString(batchCounter.incrementAndGet());
+    }
+
+    /**
+     * Append the queued lines to the logs until the server stops.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Runnable append = appends.take();
+                if (append == STOP) {
+                    return;
+                }
+                append.run();
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private ChannelHistory newHistory(String channelName) {
+        return new ChannelHistory(this, directory == null ? null : logDirectory(channelName));
+    }
+
+    private Path logDirectory(String channelName) {
+        return directory.resolve(URLEncoder.encode(channelName, StandardCharsets.UTF_8));
+    }
+}
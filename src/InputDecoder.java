@@ -0,0 +1,17 @@
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+* Represents the inbound side of a client connection, turning the bytes read
+* into the lines a ConnectionHandler processes, whether the client sends
+* plain lines or wraps them into WebSocket messages.
+*/
+public interface InputDecoder {
+
+    /**
+     * Consume all remaining bytes of the buffer, handing every completed line to the consumer.
+     * @param input Buffer in read mode, will be fully drained.
+     * @param lineConsumer Receiver of the decoded lines, without line terminators.
+     */
+    void decode(ByteBuffer input, Consumer<String> lineConsumer);
+}
@@ -0,0 +1,232 @@
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+* Map from positive ints to values, kept in two arrays with open addressing and linear probing,
+* without boxing the keys, such as the members of a Channel by user ID. Adding and removing cost
+* O(1) on average; the arrays are rebuilt when they fill up or mostly empty. A key is placed at
+* its own value modulo the size of the arrays unless taken, so keys assigned one after the other
+* are iterated in that order, along with their values.
+* Changes must be serialised by the caller, while any thread may iterate over the values at the
+* same time without a lock, seeing each of them either before or after a concurrent change.
+* @param <V> Type of the values.
+*/
+public class IntHashMap<V> {
+
+    /**Key of a slot which never held a value since the arrays were built.*/
+    public static final int FREE = 0;
+
+    /**Key of a slot whose value was removed, probing goes on past it.*/
+    public static final int REMOVED = -1;
+
+    /* Rebuilt once keys and removal markers fill more than 3 / 4 of the slots. */
+    private static final int LOAD_NUMERATOR = 3;
+    private static final int LOAD_DENOMINATOR = 4;
+    /* Rebuilt smaller once keys fill less than 1 / 8 of the slots. */
+    private static final int SHRINK_DIVISOR = 8;
+
+    /* Replaced as a whole by a rebuild, readers keep iterating over the arrays they started with. */
+    private volatile Slots slots;
+    private volatile int size;
+    private int removedCount;
+
+    /**
+     * Create an empty map of {@link Configuration#INT_MAP_MIN_CAPACITY} slots.
+     */
+    public IntHashMap() {
+        this.slots = new Slots(Configuration.INT_MAP_MIN_CAPACITY);
+        this.size = 0;
+        this.removedCount = 0;
+    }
+
+    /**
+     * Public getter to return the number of keys in this map.
+     * @return The number of keys.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Public method to return whether a key is in this map.
+     * @param key A positive int.
+     * @return Whether the key was added and not removed since.
+     */
+    public boolean containsKey(int key) {
+        return key > 0 && indexOf(slots, key) >= 0;
+    }
+
+    /**
+     * Public method to return the value of a key.
+     * @param key A positive int.
+     * @return The value, or null if the key is not in this map.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        Slots current = slots;
+        int index = key > 0 ? indexOf(current, key) : -1;
+        return index < 0 ? null : (V) current.values[index];
+    }
+
+    /**
+     * Public method to add a key with its value, unless the key is already in this map.
+     * @param key A positive int.
+     * @param value The value, not null.
+     * @return False if the key was already in this map, whose value is left unchanged.
+     */
+    public boolean putIfAbsent(int key, V value) {
+        if (key <= 0) {
+            throw new IllegalArgumentException("Only positive keys can be added!");
+        }
+        Slots current = slots;
+        int mask = current.keys.length - 1;
+        int target = -1;
+        int index = slotOf(mask, key);
+        int content = current.keys[index];
+        while (content != FREE) {
+            if (content == key) {
+                return false;
+            }
+            if (content == REMOVED && target < 0) {
+                target = index;
+            }
+            index = (index + 1) & mask;
+            content = current.keys[index];
+        }
+        if (target >= 0) {
+            removedCount--;
+        }
+        else {
+            target = index;
+        }
+        current.values[target] = value;
+        current.keys[target] = key;
+        size++;
+        if ((size + removedCount) * LOAD_DENOMINATOR > current.keys.length * LOAD_NUMERATOR) {
+            rebuild();
+        }
+        return true;
+    }
+
+    /**
+     * Public method to remove a key with its value.
+     * @param key A positive int.
+     * @return Whether the key was in this map.
+     */
+    public boolean remove(int key) {
+        Slots current = slots;
+        int index = key > 0 ? indexOf(current, key) : -1;
+        if (index < 0) {
+            return false;
+        }
+        current.keys[index] = REMOVED;
+        current.values[index] = null;
+        removedCount++;
+        size--;
+        if (size * SHRINK_DIVISOR < current.keys.length && current.keys.length > Configuration.INT_MAP_MIN_CAPACITY) {
+            rebuild();
+        }
+        return true;
+    }
+
+    /**
+     * Public method to return the keys of this map, in no particular order.
+     * @return A new array of the keys.
+     */
+    public int[] keys() {
+        int[] keys = slots.keys;
+        int[] found = new int[keys.length];
+        int count = 0;
+        for (int key: keys) {
+            if (key > 0) {
+                found[count++] = key;
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    /**
+     * Public method to pass every value of this map to an action.
+     * @param action Action receiving the values.
+     * @return The number of values passed to the action.
+     */
+    @SuppressWarnings("unchecked")
+    public int forEachValue(Consumer<V> action) {
+        Object[] values = slots.values;
+        int count = 0;
+        for (Object value: values) {
+            if (value != null) {
+                action.accept((V) value);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Public method to copy the values of this map as they are now, such as to pass them to an action later.
+     * @return A new array of the values at the indexes of their slots, null for the slots without a value.
+     */
+    public Object[] snapshotValues() {
+        return slots.values.clone();
+    }
+
+    /* Copy the keys and values into arrays sized for twice their number, dropping the removal markers. */
+    private void rebuild() {
+        Slots current = slots;
+        int capacity = Configuration.INT_MAP_MIN_CAPACITY;
+        while (capacity < size * 2) {
+            capacity <<= 1;
+        }
+        Slots rebuilt = new Slots(capacity);
+        int mask = capacity - 1;
+        for (int index = 0; index < current.keys.length; index++) {
+            int key = current.keys[index];
+            if (key > 0) {
+                int target = slotOf(mask, key);
+                while (rebuilt.keys[target] != FREE) {
+                    target = (target + 1) & mask;
+                }
+                rebuilt.keys[target] = key;
+                rebuilt.values[target] = current.values[index];
+            }
+        }
+        removedCount = 0;
+        slots = rebuilt;
+    }
+
+    /* The slot holding the key, or -1 if it is not in the arrays. */
+    private static int indexOf(Slots current, int key) {
+        int mask = current.keys.length - 1;
+        int index = slotOf(mask, key);
+        int content = current.keys[index];
+        while (content != FREE) {
+            if (content == key) {
+                return index;
+            }
+            index = (index + 1) & mask;
+            content = current.keys[index];
+        }
+        return -1;
+    }
+
+    /* The first slot probed for the key, folding its high bits in so that keys a multiple
+       of the number of slots apart do not all collide. */
+    private static int slotOf(int mask, int key) {
+        return (key ^ (key >>> Integer.bitCount(mask))) & mask;
+    }
+
+    /**
+    * The keys and the values at the same indexes, the number of slots being a power of two.
+    */
+    private static final class Slots {
+
+        private final int[] keys;
+        private final Object[] values;
+
+        Slots(int capacity) {
+            this.keys = new int[capacity];
+            this.values = new Object[capacity];
+        }
+    }
+}
@@ -1,10 +1,32 @@
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.io.Closeable;
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
 * Represents an IrcServer which can have multiple clients
@@ -14,46 +36,514 @@ import java.util.concurrent.ExecutorService;
 public class IrcServer {
 
     private String serverName;
+    /* ":<server_name> " encoded once, shared by the ReplyEncoder of every connection. */
+    private byte[] replyPrefix;
     private ExecutorService scalableThreadPool;
     private ServerSocket ircS;
-    private List<ConnectionHandler> allConnections;
-    private List<Channel> allChannels;
-    private List<String> registeredUsers;
-    private List<String> registeredChannels;
+    private Set<ConnectionHandler> allConnections;
+    /* Channel name -> Channel, a channel only exists while it has joined clients. */
+    private Map<String, Channel> allChannels;
+    /* Names of the channels in allChannels, kept sorted for LIST as channels open and close. */
+    private Set<String> sortedChannelNames;
+    /* Nickname -> ConnectionHandler of every registered user. */
+    private Map<String, ConnectionHandler> registeredUsers;
+    /* Compact IDs of the registered users, by which the channels hold their members. */
+    private UserIdPool userIds;
+    /* Incremented after every nickname change, invalidating cached renderings of nicknames. */
+    private AtomicLong nicknameVersion;
+    /* Settings which a reload may change while connections are served. */
+    private volatile long sendQueueMaxBytes;
+    private volatile int sendQueueMaxMessages;
+    private volatile String sendQueuePolicy;
+    private volatile boolean tcpNoDelay;
+    private volatile int receiveBufferBytes;
+    private volatile int sendBufferBytes;
+    private long flushWindowMillis;
+    private ScheduledExecutorService flushScheduler;
+    private WriteStats writeStats;
+    /* Direct buffers for the Reactors, heap buffers for the streams of the other modes; set once started. */
+    private volatile BufferPool bufferPool;
+    private Metrics metrics;
+    private MetricsEndpoint metricsEndpoint;
+    /* Delivers the broadcasts of the channels with at least fanOutThreshold members of this server. */
+    private FanOutPool fanOut;
+    private volatile int fanOutThreshold;
+    private volatile long pingIntervalMillis;
+    private volatile long pingTimeoutMillis;
+    /* Runs the keepalive and flood control delays of the thread-per-connection modes. */
+    private TimingWheel timingWheel;
+    private ScheduledExecutorService timerScheduler;
+    private FloodControl floodControl;
+    private LinkManager links;
+    private HistoryStore history;
+    private StateStore state;
+    /* The lifecycle, only set by the public constructors and start(). */
+    private int port;
+    private String mode;
+    private int backlog;
+    private int acceptorCount;
+    private volatile int boundPort;
+    private AtomicBoolean started;
+    private AtomicBoolean stopping;
+    private CountDownLatch ready;
+    private volatile IOException startFailure;
+    private List<Thread> acceptors;
+    private ServerSocketChannel serverChannel;
+    /* The listener of the WebSocket port in the mode served, if it is opened. */
+    private ServerSocket webSocketListener;
+    private ServerSocketChannel webSocketChannel;
+    private volatile int boundWebSocketPort;
+    private Reactor[] reactors;
+    private List<Thread> reactorThreads;
+    private AtomicInteger nextReactor;
+    /* Sockets of the thread-per-connection modes whose thread has not ended yet. */
+    private Set<Socket> openSockets;
 
     /**
-    * Open an IrcServer on specified port with specified server name,
-    * ready to listen for connection.
+    * Create an IrcServer on specified port with specified server name,
+    * serving every connection by its own thread once started.
     * @param serverName Name of the server.
-    * @param port Port number.
+    * @param port Port number, 0 for any free port.
     */
     public IrcServer(String serverName, int port) {
+        this(serverName, port, Configuration.MODE_THREADED);
+    }
+
+    /**
+    * Create an IrcServer on specified port with specified server name,
+    * serving the connections in the specified execution mode once started.
+    * Nothing is opened before start() is called.
+    * @param serverName Name of the server.
+    * @param port Port number, 0 for any free port.
+    * @param mode One of the modes in {@link Configuration#MODESET}.
+    */
+    public IrcServer(String serverName, int port, String mode) {
+        this(serverName);
         if (port < Configuration.PORTNUM_MIN || port > Configuration.PORTNUM_MAX) {
             throw new IllegalArgumentException("Out of the range of port numbers!");
         }
+        if (!Arrays.asList(Configuration.MODESET).contains(mode)) {
+            throw new IllegalArgumentException("Unknown execution mode!");
+        }
+        this.port = port;
+        this.mode = mode;
+        backlog = Integer.getInteger(Configuration.ACCEPT_BACKLOG_PROPERTY, Configuration.ACCEPT_BACKLOG);
+        acceptorCount = Math.max(1, Integer.getInteger(Configuration.ACCEPTORS_PROPERTY,
+                Configuration.ACCEPTORS));
+    }
+
+    /**
+    * Create an IrcServer without opening any port, whose connections are
+    * attached in-process, such as by the benchmarks.
+    * @param serverName Name of the server.
+    */
+    IrcServer(String serverName) {
+        this.serverName = serverName;
+        replyPrefix = ReplyEncoder.encodeServerPrefix(serverName);
+        allConnections = ConcurrentHashMap.newKeySet();
+        allChannels = new ConcurrentHashMap<>();
+        sortedChannelNames = new ConcurrentSkipListSet<>();
+        registeredUsers = new ConcurrentHashMap<>();
+        userIds = new UserIdPool();
+        nicknameVersion = new AtomicLong();
+        readSettings();
+        // Fail at startup rather than on the first connection.
+        newOutboundQueue();
+        flushWindowMillis = Long.getLong(Configuration.FLUSH_WINDOW_PROPERTY,
+                Configuration.FLUSH_WINDOW_MILLIS);
+        writeStats = new WriteStats();
+        metrics = new Metrics(writeStats);
+        fanOut = new FanOutPool(Integer.getInteger(Configuration.FANOUT_THREADS_PROPERTY,
+                Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger(Configuration.FANOUT_CHUNK_PROPERTY, Configuration.FANOUT_CHUNK_SLOTS));
+        floodControl = new FloodControl();
+        links = new LinkManager(this);
+        history = new HistoryStore();
+        state = new StateStore();
+        started = new AtomicBoolean(false);
+        stopping = new AtomicBoolean(false);
+        ready = new CountDownLatch(1);
+        acceptors = new CopyOnWriteArrayList<>();
+        reactorThreads = new CopyOnWriteArrayList<>();
+        nextReactor = new AtomicInteger();
+        openSockets = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Public method to start this server on a thread of its own, returning at once:
+     * the state is restored, the metrics endpoint and the server links are opened,
+     * the port is bound and the acceptor threads are started. See awaitReady().
+     */
+    public void start() {
+        if (!started.compareAndSet(false, true)) {
+            throw new IllegalStateException("The server was already started!");
+        }
+        new Thread(this::startServing, "irc-start").start();
+    }
+
+    /**
+     * Public method to wait until this server accepts connections, or failed to start.
+     * @throws IOException The failure the server did not start because of, after which it was stopped.
+     * @throws InterruptedException If the calling thread was interrupted while waiting.
+     */
+    public void awaitReady() throws IOException, InterruptedException {
+        ready.await();
+        if (startFailure != null) {
+            throw startFailure;
+        }
+    }
+
+    /**
+     * Public getter to return the port this server accepts connections on.
+     * @return The bound port, which is only known once the server is ready if it was created with 0.
+     */
+    public int getPort() {
+        return boundPort;
+    }
+
+    /**
+     * Public getter to return the pool the connections borrow their I/O buffers from.
+     * @return The BufferPool, or null before the server was started.
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Public getter to return the threads delivering the broadcasts of large channels.
+     * @return The FanOutPool, disabled if every broadcast is delivered by its sender.
+     */
+    public FanOutPool getFanOutPool() {
+        return fanOut;
+    }
+
+    /**
+     * Public getter to return the number of members of this server from which the broadcasts
+     * of a channel are handed over to the FanOutPool.
+     * @return The current threshold.
+     */
+    public int getFanOutThreshold() {
+        return fanOutThreshold;
+    }
+
+    /**
+     * Public getter to return the port this server accepts WebSocket clients on.
+     * @return The bound port, or 0 if WebSocket clients are not accepted.
+     */
+    public int getWebSocketPort() {
+        return boundWebSocketPort;
+    }
+
+    /**
+     * Public method to shut this server down gracefully: stop accepting connections, split the
+     * server links, write the state so the users are restored on the next start, send every client
+     * an ERROR line, then wait until their queued lines are written and their threads ended.
+     * Connections still open at the deadline are closed at once. May be called once, by any thread.
+     * @param timeoutMillis Time in milliseconds the shutdown may take.
+     * @return Whether every connection and thread ended before the deadline.
+     * @throws InterruptedException If the calling thread was interrupted while waiting.
+     */
+    public boolean stop(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        if (!stopping.compareAndSet(false, true)) {
+            return false;
+        }
+        closeQuietly(ircS);
+        closeQuietly(serverChannel);
+        closeQuietly(webSocketListener);
+        closeQuietly(webSocketChannel);
+        boolean ended = joinAll(acceptors, deadline);
+        if (metricsEndpoint != null) {
+            metricsEndpoint.stop();
+        }
+        links.stop();
+        // Written before the disconnections below, which would forget the users.
+        ended &= state.stop(remainingMillis(deadline));
+        // The lines already sent to large channels go out before the ERROR lines.
+        ended &= fanOut.shutdown(remainingMillis(deadline));
+        for (ConnectionHandler poll: allConnections) {
+            poll.disconnect(Configuration.SERVER_SHUTTING_DOWN);
+        }
+        if (reactors != null) {
+            for (Reactor reactor : reactors) {
+                reactor.stop(deadline);
+            }
+            ended &= joinAll(reactorThreads, deadline);
+        }
+        if (scalableThreadPool != null) {
+            while (!openSockets.isEmpty() && System.nanoTime() < deadline) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(Configuration.SHUTDOWN_POLL_MILLIS));
+            }
+            // Too late to wait for their output to be written.
+            ended &= openSockets.isEmpty();
+            for (Socket socket : openSockets) {
+                closeQuietly(socket);
+            }
+            scalableThreadPool.shutdown();
+            ended &= scalableThreadPool.awaitTermination(remainingMillis(deadline), TimeUnit.MILLISECONDS);
+        }
+        if (flushScheduler != null) {
+            flushScheduler.shutdown();
+        }
+        if (timerScheduler != null) {
+            timerScheduler.shutdownNow();
+        }
+        ended &= history.stop(remainingMillis(deadline));
+        ended &= links.awaitTermination(remainingMillis(deadline));
+        return ended;
+    }
+
+    private void startServing() {
         try {
-            this.serverName = serverName;
-            ircS = new ServerSocket(port);
-            /*Scalable thread pool that can run multiple threads.*/
-            this.scalableThreadPool = Executors.newCachedThreadPool();
-            allConnections = new ArrayList<>();
-            allChannels = new ArrayList<>();
-            registeredUsers = new ArrayList<>();
-            registeredChannels = new ArrayList<>();
-
-            while (true) {
-                Socket connection = ircS.accept();
+            state.start();
+            int metricsPort = Integer.getInteger(Configuration.METRICS_PORT_PROPERTY, 0);
+            if (metricsPort > 0) {
+                metricsEndpoint = new MetricsEndpoint(this, metricsPort);
+            }
+            links.start();
+            if (mode.equals(Configuration.MODE_NIO)) {
+                openReactors();
+            }
+            else if (mode.equals(Configuration.MODE_THREADED)) {
+                /*Scalable thread pool that can run multiple threads.*/
+                openThreaded(Executors.newCachedThreadPool());
+            }
+            else {
+                openThreaded(newVirtualThreadExecutor());
+            }
+            Integer webSocketPort = Integer.getInteger(Configuration.WEBSOCKET_PORT_PROPERTY);
+            if (webSocketPort != null) {
+                openWebSocket(webSocketPort);
+            }
+        }
+        catch (IOException ioe) {
+            startFailure = ioe;
+            try {
+                stop(0);
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        finally {
+            ready.countDown();
+        }
+    }
+
+    /* Start the Reactors, and share the accepted connections round-robin between them. */
+    private void openReactors() throws IOException {
+        bufferPool = new BufferPool(true, Long.getLong(Configuration.BUFFER_POOL_BYTES_PROPERTY,
+                Configuration.BUFFER_POOL_BYTES));
+        int count = Math.max(1, Integer.getInteger(Configuration.REACTORS_PROPERTY,
+                Runtime.getRuntime().availableProcessors()));
+        reactors = new Reactor[count];
+        for (int index = 0; index < count; index++) {
+            reactors[index] = new Reactor(this, index, reactors);
+        }
+        fanOut.setReactors(reactors);
+        for (int index = 0; index < count; index++) {
+            Thread reactorThread = new Thread(reactors[index], "reactor-" + index);
+            reactorThreads.add(reactorThread);
+            reactorThread.start();
+        }
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), backlog);
+        boundPort = serverChannel.socket().getLocalPort();
+        startAcceptors(() -> acceptReactors(serverChannel, false));
+    }
+
+    /* WebSocket clients are accepted by a thread of their own and served like the others. */
+    private void openWebSocket(int webSocketPort) throws IOException {
+        Runnable acceptor;
+        if (reactors != null) {
+            webSocketChannel = ServerSocketChannel.open();
+            webSocketChannel.bind(new InetSocketAddress(webSocketPort), backlog);
+            boundWebSocketPort = webSocketChannel.socket().getLocalPort();
+            acceptor = () -> acceptReactors(webSocketChannel, true);
+        }
+        else {
+            webSocketListener = new ServerSocket(webSocketPort, backlog);
+            boundWebSocketPort = webSocketListener.getLocalPort();
+            acceptor = () -> acceptThreaded(webSocketListener, true);
+        }
+        Thread acceptorThread = new Thread(acceptor, "websocket-acceptor");
+        acceptors.add(acceptorThread);
+        acceptorThread.start();
+    }
+
+    private void acceptReactors(ServerSocketChannel listener, boolean webSocket) {
+        while (!stopping.get()) {
+            try {
+                SocketChannel connection = listener.accept();
+                applySocketOptions(connection.socket());
+                reactors[Math.floorMod(nextReactor.getAndIncrement(), reactors.length)]
+                        .register(connection, webSocket);
+            }
+            catch (IOException ioe) {
+                reportAcceptFailure(ioe);
+                return;
+            }
+        }
+    }
+
+    private void openThreaded(ExecutorService threadPool) throws IOException {
+        this.scalableThreadPool = threadPool;
+        bufferPool = new BufferPool(false, Long.getLong(Configuration.BUFFER_POOL_BYTES_PROPERTY,
+                Configuration.BUFFER_POOL_BYTES));
+        timingWheel = new TimingWheel(Configuration.TIMER_WHEEL_SLOTS, Configuration.TIMER_TICK_MILLIS);
+        if (flushWindowMillis > 0) {
+            flushScheduler = Executors.newSingleThreadScheduledExecutor();
+        }
+        // The threads serving the connections block in read(), so one more thread turns the wheel.
+        timerScheduler = Executors.newSingleThreadScheduledExecutor();
+        timerScheduler.scheduleAtFixedRate(timingWheel::advance, timingWheel.getTickMillis(),
+                timingWheel.getTickMillis(), TimeUnit.MILLISECONDS);
+        ircS = new ServerSocket(port, backlog);
+        boundPort = ircS.getLocalPort();
+        startAcceptors(() -> acceptThreaded(ircS, false));
+    }
+
+    private void acceptThreaded(ServerSocket listener, boolean webSocket) {
+        while (!stopping.get()) {
+            try {
+                Socket connection = listener.accept();
                 // A pair of ClientThread and ConnectionHandler
                 // will only be opened until the connection was returned
-                ConnectionHandler newClient = new ConnectionHandler(connection);
-                newClient.setIrcServer(this);
-                allConnections.add(newClient);
-                scalableThreadPool.execute(newClient);
+                openThreadedConnection(connection, webSocket);
+            }
+            catch (IOException ioe) {
+                reportAcceptFailure(ioe);
+                return;
             }
         }
+    }
+
+    private void startAcceptors(Runnable acceptor) {
+        for (int index = 0; index < acceptorCount; index++) {
+            Thread acceptorThread = new Thread(acceptor, "acceptor-" + index);
+            acceptors.add(acceptorThread);
+            acceptorThread.start();
+        }
+    }
+
+    private void reportAcceptFailure(IOException ioe) {
+        // Closing the listening socket is how stop() ends the acceptors.
+        if (!stopping.get()) {
+            System.out.println("Unknown IOException thrown when accepting connections :" + ioe.getMessage());
+        }
+    }
+
+    private void openThreadedConnection(Socket connection, boolean webSocket) {
+        try {
+            applySocketOptions(connection);
+            SocketTransport transport = new SocketTransport(connection, newOutboundQueue(),
+                    scalableThreadPool, flushScheduler, flushWindowMillis, writeStats, bufferPool);
+            ConnectionHandler newClient;
+            if (webSocket) {
+                WebSocketCodec codec = new WebSocketCodec(Charset.defaultCharset());
+                transport.setWebSocket(codec);
+                newClient = new ConnectionHandler(connection.getInputStream(), transport, codec);
+                codec.setHandler(newClient);
+            }
+            else {
+                newClient = new ConnectionHandler(connection.getInputStream(), transport);
+            }
+            newClient.setIrcServer(this);
+            addConnection(newClient, timingWheel);
+            openSockets.add(connection);
+            scalableThreadPool.execute(() -> {
+                try {
+                    newClient.run();
+                }
+                finally {
+                    openSockets.remove(connection);
+                }
+            });
+        }
         catch (IOException ioe) {
-            System.out.println("Unknown IOException thrown when invoking IrcServer() :"
-                    + ioe.getMessage());
+            System.err.println(ioe.getMessage());
+        }
+    }
+
+    /**
+     * Public method to read the settings which may change while the server runs again, such as after
+     * the configuration file was reloaded. Send queue limits and socket options apply to the connections
+     * accepted from now on, while the ping interval, flood limits and history size apply to all of them.
+     */
+    public void reloadSettings() {
+        readSettings();
+        floodControl.reload();
+        history.reload();
+        System.out.println("Settings reloaded");
+    }
+
+    private void readSettings() {
+        sendQueueMaxBytes = Long.getLong(Configuration.SENDQ_BYTES_PROPERTY,
+                Configuration.SENDQ_MAX_BYTES);
+        sendQueueMaxMessages = Integer.getInteger(Configuration.SENDQ_MESSAGES_PROPERTY,
+                Configuration.SENDQ_MAX_MESSAGES);
+        sendQueuePolicy = System.getProperty(Configuration.SENDQ_POLICY_PROPERTY,
+                Configuration.SENDQ_POLICY_DISCONNECT);
+        pingIntervalMillis = Long.getLong(Configuration.PING_INTERVAL_PROPERTY,
+                Configuration.PING_INTERVAL_MILLIS);
+        pingTimeoutMillis = Long.getLong(Configuration.PING_TIMEOUT_PROPERTY,
+                Configuration.PING_TIMEOUT_MILLIS);
+        tcpNoDelay = Boolean.getBoolean(Configuration.TCP_NODELAY_PROPERTY);
+        receiveBufferBytes = Integer.getInteger(Configuration.SOCKET_RECEIVE_BUFFER_PROPERTY, 0);
+        sendBufferBytes = Integer.getInteger(Configuration.SOCKET_SEND_BUFFER_PROPERTY, 0);
+        fanOutThreshold = Integer.getInteger(Configuration.FANOUT_THRESHOLD_PROPERTY,
+                Configuration.FANOUT_THRESHOLD);
+    }
+
+    /* Options left at 0 keep the defaults of the OS. */
+    private void applySocketOptions(Socket connection) throws IOException {
+        connection.setTcpNoDelay(tcpNoDelay);
+        if (receiveBufferBytes > 0) {
+            connection.setReceiveBufferSize(receiveBufferBytes);
+        }
+        if (sendBufferBytes > 0) {
+            connection.setSendBufferSize(sendBufferBytes);
+        }
+    }
+
+    private static boolean joinAll(List<Thread> threads, long deadline) throws InterruptedException {
+        boolean ended = true;
+        for (Thread thread : threads) {
+            thread.join(Math.max(1, remainingMillis(deadline)));
+            ended &= !thread.isAlive();
+        }
+        return ended;
+    }
+
+    private static long remainingMillis(long deadline) {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            }
+            catch (IOException ioe) {
+                System.err.println(ioe.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Create an executor starting a new virtual thread for every task.
+     * The factory method only exists from JDK 21 on, so it is looked up reflectively
+     * to keep the project compiling on JDK 17; older runtimes fall back to the cached pool.
+     */
+    private ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        }
+        catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads are not supported by this JVM,"
+                    + " falling back to the cached thread pool");
+            return Executors.newCachedThreadPool();
         }
     }
 
@@ -65,31 +555,294 @@ public class IrcServer {
         return serverName;
     }
 
+    /**
+     * Public getter method to return the encoded prefix of every reply of this server.
+     * @return Bytes of ":<server_name> ", not to be modified.
+     */
+    public byte[] getReplyPrefix() {
+        return replyPrefix;
+    }
+
+    /**
+     * Public method to create the outbound queue of a new connection,
+     * bounded by the limits and policy this server was started with.
+     * @return An empty OutboundQueue.
+     */
+    public OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(sendQueueMaxBytes, sendQueueMaxMessages, sendQueuePolicy, metrics);
+    }
+
+    /**
+     * Public getter to return the counters of the writes made to all connections.
+     * @return The WriteStats of this server.
+     */
+    public WriteStats getWriteStats() {
+        return writeStats;
+    }
+
+    /**
+     * Public getter to return the flood control limits of this server.
+     * @return The FloodControl of this server.
+     */
+    public FloodControl getFloodControl() {
+        return floodControl;
+    }
+
+    /**
+     * Public method to take a token from the bucket of the channel a message is sent to.
+     * @param privmsgArguments The arguments of the PRIVMSG command.
+     * @param nowNanos The current time of System.nanoTime().
+     * @return 0 if the message may be sent now or is not sent to an existing channel,
+     *         otherwise the nanoseconds to wait for.
+     */
+    public long acquireChannelMessage(String privmsgArguments, long nowNanos) {
+        int delimiter = CommandParser.indexOfPrivmsgDelimiter(privmsgArguments);
+        if (delimiter < 0) {
+            return 0;
+        }
+        Channel room = allChannels.get(privmsgArguments.substring(0, delimiter));
+        return room == null ? 0 : room.acquireMessage(nowNanos);
+    }
+
+    /**
+     * Public getter to return how long a client may stay silent before it is sent a PING.
+     * @return The ping interval in milliseconds.
+     */
+    public long getPingIntervalMillis() {
+        return pingIntervalMillis;
+    }
+
+    /**
+     * Public getter to return how long a client has to answer a PING.
+     * @return The ping timeout in milliseconds.
+     */
+    public long getPingTimeoutMillis() {
+        return pingTimeoutMillis;
+    }
+
+    /**
+     * Public method to count a client disconnected for not answering a PING in time.
+     */
+    public void recordPingTimeoutDisconnect() {
+        metrics.recordPingTimeoutDisconnect();
+    }
+
+    /**
+     * Public method to count a client disconnected for not reading its replies fast enough.
+     */
+    public void recordSlowConsumerDisconnect() {
+        metrics.recordSlowConsumerDisconnect();
+    }
+
+    /**
+     * Public getter to return how many clients were disconnected for being slow.
+     * @return The number of slow consumer disconnects since the server was opened.
+     */
+    public long getSlowConsumerDisconnects() {
+        return metrics.getSlowConsumerDisconnects();
+    }
+
+    /**
+     * Public getter to return the counters of this server.
+     * @return The Metrics of this server.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Public method to take the current value of every gauge and counter of this server.
+     * @return Map of "name -> value", in reporting order.
+     */
+    public Map<String, Long> getMetricsSnapshot() {
+        Map<String, Long> snapshot = new LinkedHashMap<>();
+        long queuedBytes = 0;
+        long largestQueue = 0;
+        for (ConnectionHandler poll: allConnections) {
+            long queued = poll.getQueuedBytes();
+            queuedBytes += queued;
+            largestQueue = Math.max(largestQueue, queued);
+        }
+        snapshot.put("connections", (long) allConnections.size());
+        snapshot.put("users.registered", (long) registeredUsers.size());
+        snapshot.put("users.ids.highest", (long) userIds.getHighestId());
+        snapshot.put("users.remote", (long) links.getRemoteUserCount());
+        snapshot.put("links", (long) links.getLinkCount());
+        snapshot.put("channels", (long) allChannels.size());
+        snapshot.put("sendq.bytes", queuedBytes);
+        snapshot.put("sendq.bytes.max", largestQueue);
+        snapshot.put("history.dropped", history.getDroppedAppends());
+        snapshot.put("state.pending", (long) state.getPendingChanges());
+        BufferPool pool = bufferPool;
+        if (pool != null) {
+            pool.addTo(snapshot);
+        }
+        fanOut.addTo(snapshot);
+        metrics.addTo(snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Public method to add a reference of a newly accepted connection to this server.
+     * @param connection The accepted ConnectionHandler.
+     */
+    public void addConnection(ConnectionHandler connection) {
+        allConnections.add(connection);
+    }
+
+    /**
+     * Public method to add a reference of a newly accepted connection to this server
+     * and to start its keepalive, unless clients are never pinged.
+     * @param connection The accepted ConnectionHandler.
+     * @param timingWheel Wheel turned by the thread which may send to the connection.
+     */
+    public void addConnection(ConnectionHandler connection, TimingWheel timingWheel) {
+        addConnection(connection);
+        connection.setTimingWheel(timingWheel);
+        if (pingIntervalMillis > 0) {
+            connection.startKeepAlive(timingWheel);
+        }
+    }
+
     /**
      * Public method to add a reference of a registered user to this server.
      * @param nickname The nickname of the user.
+     * @param client Client registering with the nickname.
+     * @return Whether the nickname was free and is now bound to the client.
      */
-    public void addRegisteredUser(String nickname) {
-        registeredUsers.add(nickname);
+    public boolean addRegisteredUser(String nickname, ConnectionHandler client) {
+        if (links.hasRemoteUser(nickname) || registeredUsers.putIfAbsent(nickname, client) != null) {
+            return false;
+        }
+        client.setUserId(userIds.assign());
+        links.userRegistered(nickname);
+        return true;
+    }
+
+    /**
+     * Public method to free a user ID, called by the client once neither its registration
+     * nor any channel refers to it anymore.
+     * @param userId The ID of the client.
+     */
+    public void releaseUserId(int userId) {
+        userIds.release(userId);
+    }
+
+    /**
+     * Public getter to return the registered users of this server, without the users of other servers.
+     * @return An unmodifiable view of "nickname -> ConnectionHandler".
+     */
+    public Map<String, ConnectionHandler> getRegisteredUsers() {
+        return Collections.unmodifiableMap(registeredUsers);
+    }
+
+    /**
+     * Public method to disconnect a registered user of this server.
+     * @param nickname The nickname of the user.
+     * @param reason Text of the ERROR line sent to the user.
+     */
+    public void killRegisteredUser(String nickname, String reason) {
+        ConnectionHandler client = registeredUsers.get(nickname);
+        if (client != null) {
+            client.disconnect(reason);
+        }
+    }
+
+    /**
+     * Public method to move a registered user to a new nickname.
+     * @param oldNickname The nickname the user is registered with.
+     * @param newNickname The nickname the user wishes to be known by.
+     * @param client Client that send the request.
+     * @return Whether the new nickname was free and is now bound to the client.
+     */
+    public boolean renameRegisteredUser(String oldNickname, String newNickname, ConnectionHandler client) {
+        return links.renameUser(oldNickname, newNickname, () -> {
+            if (registeredUsers.putIfAbsent(newNickname, client) != null) {
+                return false;
+            }
+            registeredUsers.remove(oldNickname, client);
+            state.recordRename(oldNickname, newNickname);
+            return true;
+        });
+    }
+
+    /**
+     * Public method to record the username and real name a user registered with.
+     * @param nickname The nickname of the user.
+     * @param username The username of the user.
+     * @param realname The real name of the user.
+     * @return The channels the user is rejoined to, as restored from the state of this
+     *     server before it was restarted.
+     */
+    public List<String> recordRegistration(String nickname, String username, String realname) {
+        return state.recordRegistration(nickname, username, realname);
+    }
+
+    /**
+     * Public method to be called once a registered client has taken its new nickname,
+     * so that cached renderings containing the old one are not used anymore.
+     */
+    public void recordNicknameChange() {
+        nicknameVersion.incrementAndGet();
+    }
+
+    /**
+     * Public getter to return the number of nickname changes so far.
+     * @return A value which changes whenever any registered client changed its nickname.
+     */
+    public long getNicknameVersion() {
+        return nicknameVersion.get();
     }
 
     /**
      * Public method to handle the request of quitting this server from registered client.
-     * @param text The message to be sent to all connected clients.
+     * Only the channels the client joined are visited, and the message is sent once to
+     * the client itself and to every client sharing at least one channel with it.
+     * @param text The message to be sent to the clients sharing a channel with the client.
      * @param registeredClient Client that send the request.
      */
     public void handleQuitRequest(String text, ConnectionHandler registeredClient) {
-        for (ConnectionHandler poll: allConnections) {
-            poll.printToWriter(text);
-        }
-        String allNicksInAChannel;
-        String clientNick = registeredClient.getNickname();
-        for (Channel poll: allChannels) {
-            allNicksInAChannel = poll.getCurrentClientsNicks();
-            if (allNicksInAChannel.contains(clientNick)) {
-                poll.forcedQuitJoinedClient(registeredClient);
+        registeredUsers.remove(registeredClient.getNickname(), registeredClient);
+        Set<ConnectionHandler> receivers = new HashSet<>();
+        receivers.add(registeredClient);
+        // While stopping, every member is told the server shuts down instead.
+        boolean quitShown = !stopping.get();
+        List<Channel> joinedChannels = registeredClient.getJoinedChannels();
+        for (Channel poll: joinedChannels) {
+            if (quitShown) {
+                poll.addJoinedClientsTo(receivers);
             }
+            poll.forcedQuitJoinedClient(registeredClient);
+            removeChannelIfEmpty(poll);
+        }
+        Frame quitFrame = Frame.of(text);
+        // The client is told before its connection is closed, it was given its own lines at once.
+        receivers.remove(registeredClient);
+        registeredClient.sendFrame(quitFrame);
+        // Behind the lines the client handed over to the fan-out threads, without waiting for them.
+        registeredClient.sendToClients(quitFrame, receivers.toArray(new ConnectionHandler[0]));
+        metrics.recordBroadcast(Configuration.QUIT, receivers.size() + 1);
+        links.userQuit(registeredClient.getNickname());
+        state.recordQuit(registeredClient.getNickname());
+        registeredClient.releaseUserId();
+    }
+
+    /**
+     * Public method to handle a user of another server quitting, or being lost in a netsplit.
+     * The QUIT line is sent once to every client of this server sharing a channel with the user.
+     * @param user The remote user.
+     */
+    public void handleRemoteQuit(RemoteUser user) {
+        Set<ConnectionHandler> receivers = new HashSet<>();
+        List<Channel> joinedChannels = user.getJoinedChannels();
+        for (Channel poll: joinedChannels) {
+            poll.addJoinedClientsTo(receivers);
+            poll.removeRemoteMember(user);
+            removeChannelIfEmpty(poll);
         }
+        Frame quitFrame = Frame.of(":" + user.getNickname() + " " + Configuration.QUIT);
+        sendAfterBroadcasts(joinedChannels, receivers, quitFrame);
+        metrics.recordBroadcast(Configuration.QUIT, receivers.size());
     }
 
     /**
@@ -98,22 +851,31 @@ public class IrcServer {
      * @param client Client who wishes to join the channel.
      */
     public void handleJoinRequest(String channelName, ConnectionHandler client) {
-        //Add client to the channel if the channel is already opened.
-        if (checkChannelExistence(channelName)) {
-            for (Channel poll: allChannels) {
-                if (channelName.equals(poll.getChannelname())) {
-                    poll.addJoinedClient(client);
-                    return;
-                }
+        while (true) {
+            //Open a new channel on this server unless the channel is already opened.
+            Channel room = allChannels.computeIfAbsent(channelName, this::openChannel);
+            //Fails only if the last client left and the channel was closed meanwhile.
+            if (room.addJoinedClient(client)) {
+                links.userJoined(client.getNickname(), channelName);
+                state.recordJoin(client.getNickname(), channelName);
+                return;
             }
+            forgetChannel(room);
         }
-        //Open a new channel on this server and add this client to the channel.
-        else {
-            Channel newRoom = new Channel(channelName);
-            newRoom.setIrcServer(this);
-            newRoom.addJoinedClient(client);
-            registeredChannels.add(channelName);
-            allChannels.add(newRoom);
+    }
+
+    /**
+     * Public method to handle a user of another server joining a channel.
+     * @param channelName The name of the channel.
+     * @param user The remote user.
+     */
+    public void handleRemoteJoin(String channelName, RemoteUser user) {
+        while (true) {
+            Channel room = allChannels.computeIfAbsent(channelName, this::openChannel);
+            if (room.addRemoteMember(user)) {
+                return;
+            }
+            forgetChannel(room);
         }
     }
 
@@ -123,44 +885,82 @@ public class IrcServer {
      * @param client Client who wishes to leave the channel.
      */
     public void handlePartRequest(String channelName, ConnectionHandler client) {
-        for (Channel poll: allChannels) {
-            if (channelName.equals(poll.getChannelname())) {
-                poll.partJoinedClient(client);
-                //Remove the reference of the channel from this server if it's empty.
-                if (poll.getCurrentClientsNum() == 0) {
-                    allChannels.remove(poll);
-                    registeredChannels.remove(poll.getChannelname());
-                }
-                return;
-            }
+        Channel room = allChannels.get(channelName);
+        if (room != null) {
+            room.partJoinedClient(client);
+            removeChannelIfEmpty(room);
+            links.userParted(client.getNickname(), channelName);
+            state.recordPart(client.getNickname(), channelName);
+        }
+    }
+
+    /**
+     * Public method to handle a user of another server leaving a channel.
+     * @param channelName The name of the channel.
+     * @param user The remote user.
+     */
+    public void handleRemotePart(String channelName, RemoteUser user) {
+        Channel room = allChannels.get(channelName);
+        if (room != null) {
+            room.partRemoteMember(user);
+            removeChannelIfEmpty(room);
         }
     }
 
     /**
      * Public method to process the request of sending private message to a user.
+     * A user of another server is sent the message through the link it is reached by.
      * @param target The nickname of the user.
      * @param text String sent to the user.
      */
     public void handlePrivateMsgRequest(String target, String text) {
-        for (ConnectionHandler poll: allConnections) {
-            if (target.equals(poll.getNickname())) {
-                poll.printToWriter(text);
-                return;
-            }
-        }
+        sendPrivateMsg(target, text, null, null);
+    }
+
+    /**
+     * Public method to process the request of sending private message to a user from a registered client,
+     * which never overtakes the lines the client sent to large channels before.
+     * @param target The nickname of the user.
+     * @param text String sent to the user.
+     * @param sender Client that send the request, or null.
+     */
+    public void handlePrivateMsgRequest(String target, String text, ConnectionHandler sender) {
+        sendPrivateMsg(target, text, null, sender);
     }
 
     /**
      * Public method to process the request of sending private(broadcast) message to a channel.
+     * The message is sent once over every link behind which the channel has members.
      * @param target The name of the channel.
      * @param text String to broadcast to all joined clients of the channel.
      */
     public void handleBroadcastMsgRequest(String target, String text) {
-        for (Channel poll: allChannels) {
-            if (target.equals(poll.getChannelname())) {
-                poll.broadcastMsg(text);
-                return;
-            }
+        handleBroadcastMsgRequest(target, text, null);
+    }
+
+    /**
+     * Public method to process the request of sending private(broadcast) message to a channel
+     * from a registered client, which is given its own copy before any later reply.
+     * @param target The name of the channel.
+     * @param text String to broadcast to all joined clients of the channel.
+     * @param sender Client that send the request, or null.
+     */
+    public void handleBroadcastMsgRequest(String target, String text, ConnectionHandler sender) {
+        broadcastMsg(target, text, null, sender);
+    }
+
+    /**
+     * Public method to deliver a message received from another server to a user or a channel.
+     * @param target The nickname of the user or the name of the channel.
+     * @param text The line to be delivered.
+     * @param source The link the message came from, which it is never relayed back to.
+     */
+    public void handleRemoteMessage(String target, String text, ServerLink source) {
+        if (CommandParser.isValidChannelName(target)) {
+            broadcastMsg(target, text, source, null);
+        }
+        else {
+            sendPrivateMsg(target, text, source, null);
         }
     }
 
@@ -171,25 +971,58 @@ public class IrcServer {
      */
     public String handleNamesRequest(String channelName) {
         String allUsers = "";
-        for (Channel poll: allChannels) {
-            if (channelName.equals(poll.getChannelname())) {
-                allUsers =  poll.getCurrentClientsNicks();
-                break;
-            }
+        Channel room = allChannels.get(channelName);
+        if (room != null) {
+            allUsers = room.getCurrentClientsNicks();
         }
         return allUsers;
     }
 
     /**
-     * Public method to return the name of all channels opened on this server.
-     * @return The String contains all valid Channel's name.
+     * Public method to return all channels opened on this server whose name matches the masks.
+     * @param masks Comma-separated masks, see {@link CommandParser#matchesAnyMask}, or null for all channels.
+     * @return The matching Channels, in alphabetical order of their names.
      */
-    public String handleListRequest() {
-        String allChannelsNm = "";
-        for (Channel poll: allChannels) {
-            allChannelsNm += poll.getChannelname();
+    public List<Channel> handleListRequest(String masks) {
+        List<Channel> channels = new ArrayList<>();
+        for (String channelName: sortedChannelNames) {
+            if (masks == null || CommandParser.matchesAnyMask(masks, channelName)) {
+                Channel room = allChannels.get(channelName);
+                // Skip channels closed since the names were iterated.
+                if (room != null) {
+                    channels.add(room);
+                }
+            }
         }
-        return allChannelsNm;
+        return channels;
+    }
+
+    /**
+     * Public method to return the history of a channel, which outlives the channel.
+     * @param channelName The name of the channel.
+     * @return The ChannelHistory of the channel, or null if it was never sent a message.
+     */
+    public ChannelHistory findChannelHistory(String channelName) {
+        return history.find(channelName);
+    }
+
+    /**
+     * Public method to return a new reference for a batch of history lines.
+     * @return A reference unique on this server.
+     */
+    public String newHistoryBatchReference() {
+        return history.newBatchReference();
+    }
+
+    /**
+     * Public method to return how long a JOIN or PART of a channel is held back,
+     * while the fan-out threads fall behind with the lines of the channel.
+     * @param channelName Name of the channel.
+     * @return 0 if the command may run now or the channel does not exist, otherwise the nanoseconds to wait for.
+     */
+    public long checkChannelBacklog(String channelName) {
+        Channel room = allChannels.get(channelName);
+        return room == null ? 0 : room.backlogDelay();
     }
 
     /**
@@ -199,22 +1032,26 @@ public class IrcServer {
     * @return Whether the channel exist.
     */
     public boolean checkChannelExistence(String channelName) {
-        for (Channel poll: allChannels) {
-            if (channelName.equals(poll.getChannelname())) {
-                return true;
-            }
-        }
-        return false;
+        return allChannels.containsKey(channelName);
     }
 
     /**
      * Public method to return whether there's such registered user with
-     * specified nickname on this server.
+     * specified nickname on this server or on any server linked to it.
      * @param nickname Name of the channel.
      * @return Whether the registered user exist.
      */
     public boolean checkUserExistence(String nickname) {
-        return registeredUsers.contains(nickname);
+        return registeredUsers.containsKey(nickname) || links.hasRemoteUser(nickname);
+    }
+
+    /**
+     * Public method to return whether a client of this server is registered with the nickname.
+     * @param nickname The nickname.
+     * @return Whether a registered user of this server has the nickname.
+     */
+    public boolean checkLocalUserExistence(String nickname) {
+        return registeredUsers.containsKey(nickname);
     }
 
     /**
@@ -226,4 +1063,82 @@ public class IrcServer {
         System.out.println("A reference of a connection was removed successfully");
     }
 
+    private void sendPrivateMsg(String target, String text, ServerLink source, ConnectionHandler sender) {
+        ConnectionHandler receiver = registeredUsers.get(target);
+        if (receiver != null) {
+            if (sender == null) {
+                receiver.printToWriter(text);
+            }
+            else {
+                sender.sendToClients(Frame.of(text), new ConnectionHandler[] {receiver});
+            }
+            metrics.recordOut(Configuration.PRIVMSG, 1);
+        }
+        else {
+            links.routePrivateMessage(target, text, source);
+        }
+    }
+
+    private void broadcastMsg(String target, String text, ServerLink source, ConnectionHandler sender) {
+        Channel room = allChannels.get(target);
+        if (room != null) {
+            metrics.recordBroadcast(Configuration.PRIVMSG, room.broadcastMsg(text, sender));
+            links.relayChannelMessage(room, text, source);
+            history.append(target, text);
+        }
+    }
+
+    /* The lines the remote user sent to large channels before quitting are delivered before the QUIT line,
+       which is sent by the fan-out thread delivering the last of them, as this may run on a Reactor
+       which must not wait. A Reactor sends the line after the Frames those threads handed over to it. */
+    private void sendAfterBroadcasts(List<Channel> joinedChannels, Set<ConnectionHandler> receivers, Frame frame) {
+        Runnable send = () -> {
+            for (ConnectionHandler poll: receivers) {
+                poll.sendFrame(frame);
+            }
+        };
+        if (!fanOut.isEnabled() || joinedChannels.isEmpty()) {
+            send.run();
+            return;
+        }
+        AtomicInteger lanesLeft = new AtomicInteger(joinedChannels.size());
+        for (Channel poll: joinedChannels) {
+            poll.runAfterBroadcasts(() -> {
+                if (lanesLeft.decrementAndGet() == 0) {
+                    Reactor.runAfterDeliveries(send);
+                }
+            });
+        }
+    }
+
+    private Channel openChannel(String channelName) {
+        Channel newRoom = new Channel(channelName);
+        newRoom.setIrcServer(this);
+        // Runs inside computeIfAbsent, atomically with adding the channel.
+        sortedChannelNames.add(channelName);
+        return newRoom;
+    }
+
+    /* Remove the channel and its name together, unless it was replaced by a new channel already. */
+    private void forgetChannel(Channel room) {
+        allChannels.computeIfPresent(room.getChannelname(), (channelName, current) -> {
+            if (current != room) {
+                return current;
+            }
+            sortedChannelNames.remove(channelName);
+            return null;
+        });
+    }
+
+    /**
+     * Remove the reference of the channel from this server if it's empty.
+     * The channel is closed first, so a concurrent JOIN cannot enter it afterwards
+     * and will open a fresh channel instead.
+     */
+    private void removeChannelIfEmpty(Channel room) {
+        if (room.closeIfEmpty()) {
+            forgetChannel(room);
+        }
+    }
+
 }
@@ -1,29 +1,93 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 /**Entrance of the small project.*/
 public class IrcServerMain {
 
     private IrcServer ircS;
 
     /**
-    * An instance of IrcServer will be instantiated
-    * and ready to listen for client connection
+    * An instance of IrcServer will be instantiated and started,
+    * ready to listen for client connection
     * with the specified server name and port number.
+    * An optional third argument selects the execution mode,
+    * one of {@link Configuration#MODESET}.
+    * Options such as "--config=irc.properties" or "--irc.sendq.bytes=65536"
+    * may be given anywhere, see {@link ServerConfig}.
     * @param args Array of strings stores user's input.
     */
     public static void main(String[] args) {
-        if (args.length < 2) {
+        Map<String, String> options = new HashMap<>();
+        List<String> positional;
+        ServerConfig config;
+        try {
+            positional = ServerConfig.parseOptions(args, options);
+            String configFile = options.remove(configKey());
+            Path file = configFile == null ? null : Paths.get(configFile);
+            config = new ServerConfig(file, options);
+        }
+        catch (IllegalStateException ise) {
+            for (String problem : ise.getMessage().split("\n")) {
+                System.out.println("Invalid configuration: " + problem);
+            }
+            return;
+        }
+        if (positional.size() < 2) {
             System.out.println(Configuration.INVALID_ARGUMENT_PROMPT);
         }
         else {
             try {
-                String serverName = args[0];
-                int portNum = Integer.parseInt(args[1]);
-                IrcServer ircS = new IrcServer(serverName, portNum);
+                String serverName = positional.get(0);
+                int portNum = Integer.parseInt(positional.get(1));
+                String mode = Configuration.MODE_THREADED;
+                if (positional.size() > 2) {
+                    mode = positional.get(2);
+                }
+                IrcServer ircS = new IrcServer(serverName, portNum, mode);
+                ircS.start();
+                ircS.awaitReady();
+                stopOnExit(ircS);
+                config.watch(ircS, Long.getLong(Configuration.CONFIG_POLL_PROPERTY,
+                        Configuration.CONFIG_POLL_MILLIS));
+            }
+            catch (IOException ioe) {
+                System.out.println("Unknown IOException thrown when starting IrcServer :"
+                        + ioe.getMessage());
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
             }
             catch (Exception e) {
                 // Catch Exception when handling the port number,
                 // including NumberFormatException and IllegalArgumentException
+                // for the port number or the execution mode
                 System.out.println(Configuration.INVALID_ARGUMENT_PROMPT);
             }
         }
     }
+
+    /* The key parseOptions files the configuration file under. */
+    private static String configKey() {
+        String option = ServerConfig.CONFIG_OPTION;
+        return option.substring(ServerConfig.OPTION_PREFIX.length(), option.length() - 1);
+    }
+
+    /* Shut the server down gracefully when the JVM is asked to exit, if a timeout is set for it. */
+    private static void stopOnExit(IrcServer ircS) {
+        long timeoutMillis = Long.getLong(Configuration.SHUTDOWN_TIMEOUT_PROPERTY, 0);
+        if (timeoutMillis > 0) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    ircS.stop(timeoutMillis);
+                }
+                catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "irc-shutdown"));
+        }
+    }
 }
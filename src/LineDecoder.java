@@ -0,0 +1,61 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+* Splits the raw bytes read from a non-blocking connection into lines,
+* following the same rules as BufferedReader.readLine(): a line is terminated
+* by "\n", "\r" or "\r\n". Bytes of an unfinished line are kept until more data arrives.
+*/
+public class LineDecoder implements InputDecoder {
+
+    private static final byte LF = '\n';
+    private static final byte CR = '\r';
+
+    private Charset charset;
+    private byte[] partialLine;
+    private int partialLength;
+    private boolean skipLf;
+
+    /**
+     * Create a decoder for a single connection.
+     * @param charset Charset used to decode each line.
+     */
+    public LineDecoder(Charset charset) {
+        this.charset = charset;
+        this.partialLine = new byte[Configuration.LINE_BUFFER_INITIAL_SIZE];
+        this.partialLength = 0;
+        this.skipLf = false;
+    }
+
+    /**
+     * Consume all remaining bytes of the buffer, handing every completed line to the consumer.
+     * @param input Buffer in read mode, will be fully drained.
+     * @param lineConsumer Receiver of the decoded lines, without line terminators.
+     */
+    @Override
+    public void decode(ByteBuffer input, Consumer<String> lineConsumer) {
+        while (input.hasRemaining()) {
+            byte current = input.get();
+            if (skipLf) {
+                skipLf = false;
+                if (current == LF) {
+                    continue;
+                }
+            }
+            if (current == LF || current == CR) {
+                skipLf = current == CR;
+                String line = new String(partialLine, 0, partialLength, charset);
+                partialLength = 0;
+                lineConsumer.accept(line);
+            }
+            else {
+                if (partialLength == partialLine.length) {
+                    partialLine = Arrays.copyOf(partialLine, partialLine.length * 2);
+                }
+                partialLine[partialLength++] = current;
+            }
+        }
+    }
+}
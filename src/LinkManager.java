@@ -0,0 +1,571 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+* Links an IrcServer to other servers, forming a network without cycles in which every
+* server knows every user and channel membership. A new link starts with both servers
+* introducing themselves and sending all they know (the burst), afterwards every change
+* is announced to all links and relayed by every server to its other links. A channel
+* message crosses a link once, and only towards links behind which the channel has members.
+* When a link is lost, the users of all servers behind it quit on this side of the split.
+* Changes of the network state are applied and announced under one lock, so the burst of
+* a new link is never overtaken by an announcement of a change it does not contain yet.
+*/
+public class LinkManager {
+
+    private static final int MAX_PORT = 65535;
+
+    private IrcServer ircS;
+    private ExecutorService linkPool;
+    /* Links whose peer introduced itself. */
+    private Set<ServerLink> links;
+    /* Server name -> link it is reached by, for every other server of the network. */
+    private Map<String, ServerLink> servers;
+    /* Nickname -> user of every other server of the network. */
+    private Map<String, RemoteUser> remoteUsers;
+    private ReentrantLock networkLock;
+    private long retryMillis;
+    /* Every link opened, whether its peer introduced itself or not, so stop() can close them. */
+    private Set<ServerLink> openLinks;
+    private volatile ServerSocket listener;
+    private volatile boolean stopped;
+
+    /**
+     * Create the links of a server, none of which is opened until start() is called.
+     * @param ircS The IRC Server to be linked.
+     */
+    public LinkManager(IrcServer ircS) {
+        this.ircS = ircS;
+        this.linkPool = Executors.newCachedThreadPool();
+        this.links = ConcurrentHashMap.newKeySet();
+        this.servers = new ConcurrentHashMap<>();
+        this.remoteUsers = new ConcurrentHashMap<>();
+        this.networkLock = new ReentrantLock();
+        this.retryMillis = Long.getLong(Configuration.LINK_RETRY_PROPERTY, Configuration.LINK_RETRY_MILLIS);
+        this.openLinks = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Public method to accept links on the link port and to link to the peers, as far as
+     * they are set by {@link Configuration#LINK_PORT_PROPERTY} and {@link Configuration#LINK_PEERS_PROPERTY}.
+     * The link port is opened on {@link Configuration#LINK_ADDRESS_PROPERTY}, the loopback interface by default,
+     * as links are not authenticated.
+     * @throws IOException If the link port cannot be opened, or a peer is not a host:port.
+     */
+    public void start() throws IOException {
+        int port = Integer.getInteger(Configuration.LINK_PORT_PROPERTY, 0);
+        if (port > 0) {
+            String bindAddress = System.getProperty(Configuration.LINK_ADDRESS_PROPERTY);
+            listener = new ServerSocket(port, 0,
+                    bindAddress == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(bindAddress));
+            linkPool.execute(this::acceptLinks);
+        }
+        for (String peer : System.getProperty(Configuration.LINK_PEERS_PROPERTY, "").split(",")) {
+            String address = peer.trim();
+            if (!address.isEmpty()) {
+                int colon = address.lastIndexOf(':');
+                int peerPort = colon > 0 ? parsePort(address.substring(colon + 1)) : -1;
+                if (peerPort < 0) {
+                    throw new IOException("Server link peer is not a host:port: " + address);
+                }
+                String host = address.substring(0, colon);
+                linkPool.execute(() -> connectLinks(host, peerPort));
+            }
+        }
+    }
+
+    /* Return the port, -1 if it is not a number of 1 to 65535. */
+    private static int parsePort(String port) {
+        try {
+            int number = Integer.parseInt(port);
+            return number > 0 && number <= MAX_PORT ? number : -1;
+        }
+        catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    /**
+     * Public method to stop linking: the link port is closed, no peer is connected to anymore,
+     * and every link is closed once its queued lines are written.
+     */
+    public void stop() {
+        stopped = true;
+        ServerSocket opened = listener;
+        if (opened != null) {
+            try {
+                opened.close();
+            }
+            catch (IOException ioe) {
+                System.err.println(ioe.getMessage());
+            }
+        }
+        for (ServerLink link : openLinks) {
+            link.close();
+        }
+        // Running tasks go on, so the links are still written and the peers retried wake up to end.
+        linkPool.shutdown();
+    }
+
+    /**
+     * Public method to wait until the threads of the links ended after stop().
+     * @param timeoutMillis Time in milliseconds to wait at most.
+     * @return Whether the threads ended in time.
+     * @throws InterruptedException If the calling thread was interrupted while waiting.
+     */
+    public boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+        return linkPool.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Public getter to return the number of links to neighbouring servers.
+     * @return The number of established links.
+     */
+    public int getLinkCount() {
+        return links.size();
+    }
+
+    /**
+     * Public getter to return the number of users of other servers.
+     * @return The number of remote users.
+     */
+    public int getRemoteUserCount() {
+        return remoteUsers.size();
+    }
+
+    /**
+     * Public method to return whether a user of another server has the nickname.
+     * @param nickname The nickname.
+     * @return Whether a remote user has the nickname.
+     */
+    public boolean hasRemoteUser(String nickname) {
+        return remoteUsers.containsKey(nickname);
+    }
+
+    /**
+     * Public method to announce a newly registered user of this server.
+     * @param nickname The nickname of the user.
+     */
+    public void userRegistered(String nickname) {
+        announce(Configuration.NICK + " " + nickname + " " + ircS.getServerName());
+    }
+
+    /**
+     * Public method to rename a user of this server and announce it as one step,
+     * so no burst can contain both nicknames or neither.
+     * @param oldNickname The nickname the user is registered with.
+     * @param newNickname The nickname the user wishes to be known by.
+     * @param rename Renames the user locally, returning whether the new nickname was free.
+     * @return Whether the user was renamed.
+     */
+    public boolean renameUser(String oldNickname, String newNickname, BooleanSupplier rename) {
+        networkLock.lock();
+        try {
+            if (remoteUsers.containsKey(newNickname) || !rename.getAsBoolean()) {
+                return false;
+            }
+            broadcast(Configuration.RENAME + " " + oldNickname + " " + newNickname, null);
+            return true;
+        }
+        finally {
+            networkLock.unlock();
+        }
+    }
+
+    /**
+     * Public method to announce that a user of this server joined a channel.
+     * @param nickname The nickname of the user.
+     * @param channelName The name of the channel.
+     */
+    public void userJoined(String nickname, String channelName) {
+        announce(Configuration.JOIN + " " + nickname + " " + channelName);
+    }
+
+    /**
+     * Public method to announce that a user of this server left a channel.
+     * @param nickname The nickname of the user.
+     * @param channelName The name of the channel.
+     */
+    public void userParted(String nickname, String channelName) {
+        announce(Configuration.PART + " " + nickname + " " + channelName);
+    }
+
+    /**
+     * Public method to announce that a user of this server quit.
+     * @param nickname The nickname of the user.
+     */
+    public void userQuit(String nickname) {
+        announce(Configuration.QUIT + " " + nickname);
+    }
+
+    /**
+     * Public method to send a private message towards the server of a remote user.
+     * @param target The nickname of the user.
+     * @param text The line to be delivered to the user.
+     * @param source The link the message came from, null if it was sent by a user of this server.
+     * @return Whether the user is a remote user.
+     */
+    public boolean routePrivateMessage(String target, String text, ServerLink source) {
+        RemoteUser receiver = remoteUsers.get(target);
+        if (receiver == null) {
+            return false;
+        }
+        if (receiver.getLink() != source) {
+            receiver.getLink().send(Configuration.PRIVMSG + " " + target + " " + text);
+        }
+        return true;
+    }
+
+    /**
+     * Public method to send a channel message once over every link behind which the channel has members.
+     * @param room The channel.
+     * @param text The line to be delivered to the members.
+     * @param source The link the message came from, null if it was sent by a user of this server.
+     */
+    public void relayChannelMessage(Channel room, String text, ServerLink source) {
+        RemoteUser[] members = room.getRemoteMembers();
+        if (members.length == 0) {
+            return;
+        }
+        String line = Configuration.PRIVMSG + " " + room.getChannelname() + " " + text;
+        Set<ServerLink> relayed = new HashSet<>();
+        for (RemoteUser poll: members) {
+            ServerLink link = poll.getLink();
+            if (link != source && relayed.add(link)) {
+                link.send(line);
+            }
+        }
+    }
+
+    /**
+     * Public method to process a line received from a link, called by the thread reading the link.
+     * @param link The link the line was received from.
+     * @param line The line, without line terminator.
+     */
+    public void handleLinkLine(ServerLink link, String line) {
+        int space = line.indexOf(' ');
+        String verb = space < 0 ? line : line.substring(0, space);
+        String arguments = space < 0 ? "" : line.substring(space + 1);
+        if (verb.equals(Configuration.PRIVMSG) && link.getPeerName() != null) {
+            // Messages change no state, so they are not serialised with the changes.
+            relayMessage(link, arguments);
+            return;
+        }
+        networkLock.lock();
+        try {
+            if (link.getPeerName() == null) {
+                if (verb.equals(Configuration.SERVER)) {
+                    registerLink(link, arguments);
+                }
+                else {
+                    link.send(Configuration.ERROR + " :" + Configuration.LINK_NOT_REGISTERED);
+                    link.close();
+                }
+            }
+            else if (verb.equals(Configuration.SERVER)) {
+                introduceServer(link, arguments);
+            }
+            else if (verb.equals(Configuration.SQUIT)) {
+                if (servers.get(arguments) == link) {
+                    splitServer(arguments, link);
+                }
+            }
+            else if (verb.equals(Configuration.NICK)) {
+                introduceUser(link, arguments);
+            }
+            else if (verb.equals(Configuration.RENAME)) {
+                renameRemoteUser(link, arguments);
+            }
+            else if (verb.equals(Configuration.QUIT)) {
+                RemoteUser user = remoteUsers.get(arguments);
+                if (user != null && user.getLink() == link) {
+                    removeRemoteUser(user);
+                    broadcast(line, link);
+                }
+            }
+            else if (verb.equals(Configuration.KILL)) {
+                killUser(link, arguments);
+            }
+            else if (verb.equals(Configuration.JOIN) || verb.equals(Configuration.PART)) {
+                changeMembership(link, verb, arguments);
+            }
+            else if (verb.equals(Configuration.ERROR)) {
+                System.out.println("The server link to " + link.getPeerName() + " was refused " + arguments);
+                link.close();
+            }
+        }
+        finally {
+            networkLock.unlock();
+        }
+    }
+
+    /**
+     * Public method to split the network at a closed link, called once by the link.
+     * @param link The closed link.
+     */
+    public void linkLost(ServerLink link) {
+        networkLock.lock();
+        try {
+            if (!links.remove(link)) {
+                return;
+            }
+            System.out.println("The server link to " + link.getPeerName() + " was lost");
+            for (String serverName : new ArrayList<>(servers.keySet())) {
+                if (servers.get(serverName) == link) {
+                    splitServer(serverName, link);
+                }
+            }
+        }
+        finally {
+            networkLock.unlock();
+        }
+    }
+
+    private void acceptLinks() {
+        while (!stopped) {
+            try {
+                Socket socket = listener.accept();
+                linkPool.execute(() -> runLink(socket));
+            }
+            catch (IOException ioe) {
+                if (!stopped) {
+                    System.out.println("Unknown IOException thrown when accepting server links :"
+                            + ioe.getMessage());
+                }
+                return;
+            }
+        }
+    }
+
+    /* Link to a peer, again and again whenever it is down or the link was split. */
+    private void connectLinks(String host, int port) {
+        while (!stopped) {
+            try {
+                runLink(new Socket(host, port));
+            }
+            catch (IOException ioe) {
+                // The peer is not up (yet), try again later.
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(retryMillis));
+        }
+    }
+
+    /* Introduce this server and read the link until it is closed. */
+    private void runLink(Socket socket) {
+        ServerLink link;
+        try {
+            link = new ServerLink(this, socket, linkPool, ircS.getWriteStats());
+        }
+        catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+            try {
+                socket.close();
+            }
+            catch (IOException closeFailure) {
+                System.err.println(closeFailure.getMessage());
+            }
+            return;
+        }
+        openLinks.add(link);
+        if (stopped) {
+            link.close();
+        }
+        link.send(Configuration.SERVER + " " + ircS.getServerName());
+        link.run();
+        openLinks.remove(link);
+    }
+
+    private void announce(String line) {
+        // A change made before a link was added is contained in the burst of the link.
+        if (links.isEmpty()) {
+            return;
+        }
+        networkLock.lock();
+        try {
+            broadcast(line, null);
+        }
+        finally {
+            networkLock.unlock();
+        }
+    }
+
+    /* Send a line to every link but the one it came from. */
+    private void broadcast(String line, ServerLink source) {
+        for (ServerLink poll: links) {
+            if (poll != source) {
+                poll.send(line);
+            }
+        }
+    }
+
+    private void registerLink(ServerLink link, String serverName) {
+        if (!isNewServer(serverName)) {
+            link.send(Configuration.ERROR + " :" + Configuration.SERVER_ALREADY_LINKED);
+            link.close();
+            return;
+        }
+        link.setPeerName(serverName);
+        servers.put(serverName, link);
+        broadcast(Configuration.SERVER + " " + serverName, link);
+        links.add(link);
+        sendBurst(link);
+        System.out.println("A server link to " + serverName + " was established");
+    }
+
+    /* Send everything known about the network on this side of a new link. */
+    private void sendBurst(ServerLink link) {
+        for (Map.Entry<String, ServerLink> server : servers.entrySet()) {
+            if (server.getValue() != link) {
+                link.send(Configuration.SERVER + " " + server.getKey());
+            }
+        }
+        for (Map.Entry<String, ConnectionHandler> user : ircS.getRegisteredUsers().entrySet()) {
+            link.send(Configuration.NICK + " " + user.getKey() + " " + ircS.getServerName());
+            for (Channel room : user.getValue().getJoinedChannels()) {
+                link.send(Configuration.JOIN + " " + user.getKey() + " " + room.getChannelname());
+            }
+        }
+        for (RemoteUser user : remoteUsers.values()) {
+            if (user.getLink() != link) {
+                link.send(Configuration.NICK + " " + user.getNickname() + " " + user.getServerName());
+                for (Channel room : user.getJoinedChannels()) {
+                    link.send(Configuration.JOIN + " " + user.getNickname() + " " + room.getChannelname());
+                }
+            }
+        }
+    }
+
+    private boolean isNewServer(String serverName) {
+        return !serverName.isEmpty() && serverName.indexOf(' ') < 0
+                && !serverName.equals(ircS.getServerName()) && !servers.containsKey(serverName);
+    }
+
+    private void introduceServer(ServerLink link, String serverName) {
+        if (!isNewServer(serverName)) {
+            // The server is reached by another path as well, which would make a cycle.
+            link.send(Configuration.ERROR + " :" + Configuration.SERVER_ALREADY_LINKED);
+            link.close();
+            return;
+        }
+        servers.put(serverName, link);
+        broadcast(Configuration.SERVER + " " + serverName, link);
+    }
+
+    private void splitServer(String serverName, ServerLink link) {
+        servers.remove(serverName);
+        for (RemoteUser user : remoteUsers.values()) {
+            if (user.getServerName().equals(serverName)) {
+                removeRemoteUser(user);
+            }
+        }
+        broadcast(Configuration.SQUIT + " " + serverName, link);
+        System.out.println("The server " + serverName + " left the network");
+    }
+
+    private void introduceUser(ServerLink link, String arguments) {
+        String[] words = arguments.split(" ");
+        if (words.length != 2 || servers.get(words[1]) != link) {
+            return;
+        }
+        String nickname = words[0];
+        RemoteUser existing = remoteUsers.get(nickname);
+        if (existing != null && existing.getLink() == link && existing.getServerName().equals(words[1])) {
+            // Announced while the burst was sent, which contained the user already.
+            return;
+        }
+        if (existing != null || ircS.checkLocalUserExistence(nickname)) {
+            collide(link, nickname);
+            return;
+        }
+        remoteUsers.put(nickname, new RemoteUser(nickname, words[1], link));
+        broadcast(Configuration.NICK + " " + arguments, link);
+    }
+
+    private void renameRemoteUser(ServerLink link, String arguments) {
+        String[] words = arguments.split(" ");
+        RemoteUser user = words.length == 2 ? remoteUsers.get(words[0]) : null;
+        if (user == null || user.getLink() != link) {
+            return;
+        }
+        remoteUsers.remove(words[0], user);
+        if (remoteUsers.containsKey(words[1]) || ircS.checkLocalUserExistence(words[1])) {
+            ircS.handleRemoteQuit(user);
+            // The servers behind this one only know the old nickname.
+            broadcast(Configuration.QUIT + " " + words[0], link);
+            collide(link, words[1]);
+            return;
+        }
+        user.setNickname(words[1]);
+        remoteUsers.put(words[1], user);
+        ircS.recordNicknameChange();
+        broadcast(Configuration.RENAME + " " + arguments, link);
+    }
+
+    /**
+     * Two users registered the same nickname on both sides of a link at about the same time.
+     * Without telling which was first, both are disconnected, each by its own server.
+     */
+    private void collide(ServerLink link, String nickname) {
+        link.send(Configuration.KILL + " " + nickname);
+        RemoteUser existing = remoteUsers.get(nickname);
+        if (existing != null) {
+            existing.getLink().send(Configuration.KILL + " " + nickname);
+        }
+        else {
+            ircS.killRegisteredUser(nickname, Configuration.NICK_COLLISION);
+        }
+    }
+
+    /* The user is removed once its QUIT comes back, which all servers on the way relay. */
+    private void killUser(ServerLink link, String nickname) {
+        if (ircS.checkLocalUserExistence(nickname)) {
+            ircS.killRegisteredUser(nickname, Configuration.NICK_COLLISION);
+        }
+        else {
+            RemoteUser user = remoteUsers.get(nickname);
+            if (user != null && user.getLink() != link) {
+                user.getLink().send(Configuration.KILL + " " + nickname);
+            }
+        }
+    }
+
+    private void removeRemoteUser(RemoteUser user) {
+        remoteUsers.remove(user.getNickname(), user);
+        ircS.handleRemoteQuit(user);
+    }
+
+    private void changeMembership(ServerLink link, String verb, String arguments) {
+        String[] words = arguments.split(" ");
+        RemoteUser user = words.length == 2 ? remoteUsers.get(words[0]) : null;
+        if (user == null || user.getLink() != link || !CommandParser.isValidChannelName(words[1])) {
+            return;
+        }
+        if (verb.equals(Configuration.JOIN)) {
+            ircS.handleRemoteJoin(words[1], user);
+        }
+        else {
+            ircS.handleRemotePart(words[1], user);
+        }
+        broadcast(verb + " " + arguments, link);
+    }
+
+    private void relayMessage(ServerLink link, String arguments) {
+        int space = arguments.indexOf(' ');
+        if (space > 0) {
+            ircS.handleRemoteMessage(arguments.substring(0, space), arguments.substring(space + 1), link);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+* Counters describing the traffic of an IrcServer. Every counter is a LongAdder,
+* so the threads of all clients can count without contending on a shared variable,
+* and the sums are only taken when somebody asks for them through STATS or the endpoint.
+*/
+public class Metrics {
+
+    /* Slot counting the lines whose verb is not in Configuration.COMMANDSET. */
+    private static final int UNKNOWN_SLOT = Configuration.COMMANDSET.length;
+    private static final String UNKNOWN_NAME = "unknown";
+    /* Fan-out bucket i counts broadcasts to [2^(i-1), 2^i) receivers, bucket 0 to none. */
+    private static final int FAN_OUT_BUCKETS = Integer.SIZE;
+
+    private LongAdder[] messagesIn;
+    private LongAdder[] messagesOut;
+    private LongAdder bytesIn;
+    private LongAdder broadcasts;
+    private LongAdder broadcastReceivers;
+    private LongAdder[] fanOutSizes;
+    /* Lines dropped from the outbound queues under the drop-oldest policy. */
+    private LongAdder droppedFrames;
+    private LongAdder slowConsumerDisconnects;
+    private LongAdder pingTimeoutDisconnects;
+    /* Commands held back by flood control, per class of FloodControl. */
+    private LongAdder[] throttled;
+    private WriteStats writeStats;
+
+    /**
+     * Create a set of counters starting at zero.
+     * @param writeStats Counters of the writes made by the transports, reported alongside.
+     */
+    public Metrics(WriteStats writeStats) {
+        this.messagesIn = newCounters(UNKNOWN_SLOT + 1);
+        this.messagesOut = newCounters(UNKNOWN_SLOT + 1);
+        this.bytesIn = new LongAdder();
+        this.broadcasts = new LongAdder();
+        this.broadcastReceivers = new LongAdder();
+        this.fanOutSizes = newCounters(FAN_OUT_BUCKETS);
+        this.droppedFrames = new LongAdder();
+        this.slowConsumerDisconnects = new LongAdder();
+        this.pingTimeoutDisconnects = new LongAdder();
+        this.throttled = newCounters(FloodControl.CLASS_COUNT);
+        this.writeStats = writeStats;
+    }
+
+    /**
+     * Public method to count a line received from a client.
+     * @param verb Index of its verb in {@link Configuration#COMMANDSET}, or {@link Command#UNKNOWN_VERB}.
+     */
+    public void recordIn(int verb) {
+        messagesIn[slot(verb)].increment();
+    }
+
+    /**
+     * Public method to count bytes read from a client.
+     * @param bytes Number of bytes read.
+     */
+    public void recordBytesIn(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    /**
+     * Public method to count lines sent to clients.
+     * @param verb Index of the verb the lines belong to, or {@link Command#UNKNOWN_VERB}.
+     * @param lines Number of lines.
+     */
+    public void recordOut(int verb, long lines) {
+        messagesOut[slot(verb)].add(lines);
+    }
+
+    /**
+     * Public method to count lines sent to clients.
+     * @param verb Verb the lines belong to, one of {@link Configuration#COMMANDSET}.
+     * @param lines Number of lines.
+     */
+    public void recordOut(String verb, long lines) {
+        recordOut(CommandParser.lookupVerb(verb, 0, verb.length()), lines);
+    }
+
+    /**
+     * Public method to count a line delivered to every member of a group of clients.
+     * @param verb Verb of the line, one of {@link Configuration#COMMANDSET}.
+     * @param receivers Number of clients the line was delivered to.
+     */
+    public void recordBroadcast(String verb, int receivers) {
+        recordOut(verb, receivers);
+        broadcasts.increment();
+        broadcastReceivers.add(receivers);
+        fanOutSizes[Integer.SIZE - Integer.numberOfLeadingZeros(receivers)].increment();
+    }
+
+    /**
+     * Public method to count a client disconnected for not reading its replies fast enough.
+     */
+    public void recordSlowConsumerDisconnect() {
+        slowConsumerDisconnects.increment();
+    }
+
+    /**
+     * Public method to count a line dropped from a full outbound queue under the drop-oldest policy.
+     */
+    public void recordDroppedFrame() {
+        droppedFrames.increment();
+    }
+
+    /**
+     * Public method to count a client disconnected for not answering a PING in time.
+     */
+    public void recordPingTimeoutDisconnect() {
+        pingTimeoutDisconnects.increment();
+    }
+
+    /**
+     * Public method to count a command held back because a bucket of flood control was empty.
+     * @param floodClass Class of the empty bucket, one of the classes of {@link FloodControl}.
+     */
+    public void recordThrottled(int floodClass) {
+        throttled[floodClass].increment();
+    }
+
+    /**
+     * Public getter to return how many clients were disconnected for being slow.
+     * @return The number of slow consumer disconnects.
+     */
+    public long getSlowConsumerDisconnects() {
+        return slowConsumerDisconnects.sum();
+    }
+
+    /**
+     * Public getter to return the counters of the writes made by the transports.
+     * @return The WriteStats reported alongside these counters.
+     */
+    public WriteStats getWriteStats() {
+        return writeStats;
+    }
+
+    /**
+     * Public method to add the current value of every counter to a snapshot.
+     * @param snapshot Map receiving "name -> value" entries, in reporting order.
+     */
+    public void addTo(Map<String, Long> snapshot) {
+        addVerbCounters(snapshot, "messages.in.", messagesIn);
+        addVerbCounters(snapshot, "messages.out.", messagesOut);
+        snapshot.put("bytes.in", bytesIn.sum());
+        snapshot.put("bytes.out", writeStats.getBytesWritten());
+        snapshot.put("frames.out", writeStats.getFramesWritten());
+        snapshot.put("writes", writeStats.getWriteCalls());
+        snapshot.put("flushes", writeStats.getFlushes());
+        snapshot.put("broadcasts", broadcasts.sum());
+        snapshot.put("broadcast.receivers", broadcastReceivers.sum());
+        for (int bucket = 0; bucket < fanOutSizes.length; bucket++) {
+            long count = fanOutSizes[bucket].sum();
+            if (count > 0) {
+                snapshot.put("broadcast.fanout." + bucketName(bucket), count);
+            }
+        }
+        snapshot.put("sendq.dropped", droppedFrames.sum());
+        snapshot.put("slow_consumer.disconnects", slowConsumerDisconnects.sum());
+        snapshot.put("ping_timeout.disconnects", pingTimeoutDisconnects.sum());
+        for (int floodClass = 0; floodClass < throttled.length; floodClass++) {
+            snapshot.put("throttled." + FloodControl.getClassName(floodClass), throttled[floodClass].sum());
+        }
+    }
+
+    private static void addVerbCounters(Map<String, Long> snapshot, String prefix, LongAdder[] counters) {
+        for (int verb = 0; verb < Configuration.COMMANDSET.length; verb++) {
+            snapshot.put(prefix + Configuration.COMMANDSET[verb], counters[verb].sum());
+        }
+        snapshot.put(prefix + UNKNOWN_NAME, counters[UNKNOWN_SLOT].sum());
+    }
+
+    /* "0", "1", "2_3", "4_7", ... */
+    private static String bucketName(int bucket) {
+        if (bucket < 2) {
+            return Integer.toString(bucket);
+        }
+        long lower = 1L << (bucket - 1);
+        return lower + "_" + ((lower << 1) - 1);
+    }
+
+    private static int slot(int verb) {
+        return verb == Command.UNKNOWN_VERB ? UNKNOWN_SLOT : verb;
+    }
+
+    private static LongAdder[] newCounters(int count) {
+        LongAdder[] counters = new LongAdder[count];
+        for (int index = 0; index < count; index++) {
+            counters[index] = new LongAdder();
+        }
+        return counters;
+    }
+}
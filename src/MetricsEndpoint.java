@@ -0,0 +1,67 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+* Serves the metrics of an IrcServer over HTTP on the loopback interface only,
+* in the plain text exposition format understood by Prometheus, e.g. "irc_connections 3".
+*/
+public class MetricsEndpoint {
+
+    private static final String PATH = "/metrics";
+    private static final String NAME_PREFIX = "irc_";
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final int HTTP_OK = 200;
+    private static final int HTTP_METHOD_NOT_ALLOWED = 405;
+
+    private IrcServer ircS;
+    private HttpServer httpServer;
+
+    /**
+     * Bind the endpoint to the specified port of the loopback interface and start serving.
+     * @param ircS The IRC Server whose metrics are served.
+     * @param port Port number.
+     * @throws IOException If the port cannot be bound.
+     */
+    public MetricsEndpoint(IrcServer ircS, int port) throws IOException {
+        this.ircS = ircS;
+        this.httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        httpServer.createContext(PATH, this::handle);
+        httpServer.start();
+    }
+
+    /**
+     * Public method to stop serving and release the port.
+     */
+    public void stop() {
+        httpServer.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(HTTP_METHOD_NOT_ALLOWED, -1);
+                return;
+            }
+            StringBuilder body = new StringBuilder();
+            for (Map.Entry<String, Long> metric : ircS.getMetricsSnapshot().entrySet()) {
+                body.append(NAME_PREFIX).append(metric.getKey().replace('.', '_'))
+                        .append(' ').append(metric.getValue()).append('\n');
+            }
+            byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(HTTP_OK, bytes.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(bytes);
+            }
+        }
+        finally {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+* Bounded queue of the Frames waiting to be written to one client.
+* Any client's thread may offer Frames, while only the connection's own writer polls them,
+* so a recipient with a full TCP window never blocks the thread of the sender.
+* When either the byte or the message limit would be exceeded, the policy decides
+* whether the oldest Frames are dropped or the client has to be disconnected.
+*/
+public class OutboundQueue {
+
+    private Deque<Frame> frames;
+    private ReentrantLock queueLock;
+    private long queuedBytes;
+    /* Counts the Frames dropped under the drop-oldest policy, null if they are not counted. */
+    private Metrics metrics;
+    private long maxBytes;
+    private int maxMessages;
+    private boolean dropOldest;
+
+    /**
+     * Create an empty queue with the specified limits, whose dropped Frames are not counted.
+     * @param maxBytes Maximum number of bytes queued at once.
+     * @param maxMessages Maximum number of Frames queued at once.
+     * @param policy One of {@link Configuration#SENDQ_POLICYSET}.
+     */
+    public OutboundQueue(long maxBytes, int maxMessages, String policy) {
+        this(maxBytes, maxMessages, policy, null);
+    }
+
+    /**
+     * Create an empty queue with the specified limits.
+     * @param maxBytes Maximum number of bytes queued at once.
+     * @param maxMessages Maximum number of Frames queued at once.
+     * @param policy One of {@link Configuration#SENDQ_POLICYSET}.
+     * @param metrics Counters the Frames dropped under the drop-oldest policy are added to, null for none.
+     */
+    public OutboundQueue(long maxBytes, int maxMessages, String policy, Metrics metrics) {
+        if (maxBytes < 1 || maxMessages < 1) {
+            throw new IllegalArgumentException("Outbound queue limits must be positive!");
+        }
+        if (policy.equals(Configuration.SENDQ_POLICY_DROP_OLDEST)) {
+            this.dropOldest = true;
+        }
+        else if (policy.equals(Configuration.SENDQ_POLICY_DISCONNECT)) {
+            this.dropOldest = false;
+        }
+        else {
+            throw new IllegalArgumentException("Unknown outbound queue policy!");
+        }
+        this.frames = new ArrayDeque<>();
+        this.queueLock = new ReentrantLock();
+        this.maxBytes = maxBytes;
+        this.maxMessages = maxMessages;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Public method to append a Frame to the queue, applying the overflow policy if it is full.
+     * A single Frame larger than the byte limit is still accepted by an empty queue.
+     * @param frame Encoded line to be queued.
+     * @return False if the queue overflowed under the disconnect policy, the queue is then emptied.
+     */
+    public boolean offer(Frame frame) {
+        queueLock.lock();
+        try {
+            while (!frames.isEmpty() && exceedsLimits(frame)) {
+                if (!dropOldest) {
+                    frames.clear();
+                    queuedBytes = 0;
+                    return false;
+                }
+                queuedBytes -= frames.poll().length();
+                if (metrics != null) {
+                    metrics.recordDroppedFrame();
+                }
+            }
+            frames.add(frame);
+            queuedBytes += frame.length();
+            return true;
+        }
+        finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Public method to remove the oldest Frame of the queue.
+     * @return The oldest Frame, or null if the queue is empty.
+     */
+    public Frame poll() {
+        queueLock.lock();
+        try {
+            Frame head = frames.poll();
+            if (head != null) {
+                queuedBytes -= head.length();
+            }
+            return head;
+        }
+        finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Public method to remove up to batch.length of the oldest Frames at once.
+     * @param batch Array the Frames are moved into, starting at index 0.
+     * @return The number of Frames moved.
+     */
+    public int pollBatch(Frame[] batch) {
+        queueLock.lock();
+        try {
+            int count = 0;
+            while (count < batch.length && !frames.isEmpty()) {
+                batch[count] = frames.poll();
+                queuedBytes -= batch[count].length();
+                count++;
+            }
+            return count;
+        }
+        finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Public method to drop every queued Frame, such as when the connection is aborted.
+     */
+    public void clear() {
+        queueLock.lock();
+        try {
+            frames.clear();
+            queuedBytes = 0;
+        }
+        finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Public method to return whether any Frame is waiting.
+     * @return Whether the queue is empty.
+     */
+    public boolean isEmpty() {
+        queueLock.lock();
+        try {
+            return frames.isEmpty();
+        }
+        finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Public getter to return the number of bytes currently queued.
+     * @return The number of queued bytes.
+     */
+    public long getQueuedBytes() {
+        queueLock.lock();
+        try {
+            return queuedBytes;
+        }
+        finally {
+            queueLock.unlock();
+        }
+    }
+
+    private boolean exceedsLimits(Frame frame) {
+        return frames.size() + 1 > maxMessages || queuedBytes + frame.length() > maxBytes;
+    }
+}
@@ -0,0 +1,341 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+* Non-blocking event loop of the IrcServer, one of a group sharing the connections between them.
+* Each Reactor's thread reads and decodes the input of its own connections and writes their
+* pending output, so an idle client costs a registered SocketChannel instead of a blocked thread.
+* Output produced while processing a batch of ready keys is written after the batch, once per connection.
+* Frames for connections of another Reactor are collected per Reactor and handed over after the batch
+* through that Reactor's lock-free task queue, so only the owning thread ever touches a connection.
+* A fan-out thread collects the Frames it delivers in the same way while it delivers a chunk of a broadcast.
+* The same thread turns the Reactor's TimingWheel, so the timeouts of the connections
+* run on the thread that owns them.
+*/
+public class Reactor implements Runnable {
+
+    /* The Reactor whose thread is running, null on any other thread. */
+    private static final ThreadLocal<Reactor> CURRENT = new ThreadLocal<>();
+    /* Frames for group[i] delivered by a thread which is not a Reactor, such as a fan-out thread,
+       while it collects them; null on the other threads. */
+    private static final ThreadLocal<DeliveryBatch[]> COLLECTED = new ThreadLocal<>();
+
+    private IrcServer ircS;
+    private Selector selector;
+    private BufferPool bufferPool;
+    /* Borrowed for as long as the event loop runs, shared by all its connections. */
+    private ByteBuffer readBuffer;
+    private Deque<ReactorConnection> pendingFlushes;
+    private TimingWheel timingWheel;
+    private int index;
+    /* All Reactors of the server, indexed like the outboxes. */
+    private Reactor[] group;
+    /* Frames for the connections of group[i], only touched by this Reactor's thread. */
+    private DeliveryBatch[] outboxes;
+    /* Tasks submitted by other threads, such as new connections and DeliveryBatches. */
+    private Queue<Runnable> tasks;
+    private AtomicBoolean wakeupRequested;
+    /* Set by a task once the server stops, only touched by this Reactor's thread. */
+    private boolean stopping;
+    private long stopDeadlineNanos;
+
+    /**
+     * Open the selector of one Reactor of a group.
+     * @param ircS The IRC Server the connections belong to.
+     * @param index Index of this Reactor in the group.
+     * @param group All Reactors of the server, which may still be filled until the threads are started.
+     * @throws IOException If the selector cannot be opened.
+     */
+    public Reactor(IrcServer ircS, int index, Reactor[] group) throws IOException {
+        this.ircS = ircS;
+        this.index = index;
+        this.group = group;
+        this.selector = Selector.open();
+        this.bufferPool = ircS.getBufferPool();
+        this.pendingFlushes = new ArrayDeque<>();
+        this.timingWheel = new TimingWheel(Configuration.TIMER_WHEEL_SLOTS, Configuration.TIMER_TICK_MILLIS);
+        this.outboxes = new DeliveryBatch[group.length];
+        for (int target = 0; target < outboxes.length; target++) {
+            outboxes[target] = new DeliveryBatch();
+        }
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.wakeupRequested = new AtomicBoolean(false);
+    }
+
+    /**
+     * Public getter to return the wheel turned by this reactor's thread.
+     * @return The TimingWheel of this Reactor.
+     */
+    public TimingWheel getTimingWheel() {
+        return timingWheel;
+    }
+
+    /**
+     * Public getter to return the pool the connections of this Reactor borrow their buffers from.
+     * @return The BufferPool of the server.
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Public method to return whether the calling thread is the thread of this Reactor.
+     * @return Whether the caller may touch the connections of this Reactor.
+     */
+    public boolean inEventLoop() {
+        return CURRENT.get() == this;
+    }
+
+    /**
+     * Public method to hand an accepted connection over to this Reactor, may be called by any thread.
+     * @param channel The accepted channel, still in blocking mode.
+     * @param webSocket Whether the client connected to the WebSocket port.
+     */
+    public void register(SocketChannel channel, boolean webSocket) {
+        execute(() -> openConnection(channel, webSocket));
+    }
+
+    /**
+     * Public method to have a Frame sent to a connection of this Reactor by another thread.
+     * Another Reactor adds it to its outbox for this Reactor, which is handed over after its batch,
+     * as does a thread collecting its deliveries, see {@link #collectDeliveries}.
+     * @param connection Connection of this Reactor.
+     * @param frame Encoded line to be sent.
+     */
+    public void deliver(ReactorConnection connection, Frame frame) {
+        Reactor current = CURRENT.get();
+        if (current != null) {
+            current.outboxes[index].add(connection, frame);
+            return;
+        }
+        DeliveryBatch[] collected = COLLECTED.get();
+        if (collected != null) {
+            if (collected[index] == null) {
+                collected[index] = new DeliveryBatch();
+            }
+            collected[index].add(connection, frame);
+        }
+        else {
+            DeliveryBatch batch = new DeliveryBatch();
+            batch.add(connection, frame);
+            execute(batch);
+        }
+    }
+
+    /**
+     * Public method to have the Frames the calling thread, which is not a Reactor, delivers to the
+     * connections of a group collected per Reactor until {@link #handOverDeliveries}.
+     * @param group All Reactors of the server.
+     */
+    public static void collectDeliveries(Reactor[] group) {
+        COLLECTED.set(new DeliveryBatch[group.length]);
+    }
+
+    /**
+     * Public method to hand the Frames collected by the calling thread over to their Reactors,
+     * one task per Reactor, and to stop collecting.
+     * @param group The Reactors passed to {@link #collectDeliveries}.
+     */
+    public static void handOverDeliveries(Reactor[] group) {
+        DeliveryBatch[] collected = COLLECTED.get();
+        COLLECTED.remove();
+        for (int target = 0; target < collected.length; target++) {
+            if (collected[target] != null) {
+                group[target].execute(collected[target]);
+            }
+        }
+    }
+
+    /**
+     * Public method to run a task on the calling Reactor after the tasks handed over to it so far,
+     * such as the Frames delivered by the fan-out threads, or at once on a thread which is not a Reactor.
+     * @param task The task to be run.
+     */
+    public static void runAfterDeliveries(Runnable task) {
+        Reactor current = CURRENT.get();
+        if (current != null) {
+            current.execute(task);
+        }
+        else {
+            task.run();
+        }
+    }
+
+    /**
+     * Public method to hand the outboxes of the calling Reactor over before the end of its batch,
+     * so that Frames another thread delivers from now on cannot overtake them.
+     * Nothing to do on a thread which is not a Reactor.
+     */
+    public static void handOverOutboxes() {
+        Reactor current = CURRENT.get();
+        if (current != null) {
+            current.flushOutboxes();
+        }
+    }
+
+    /**
+     * Public method to have the queued Frames of a connection written after the current batch.
+     * @param connection Connection with newly queued Frames.
+     */
+    public void requestFlush(ReactorConnection connection) {
+        pendingFlushes.add(connection);
+    }
+
+    /**
+     * Public method to have the event loop end once its connections are closed, may be called by any thread.
+     * The connections still open at the deadline are closed at once.
+     * @param deadlineNanos Time in System.nanoTime() the event loop ends at the latest.
+     */
+    public void stop(long deadlineNanos) {
+        execute(() -> {
+            stopping = true;
+            stopDeadlineNanos = deadlineNanos;
+        });
+    }
+
+    /**
+     * Run the event loop until the Reactor is stopped or the selector fails.
+     */
+    @Override
+    public void run() {
+        CURRENT.set(this);
+        // This thread borrows and returns the write buffers of all its connections.
+        bufferPool.enableThreadCache();
+        // Only the reactor thread reads, so one buffer is shared by all its connections.
+        readBuffer = bufferPool.acquire(Configuration.REACTOR_READ_BUFFER_SIZE);
+        try {
+            while (!stopping || !selector.keys().isEmpty() && System.nanoTime() - stopDeadlineNanos < 0) {
+                // Wake up at least once per tick to run the expired timeouts.
+                selector.select(timingWheel.getTickMillis());
+                // Reset before running the tasks, so a task submitted meanwhile wakes the next select().
+                wakeupRequested.set(false);
+                runTasks();
+                Iterator<SelectionKey> readyKeys = selector.selectedKeys().iterator();
+                while (readyKeys.hasNext()) {
+                    SelectionKey key = readyKeys.next();
+                    readyKeys.remove();
+                    if (key.isValid()) {
+                        serveConnection(key);
+                    }
+                }
+                timingWheel.advance();
+                flushOutboxes();
+                flushConnections();
+            }
+        }
+        catch (IOException ioe) {
+            System.out.println("Unknown IOException thrown when running Reactor :"
+                    + ioe.getMessage());
+        }
+        finally {
+            closeSelector();
+            bufferPool.release(readBuffer);
+            bufferPool.disableThreadCache();
+        }
+    }
+
+    private void closeSelector() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        }
+        catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+        }
+    }
+
+    /**
+     * Public method to run a task on the thread of this Reactor, may be called by any thread.
+     * @param task Task to be run after the current batch of events.
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (wakeupRequested.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task = tasks.poll();
+        while (task != null) {
+            task.run();
+            task = tasks.poll();
+        }
+    }
+
+    private void openConnection(SocketChannel channel, boolean webSocket) {
+        try {
+            channel.configureBlocking(false);
+            ReactorConnection connection = new ReactorConnection(channel, ircS.newOutboundQueue(),
+                    this, ircS.getMetrics());
+            connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+            ConnectionHandler newClient = new ConnectionHandler(connection);
+            newClient.setIrcServer(ircS);
+            connection.setHandler(newClient);
+            if (webSocket) {
+                WebSocketCodec codec = new WebSocketCodec(Charset.defaultCharset());
+                codec.setHandler(newClient);
+                connection.setWebSocket(codec);
+            }
+            ircS.addConnection(newClient, timingWheel);
+        }
+        catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+            try {
+                channel.close();
+            }
+            catch (IOException closeFailure) {
+                System.err.println(closeFailure.getMessage());
+            }
+        }
+    }
+
+    private void flushOutboxes() {
+        for (int target = 0; target < outboxes.length; target++) {
+            if (!outboxes[target].isEmpty()) {
+                group[target].execute(outboxes[target]);
+                outboxes[target] = new DeliveryBatch();
+            }
+        }
+    }
+
+    private void flushConnections() {
+        ReactorConnection connection = pendingFlushes.poll();
+        while (connection != null) {
+            try {
+                connection.onWritable();
+            }
+            catch (IOException ioe) {
+                connection.onFailure();
+            }
+            connection = pendingFlushes.poll();
+        }
+    }
+
+    private void serveConnection(SelectionKey key) {
+        ReactorConnection connection = (ReactorConnection) key.attachment();
+        try {
+            if (key.isReadable()) {
+                connection.onReadable(readBuffer);
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.onWritable();
+            }
+        }
+        catch (IOException ioe) {
+            connection.onFailure();
+        }
+    }
+}
@@ -0,0 +1,352 @@
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+* Transport of a connection served by the Reactor. Inbound bytes are decoded into
+* lines for the ConnectionHandler, outbound lines are queued in the bounded OutboundQueue
+* and written by the Reactor once it finished processing the current batch of events,
+* so all lines produced for this client in that batch leave with one write.
+* The lines are copied into a direct buffer borrowed from the BufferPool, which the channel
+* writes without another copy, and which is returned as soon as everything was written;
+* whatever the socket cannot take yet stays in it until the channel becomes writable.
+* Only the thread of the owning Reactor touches the connection, lines sent by the
+* connections of other Reactors are handed over to it first.
+* On a WebSocket connection the header of each message is copied in front of its line.
+*/
+public class ReactorConnection implements ClientTransport {
+
+    private SocketChannel channel;
+    private SelectionKey key;
+    private Reactor reactor;
+    private ConnectionHandler handler;
+    private InputDecoder decoder;
+    /* Null unless the client connected to the WebSocket port. */
+    private WebSocketCodec webSocket;
+    private OutboundQueue outbound;
+    private WriteStats stats;
+    private Metrics metrics;
+    private BufferPool bufferPool;
+    /* Borrowed while bytes wait to be written, in write mode, null otherwise. */
+    private ByteBuffer writeBuffer;
+    /* The Frame cut off at the end of the write buffer, and how many of its bytes were copied. */
+    private Frame current;
+    private int currentOffset;
+    private boolean headerPending;
+    private boolean flushRequested;
+    private boolean closeRequested;
+    private boolean closed;
+
+    /**
+     * Wrap an accepted non-blocking SocketChannel.
+     * @param channel The accepted channel, already in non-blocking mode.
+     * @param outbound Queue holding the Frames until they are written.
+     * @param reactor The Reactor serving this connection.
+     * @param metrics Counters of the server, including those of the writes made.
+     */
+    public ReactorConnection(SocketChannel channel, OutboundQueue outbound, Reactor reactor, Metrics metrics) {
+        this.channel = channel;
+        this.reactor = reactor;
+        this.decoder = new LineDecoder(Charset.defaultCharset());
+        this.outbound = outbound;
+        this.metrics = metrics;
+        this.stats = metrics.getWriteStats();
+        this.bufferPool = reactor.getBufferPool();
+        this.flushRequested = false;
+        this.closeRequested = false;
+        this.closed = false;
+    }
+
+    /**
+     * Public method to set the key this connection was registered with.
+     * @param key SelectionKey of the channel.
+     */
+    public void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Public method to decode the input and send every line as WebSocket messages, to be called
+     * before the channel is read.
+     * @param webSocket The codec of the connection.
+     */
+    public void setWebSocket(WebSocketCodec webSocket) {
+        this.webSocket = webSocket;
+        this.decoder = webSocket;
+    }
+
+    /**
+     * Public method to set the handler which processes the decoded lines.
+     * @param handler ConnectionHandler of this connection.
+     */
+    public void setHandler(ConnectionHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Called by the Reactor when the channel is readable.
+     * @param readBuffer Buffer shared by the reactor thread, cleared before use.
+     * @throws IOException If reading from the channel failed.
+     */
+    public void onReadable(ByteBuffer readBuffer) throws IOException {
+        readBuffer.clear();
+        int count = channel.read(readBuffer);
+        if (count < 0) {
+            handler.handleConnectionLost();
+            closeNow();
+            return;
+        }
+        metrics.recordBytesIn(count);
+        readBuffer.flip();
+        decoder.decode(readBuffer, this::deliverLine);
+        pauseIfThrottled();
+    }
+
+    /**
+     * Called by the Reactor when the channel is writable, or after a batch of events
+     * if Frames were queued, to write as much queued data as possible.
+     * @throws IOException If writing to the channel failed.
+     */
+    public void onWritable() throws IOException {
+        flushRequested = false;
+        flushPending();
+    }
+
+    /**
+     * Called by the Reactor if an I/O operation on the channel failed.
+     */
+    public void onFailure() {
+        if (!closed) {
+            handler.handleConnectionLost();
+            closeNow();
+        }
+    }
+
+    /**
+     * Queue a Frame to be written after the current batch of events.
+     * @param frame Encoded line to be sent.
+     * @return False if the outbound queue overflowed and the client has to be disconnected.
+     */
+    @Override
+    public boolean sendFrame(Frame frame) {
+        if (!reactor.inEventLoop()) {
+            // An overflow is detected once the owning Reactor delivers the Frame.
+            reactor.deliver(this, frame);
+            return true;
+        }
+        if (closed || closeRequested) {
+            return true;
+        }
+        if (!outbound.offer(frame)) {
+            return false;
+        }
+        requestFlush();
+        return true;
+    }
+
+    /**
+     * Public method to queue a Frame handed over by another Reactor, on the owning Reactor's thread.
+     * @param frame Encoded line to be sent.
+     */
+    public void deliver(Frame frame) {
+        if (!closed && !closeRequested) {
+            handler.sendFrame(frame);
+        }
+    }
+
+    /**
+     * Nothing to do, the Reactor already writes once per batch of events.
+     */
+    @Override
+    public void beginBatch() {
+    }
+
+    /**
+     * Nothing to do, the Reactor already writes once per batch of events.
+     */
+    @Override
+    public void endBatch() {
+    }
+
+    /**
+     * Run a task on the thread of the Reactor, after the tasks handed over to it so far.
+     * @param task Task to be run.
+     */
+    @Override
+    public void execute(Runnable task) {
+        reactor.execute(task);
+    }
+
+    /**
+     * Public getter to return the number of bytes queued and not written yet.
+     * @return The number of queued bytes.
+     */
+    @Override
+    public long getQueuedBytes() {
+        return outbound.getQueuedBytes();
+    }
+
+    /**
+     * Close the channel as soon as all queued data has been written.
+     */
+    @Override
+    public void close() {
+        if (!reactor.inEventLoop()) {
+            reactor.execute(this::close);
+            return;
+        }
+        Frame closeFrame = webSocket == null ? null : webSocket.takeCloseFrame();
+        if (closeFrame != null) {
+            sendFrame(closeFrame);
+        }
+        closeRequested = true;
+        requestFlush();
+    }
+
+    /**
+     * Reset the connection at once, dropping the queued Frames along with the bytes the kernel
+     * still holds for the client.
+     */
+    @Override
+    public void abort() {
+        if (!reactor.inEventLoop()) {
+            reactor.execute(this::abort);
+            return;
+        }
+        outbound.clear();
+        if (!closed) {
+            try {
+                channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+            }
+            catch (IOException ioe) {
+                System.err.println(ioe.getMessage());
+            }
+        }
+        closeNow();
+    }
+
+    /* Stop reading while flood control holds lines back, and retry them on the TimingWheel. */
+    private void pauseIfThrottled() {
+        long delay = handler.getPendingDelayNanos();
+        if (delay > 0 && !closed) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            reactor.getTimingWheel().schedule(this::resumeReading,
+                    TimeUnit.NANOSECONDS.toMillis(delay + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+        }
+    }
+
+    private void resumeReading() {
+        if (closed || closeRequested) {
+            return;
+        }
+        handler.processPendingLines();
+        if (handler.getPendingDelayNanos() > 0) {
+            pauseIfThrottled();
+        }
+        else if (!closed && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    private void requestFlush() {
+        if (!flushRequested) {
+            flushRequested = true;
+            reactor.requestFlush(this);
+        }
+    }
+
+    private void deliverLine(String line) {
+        if (!closed && !closeRequested) {
+            handler.handleLine(line);
+        }
+    }
+
+    private void flushPending() throws IOException {
+        if (closed) {
+            return;
+        }
+        boolean wroteAny = false;
+        while (writeBuffer != null || current != null || !outbound.isEmpty()) {
+            if (writeBuffer == null) {
+                writeBuffer = bufferPool.acquire(Configuration.WRITE_BUFFER_SIZE);
+            }
+            int frames = fillWriteBuffer();
+            writeBuffer.flip();
+            long written = channel.write(writeBuffer);
+            writeBuffer.compact();
+            stats.recordWrite(frames, written);
+            wroteAny = true;
+            if (writeBuffer.position() > 0) {
+                // Socket buffer is full, wait until the reactor reports it writable.
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            releaseWriteBuffer();
+        }
+        if (wroteAny) {
+            stats.recordFlush();
+        }
+        if (key.isValid()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+        if (closeRequested) {
+            closeNow();
+        }
+    }
+
+    /* Copy queued Frames into the write buffer until it is full, returning how many were completed. */
+    private int fillWriteBuffer() {
+        int frames = 0;
+        while (true) {
+            if (current == null) {
+                current = outbound.poll();
+                if (current == null) {
+                    return frames;
+                }
+                currentOffset = 0;
+                headerPending = webSocket != null && !current.isVerbatim();
+            }
+            if (headerPending) {
+                if (writeBuffer.remaining() < WebSocketCodec.MAX_HEADER_BYTES) {
+                    return frames;
+                }
+                webSocket.putHeader(current, writeBuffer);
+                headerPending = false;
+            }
+            int end = webSocket == null ? current.length() : webSocket.payloadLength(current);
+            currentOffset += current.copyTo(writeBuffer, currentOffset, end);
+            if (currentOffset < end) {
+                return frames;
+            }
+            current = null;
+            frames++;
+        }
+    }
+
+    private void releaseWriteBuffer() {
+        if (writeBuffer != null) {
+            bufferPool.release(writeBuffer);
+            writeBuffer = null;
+        }
+    }
+
+    private void closeNow() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        releaseWriteBuffer();
+        current = null;
+        key.cancel();
+        try {
+            channel.close();
+        }
+        catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+        }
+    }
+}
@@ -0,0 +1,87 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+* Represents a registered user of another server of the network, known through
+* the ServerLink it is reached by. Only the nickname and the channels it joined
+* are kept, everything sent to the user is handed to that link.
+*/
+public class RemoteUser {
+
+    private volatile String nickname;
+    private String serverName;
+    private ServerLink link;
+    /* Channels this user joined, so a QUIT or a netsplit only visits those. */
+    private Set<Channel> joinedChannels;
+
+    /**
+     * Create a user introduced by a link.
+     * @param nickname The nickname of the user.
+     * @param serverName Name of the server the user is connected to.
+     * @param link The link the user is reached by.
+     */
+    public RemoteUser(String nickname, String serverName, ServerLink link) {
+        this.nickname = nickname;
+        this.serverName = serverName;
+        this.link = link;
+        this.joinedChannels = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Public getter to return the nickname of this user.
+     * @return The nickname of this user.
+     */
+    public String getNickname() {
+        return nickname;
+    }
+
+    /**
+     * Public method to change the nickname of this user.
+     * @param nickname The new nickname of this user.
+     */
+    public void setNickname(String nickname) {
+        this.nickname = nickname;
+    }
+
+    /**
+     * Public getter to return the name of the server this user is connected to.
+     * @return The name of the server of this user.
+     */
+    public String getServerName() {
+        return serverName;
+    }
+
+    /**
+     * Public getter to return the link this user is reached by.
+     * @return The ServerLink towards the server of this user.
+     */
+    public ServerLink getLink() {
+        return link;
+    }
+
+    /**
+     * Public method to record that this user joined a channel.
+     * @param channel The joined channel.
+     */
+    public void addJoinedChannel(Channel channel) {
+        joinedChannels.add(channel);
+    }
+
+    /**
+     * Public method to record that this user left a channel.
+     * @param channel The channel left.
+     */
+    public void removeJoinedChannel(Channel channel) {
+        joinedChannels.remove(channel);
+    }
+
+    /**
+     * Public getter to return the channels this user joined.
+     * @return A copy of the joined channels.
+     */
+    public List<Channel> getJoinedChannels() {
+        return new ArrayList<>(joinedChannels);
+    }
+}
@@ -0,0 +1,147 @@
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+* Encodes the structural replies ":<server_name> <code> <nickname> ..." of one connection
+* straight into bytes. The ":<server_name> " prefix is encoded once per server and the
+* nickname once per NICK change, so a reply only copies cached bytes and its own text
+* into a reused buffer before being turned into a Frame.
+* Not thread-safe, replies are only built by the connection's own thread.
+*/
+public class ReplyEncoder {
+
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final byte[] LINE_TERMINATOR = System.lineSeparator().getBytes(CHARSET);
+    private static final byte[] NO_NICKNAME = "*".getBytes(CHARSET);
+    private static final byte SPACE = ' ';
+    private static final byte COLON = ':';
+    /* Characters below this are encoded as a single equal byte by the default charsets. */
+    private static final char ASCII_LIMIT = 0x80;
+
+    private byte[] serverPrefix;
+    private byte[] nickname;
+    private byte[] buffer;
+    private int length;
+
+    /**
+     * Create an encoder for a connection which has not set its nickname yet.
+     * @param serverPrefix Bytes of ":<server_name> ", see {@link #encodeServerPrefix}.
+     */
+    public ReplyEncoder(byte[] serverPrefix) {
+        this.serverPrefix = serverPrefix;
+        this.nickname = NO_NICKNAME;
+        this.buffer = new byte[Configuration.LINE_BUFFER_INITIAL_SIZE];
+        this.length = 0;
+    }
+
+    /**
+     * Public method to encode the prefix shared by all replies of a server.
+     * @param serverName Name of the server.
+     * @return Bytes of ":<server_name> ".
+     */
+    public static byte[] encodeServerPrefix(String serverName) {
+        return (":" + serverName + " ").getBytes(CHARSET);
+    }
+
+    /**
+     * Public method to refresh the cached nickname after the client changed it.
+     * @param nickname The new nickname of the client.
+     */
+    public void setNickname(String nickname) {
+        this.nickname = nickname.getBytes(CHARSET);
+    }
+
+    /**
+     * Public method to start a reply addressed to the client's nickname.
+     * @param replyCode Numeric code of the reply.
+     * @return This encoder, holding ":<server_name> <code> <nickname>".
+     */
+    public ReplyEncoder begin(String replyCode) {
+        return begin(replyCode, nickname);
+    }
+
+    /**
+     * Public method to start a reply addressed to '*' whatever the client's nickname is.
+     * @param replyCode Numeric code of the reply.
+     * @return This encoder, holding ":<server_name> <code> *".
+     */
+    public ReplyEncoder beginWithoutNickname(String replyCode) {
+        return begin(replyCode, NO_NICKNAME);
+    }
+
+    /**
+     * Public method to append a space followed by some text.
+     * @param text Text to be appended.
+     * @return This encoder.
+     */
+    public ReplyEncoder appendParameter(String text) {
+        appendByte(SPACE);
+        return append(text);
+    }
+
+    /**
+     * Public method to append the trailing parameter " :<text>".
+     * @param text Text to be appended.
+     * @return This encoder.
+     */
+    public ReplyEncoder appendTrailing(String text) {
+        appendByte(SPACE);
+        appendByte(COLON);
+        return append(text);
+    }
+
+    /**
+     * Public method to append some text as it is.
+     * @param text Text to be appended.
+     * @return This encoder.
+     */
+    public ReplyEncoder append(String text) {
+        int count = text.length();
+        ensureCapacity(count);
+        for (int index = 0; index < count; index++) {
+            char c = text.charAt(index);
+            if (c >= ASCII_LIMIT) {
+                // Leave anything beyond ASCII to the charset.
+                appendBytes(text.substring(index).getBytes(CHARSET));
+                return this;
+            }
+            buffer[length++] = (byte) c;
+        }
+        return this;
+    }
+
+    /**
+     * Public method to terminate the reply being built.
+     * @return The encoded line, including its line terminator.
+     */
+    public Frame toFrame() {
+        appendBytes(LINE_TERMINATOR);
+        return Frame.copyOf(buffer, length);
+    }
+
+    private ReplyEncoder begin(String replyCode, byte[] addressee) {
+        length = 0;
+        appendBytes(serverPrefix);
+        append(replyCode);
+        appendByte(SPACE);
+        appendBytes(addressee);
+        return this;
+    }
+
+    private void appendByte(byte b) {
+        ensureCapacity(1);
+        buffer[length++] = b;
+    }
+
+    private void appendBytes(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+        }
+    }
+}
@@ -0,0 +1,362 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+* The settings of a server, read from a configuration file and command-line options on top of the
+* defaults in {@link Configuration}. Every setting is a system property named like "irc.sendq.bytes",
+* and is looked up where it is used, so the settings are installed as system properties once
+* validated. A setting given on the command line, as an option "--irc.sendq.bytes=65536" or as a
+* "-D" option of the JVM, takes precedence over the file. The file is watched, and once it changed
+* it is read and validated again: the settings marked reloadable are applied to the running server,
+* while a change of any other setting only takes effect after a restart.
+*/
+public class ServerConfig {
+
+    /**Command-line option naming the configuration file.*/
+    public static final String CONFIG_OPTION = "--config=";
+
+    /**Prefix of the command-line options overriding a setting.*/
+    public static final String OPTION_PREFIX = "--";
+
+    private static final long MAX_THREADS = 1024;
+    private static final long MAX_PORT = 65535;
+    private static final long MAX_BUFFER_BYTES = 67108864;
+    private static final long MIN_SEGMENT_BYTES = 4096;
+    /* Highest flood rate per second and burst, keeping the TokenBucket arithmetic in range. */
+    private static final long MAX_FLOOD_TOKENS = 1000000;
+    private static final Map<String, Setting> SETTINGS = buildSettings();
+
+    private Path file;
+    /* Keys set on the command line, which the file does not override. */
+    private Set<String> pinned;
+    /* The values the file had when it was last read successfully. */
+    private Map<String, String> fileValues;
+    private long fileModified;
+    private ScheduledExecutorService watcher;
+
+    /**
+     * Read the configuration file, if any, and the command-line overrides, validate
+     * all settings and install them as system properties.
+     * @param file The configuration file, null if there is none.
+     * @param overrides Settings given on the command line, taking precedence over the file.
+     * @throws IllegalStateException If a setting is unknown or invalid, or the file cannot be read,
+     *     with every problem found in its message.
+     */
+    public ServerConfig(Path file, Map<String, String> overrides) {
+        this.file = file;
+        this.pinned = new HashSet<>(overrides.keySet());
+        for (String key : System.getProperties().stringPropertyNames()) {
+            if (SETTINGS.containsKey(key)) {
+                pinned.add(key);
+            }
+        }
+        List<String> problems = new ArrayList<>();
+        this.fileValues = file == null ? new HashMap<>() : readFile(problems);
+        Map<String, String> merged = new LinkedHashMap<>(fileValues);
+        merged.putAll(overrides);
+        for (String key : System.getProperties().stringPropertyNames()) {
+            if (SETTINGS.containsKey(key) && !overrides.containsKey(key)) {
+                merged.put(key, System.getProperty(key));
+            }
+        }
+        validate(merged, problems);
+        if (!problems.isEmpty()) {
+            throw new IllegalStateException(String.join("\n", problems));
+        }
+        merged.forEach(System::setProperty);
+    }
+
+    /**
+     * Public method to split the command-line options of IrcServerMain from its other arguments.
+     * @param args All arguments.
+     * @param options Filled with the "--key=value" options, the configuration file under {@link #CONFIG_OPTION}.
+     * @return The other arguments, in order.
+     * @throws IllegalStateException If an option has no value.
+     */
+    public static List<String> parseOptions(String[] args, Map<String, String> options) {
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (!arg.startsWith(OPTION_PREFIX)) {
+                positional.add(arg);
+            }
+            else {
+                int equals = arg.indexOf('=');
+                if (equals < 0) {
+                    throw new IllegalStateException("Option without value: " + arg);
+                }
+                options.put(arg.substring(OPTION_PREFIX.length(), equals), arg.substring(equals + 1));
+            }
+        }
+        return positional;
+    }
+
+    /**
+     * Public method to check the configuration file for changes from now on, applying them to the server.
+     * @param ircS The server the reloadable settings are applied to.
+     * @param intervalMillis Time in milliseconds between two checks.
+     */
+    public void watch(IrcServer ircS, long intervalMillis) {
+        if (file == null) {
+            return;
+        }
+        watcher = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "config-watcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watcher.scheduleWithFixedDelay(() -> {
+            if (lastModified() != fileModified) {
+                reload(ircS);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Public method to stop checking the configuration file.
+     */
+    public void close() {
+        if (watcher != null) {
+            watcher.shutdownNow();
+        }
+    }
+
+    /**
+     * Public method to read the configuration file again and apply the reloadable settings that changed.
+     * Nothing is applied if any setting of the file is invalid.
+     * @param ircS The server the settings are applied to.
+     * @return The problems found, each a line naming the setting, empty if the file was applied.
+     */
+    public List<String> reload(IrcServer ircS) {
+        List<String> problems = new ArrayList<>();
+        Map<String, String> reloaded = readFile(problems);
+        validate(reloaded, problems);
+        if (!problems.isEmpty()) {
+            for (String problem : problems) {
+                System.out.println("Configuration not reloaded: " + problem);
+            }
+            return problems;
+        }
+        Set<String> keys = new HashSet<>(fileValues.keySet());
+        keys.addAll(reloaded.keySet());
+        boolean changed = false;
+        for (String key : keys) {
+            String value = reloaded.get(key);
+            if (pinned.contains(key) || value != null && value.equals(fileValues.get(key))) {
+                continue;
+            }
+            if (!SETTINGS.get(key).reloadable) {
+                System.out.println("The setting " + key + " only takes effect after a restart");
+            }
+            else {
+                if (value == null) {
+                    System.clearProperty(key);
+                }
+                else {
+                    System.setProperty(key, value);
+                }
+                System.out.println("The setting " + key + " was changed to " + (value == null ? "its default" : value));
+                changed = true;
+            }
+        }
+        fileValues = reloaded;
+        if (changed) {
+            ircS.reloadSettings();
+        }
+        return problems;
+    }
+
+    private Map<String, String> readFile(List<String> problems) {
+        Map<String, String> values = new HashMap<>();
+        fileModified = lastModified();
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        catch (IOException ioe) {
+            problems.add("Cannot read " + file + ": " + ioe.getClass().getSimpleName());
+        }
+        for (String key : properties.stringPropertyNames()) {
+            values.put(key, properties.getProperty(key).trim());
+        }
+        return values;
+    }
+
+    private long lastModified() {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        }
+        catch (IOException ioe) {
+            return -1;
+        }
+    }
+
+    private static void validate(Map<String, String> values, List<String> problems) {
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            Setting setting = SETTINGS.get(entry.getKey());
+            if (setting == null) {
+                problems.add(entry.getKey() + ": unknown setting");
+            }
+            else {
+                String problem = setting.check(entry.getValue());
+                if (problem != null) {
+                    problems.add(entry.getKey() + ": " + problem);
+                }
+            }
+        }
+    }
+
+    private static Map<String, Setting> buildSettings() {
+        List<Setting> settings = new ArrayList<>(Arrays.asList(
+                Setting.number(Configuration.REACTORS_PROPERTY, 1, MAX_THREADS, false),
+                Setting.number(Configuration.ACCEPTORS_PROPERTY, 1, MAX_THREADS, false),
+                Setting.number(Configuration.ACCEPT_BACKLOG_PROPERTY, 1, Integer.MAX_VALUE, false),
+                Setting.number(Configuration.SHUTDOWN_TIMEOUT_PROPERTY, 0, Long.MAX_VALUE, false),
+                Setting.number(Configuration.SOCKET_RECEIVE_BUFFER_PROPERTY, 0, MAX_BUFFER_BYTES, true),
+                Setting.number(Configuration.SOCKET_SEND_BUFFER_PROPERTY, 0, MAX_BUFFER_BYTES, true),
+                Setting.flag(Configuration.TCP_NODELAY_PROPERTY, true),
+                Setting.number(Configuration.SENDQ_BYTES_PROPERTY, 1, Long.MAX_VALUE, true),
+                Setting.number(Configuration.SENDQ_MESSAGES_PROPERTY, 1, Integer.MAX_VALUE, true),
+                Setting.choice(Configuration.SENDQ_POLICY_PROPERTY, Configuration.SENDQ_POLICYSET, true),
+                Setting.number(Configuration.FLUSH_WINDOW_PROPERTY, 0, Long.MAX_VALUE, false),
+                Setting.number(Configuration.BUFFER_POOL_BYTES_PROPERTY, 0, Long.MAX_VALUE, false),
+                Setting.number(Configuration.FANOUT_THREADS_PROPERTY, 0, MAX_THREADS, false),
+                Setting.number(Configuration.FANOUT_THRESHOLD_PROPERTY, 1, Integer.MAX_VALUE, true),
+                Setting.number(Configuration.FANOUT_CHUNK_PROPERTY, 1, Integer.MAX_VALUE, false),
+                Setting.number(Configuration.METRICS_PORT_PROPERTY, 0, MAX_PORT, false),
+                Setting.number(Configuration.WEBSOCKET_PORT_PROPERTY, 0, MAX_PORT, false),
+                Setting.number(Configuration.PING_INTERVAL_PROPERTY, 0, Long.MAX_VALUE, true),
+                Setting.number(Configuration.PING_TIMEOUT_PROPERTY, 1, Long.MAX_VALUE, true),
+                Setting.number(Configuration.LINK_PORT_PROPERTY, 0, MAX_PORT, false),
+                Setting.text(Configuration.LINK_ADDRESS_PROPERTY, false),
+                Setting.peers(Configuration.LINK_PEERS_PROPERTY, false),
+                Setting.number(Configuration.LINK_RETRY_PROPERTY, 1, Long.MAX_VALUE, false),
+                Setting.number(Configuration.HISTORY_LINES_PROPERTY, 1, Integer.MAX_VALUE, true),
+                Setting.text(Configuration.HISTORY_DIR_PROPERTY, false),
+                Setting.number(Configuration.HISTORY_SEGMENT_BYTES_PROPERTY, MIN_SEGMENT_BYTES, Integer.MAX_VALUE, false),
+                Setting.number(Configuration.HISTORY_SEGMENTS_PROPERTY, 1, Integer.MAX_VALUE, false),
+                Setting.text(Configuration.STATE_DIR_PROPERTY, false),
+                Setting.number(Configuration.STATE_SNAPSHOT_RECORDS_PROPERTY, 1, Long.MAX_VALUE, false),
+                Setting.number(Configuration.STATE_SNAPSHOT_INTERVAL_PROPERTY, 1, Long.MAX_VALUE, false),
+                Setting.flag(Configuration.STATE_FSYNC_PROPERTY, false),
+                Setting.number(Configuration.CONFIG_POLL_PROPERTY, 1, Long.MAX_VALUE, false)));
+        for (int floodClass = 0; floodClass < FloodControl.CLASS_COUNT; floodClass++) {
+            String prefix = Configuration.FLOOD_PROPERTY_PREFIX + FloodControl.getClassName(floodClass);
+            settings.add(Setting.number(prefix + Configuration.FLOOD_RATE_SUFFIX, 0, MAX_FLOOD_TOKENS, true));
+            settings.add(Setting.number(prefix + Configuration.FLOOD_BURST_SUFFIX, 1, MAX_FLOOD_TOKENS, true));
+        }
+        Map<String, Setting> byKey = new HashMap<>();
+        for (Setting setting : settings) {
+            byKey.put(setting.key, setting);
+        }
+        return byKey;
+    }
+
+    /**
+    * A known setting and the values it accepts.
+    */
+    private static final class Setting {
+
+        private final String key;
+        private final long min;
+        private final long max;
+        /* Accepted values of a setting which is not a number, null for any text. */
+        private final List<String> choices;
+        private final boolean numeric;
+        /* Whether the value is a comma-separated list of host:port, whose ports are checked against min and max. */
+        private final boolean peerList;
+        private final boolean reloadable;
+
+        private Setting(String key, long min, long max, List<String> choices, boolean numeric, boolean peerList,
+                boolean reloadable) {
+            this.key = key;
+            this.min = min;
+            this.max = max;
+            this.choices = choices;
+            this.numeric = numeric;
+            this.peerList = peerList;
+            this.reloadable = reloadable;
+        }
+
+        static Setting number(String key, long min, long max, boolean reloadable) {
+            return new Setting(key, min, max, null, true, false, reloadable);
+        }
+
+        static Setting peers(String key, boolean reloadable) {
+            return new Setting(key, 1, MAX_PORT, null, false, true, reloadable);
+        }
+
+        static Setting flag(String key, boolean reloadable) {
+            return choice(key, new String[] {"true", "false"}, reloadable);
+        }
+
+        static Setting choice(String key, String[] choices, boolean reloadable) {
+            return new Setting(key, 0, 0, Arrays.asList(choices), false, false, reloadable);
+        }
+
+        static Setting text(String key, boolean reloadable) {
+            return new Setting(key, 0, 0, null, false, false, reloadable);
+        }
+
+        /* Return what is wrong with a value, null if it is accepted. */
+        String check(String value) {
+            if (numeric) {
+                long number;
+                try {
+                    number = Long.parseLong(value);
+                }
+                catch (NumberFormatException nfe) {
+                    return "not a number: " + value;
+                }
+                return number < min || number > max ? "out of the range " + min + " to " + max + ": " + value : null;
+            }
+            if (peerList) {
+                return checkPeers(value);
+            }
+            if (choices != null && !choices.contains(value)) {
+                return "not one of " + choices + ": " + value;
+            }
+            return null;
+        }
+
+        /* Every non-empty entry needs a host and a port in range, as LinkManager splits them at the last ':'. */
+        private String checkPeers(String value) {
+            for (String peer : value.split(",")) {
+                String address = peer.trim();
+                if (address.isEmpty()) {
+                    continue;
+                }
+                int colon = address.lastIndexOf(':');
+                if (colon <= 0) {
+                    return "not a host:port: " + address;
+                }
+                long port;
+                try {
+                    port = Long.parseLong(address.substring(colon + 1));
+                }
+                catch (NumberFormatException nfe) {
+                    return "port not a number: " + address;
+                }
+                if (port < min || port > max) {
+                    return "port out of the range " + min + " to " + max + ": " + address;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+* A TCP link to a neighbouring server of the network. The link is read by its own thread,
+* which hands every line to the LinkManager, and written like a client connection through
+* a SocketTransport, so a slow peer never blocks the threads relaying to it. A link whose
+* outbound queue overflows is split rather than let the network state drift apart.
+*/
+public class ServerLink implements Runnable {
+
+    private LinkManager manager;
+    private Socket socket;
+    private BufferedReader input;
+    private SocketTransport transport;
+    /* Name the peer introduced itself with, null until its SERVER line arrived. */
+    private volatile String peerName;
+    private AtomicBoolean closed;
+
+    /**
+     * Wrap a connected socket, the link is read once run() is called.
+     * @param manager The LinkManager of this server.
+     * @param socket Socket connected to the peer.
+     * @param writerPool Executor running the writer of this link.
+     * @param stats Counters of the writes made.
+     * @throws IOException If the streams of the socket cannot be opened.
+     */
+    public ServerLink(LinkManager manager, Socket socket, Executor writerPool, WriteStats stats)
+            throws IOException {
+        this.manager = manager;
+        this.socket = socket;
+        socket.setTcpNoDelay(true);
+        this.input = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                Charset.defaultCharset()));
+        OutboundQueue outbound = new OutboundQueue(Configuration.LINK_SENDQ_MAX_BYTES,
+                Configuration.LINK_SENDQ_MAX_MESSAGES, Configuration.SENDQ_POLICY_DISCONNECT);
+        // A link is busy for as long as it lives, so it keeps the one write buffer it needs.
+        this.transport = new SocketTransport(socket, outbound, writerPool, null, 0, stats,
+                new BufferPool(false, Configuration.WRITE_BUFFER_SIZE));
+        this.closed = new AtomicBoolean(false);
+    }
+
+    /**
+     * Public getter to return the name of the peer.
+     * @return The name of the neighbouring server, null until it introduced itself.
+     */
+    public String getPeerName() {
+        return peerName;
+    }
+
+    /**
+     * Public method to set the name the peer introduced itself with.
+     * @param peerName The name of the neighbouring server.
+     */
+    public void setPeerName(String peerName) {
+        this.peerName = peerName;
+    }
+
+    /**
+     * Public method to queue a line to the peer, may be called by any thread.
+     * @param line The line to be sent, without line terminator.
+     */
+    public void send(String line) {
+        if (!transport.sendLine(line)) {
+            System.out.println("The server link to " + peerName + " exceeded its SendQ");
+            abort();
+        }
+    }
+
+    /**
+     * Public method to close this link once the queued lines are written.
+     */
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            transport.close();
+            manager.linkLost(this);
+        }
+    }
+
+    /* Close the socket at once, dropping the queued lines. */
+    private void abort() {
+        try {
+            socket.close();
+        }
+        catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+        }
+        close();
+    }
+
+    /**
+     * Read the lines of the peer until the link is closed.
+     */
+    @Override
+    public void run() {
+        try {
+            String line = input.readLine();
+            while (line != null && !closed.get()) {
+                manager.handleLinkLine(this, line);
+                line = input.readLine();
+            }
+            close();
+        }
+        catch (IOException ioe) {
+            if (!closed.get()) {
+                System.out.println("The server link to " + peerName + " failed: " + ioe.getMessage());
+            }
+            abort();
+        }
+    }
+}
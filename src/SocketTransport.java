@@ -0,0 +1,264 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+* Transport used by the thread-per-connection modes, writing to the blocking
+* OutputStream of an accepted Socket. Frames are queued by the sending threads and
+* written by a drain task of this connection, at most one of which runs at a time,
+* so a client that stops reading only ever blocks its own writer.
+* The drain task copies all queued Frames into one buffer and hands it to the socket
+* with a single write, instead of one write (and often one TCP segment) per line.
+* The buffer is borrowed from the BufferPool for the drain only, so an idle connection holds none.
+* On a WebSocket connection each line is copied behind the header of its message.
+*/
+public class SocketTransport implements ClientTransport {
+
+    private Socket socket;
+    private OutputStream clientOs;
+    private OutboundQueue outbound;
+    private Executor writerPool;
+    private ScheduledExecutorService flushScheduler;
+    private long flushWindowMillis;
+    private WriteStats stats;
+    /* Null unless the client connected to the WebSocket port. */
+    private WebSocketCodec webSocket;
+    private AtomicBoolean draining;
+    private volatile boolean batching;
+    private volatile boolean closeRequested;
+    private volatile boolean failed;
+    private BufferPool bufferPool;
+    /* Only touched by the drain task holding draining, the write buffer only while it is borrowed. */
+    private byte[] writeBuffer;
+    private Frame[] frameBatch;
+
+    /**
+     * Wrap the OutputStream of a connection.
+     * @param socket The connected Socket, whose stream is used to send data back to the client.
+     * @param outbound Queue holding the Frames until they are written.
+     * @param writerPool Executor running the drain task of this connection.
+     * @param flushScheduler Scheduler delaying drain tasks, or null if lines are written at once.
+     * @param flushWindowMillis How long lines sent by other clients are held back to be coalesced.
+     * @param stats Counters of the writes made.
+     * @param bufferPool Pool of heap buffers the write buffer is borrowed from.
+     * @throws IOException If the stream of the socket cannot be opened.
+     */
+    public SocketTransport(Socket socket, OutboundQueue outbound, Executor writerPool,
+            ScheduledExecutorService flushScheduler, long flushWindowMillis, WriteStats stats, BufferPool bufferPool)
+            throws IOException {
+        this.socket = socket;
+        this.clientOs = socket.getOutputStream();
+        this.outbound = outbound;
+        this.writerPool = writerPool;
+        this.flushScheduler = flushScheduler;
+        this.flushWindowMillis = flushWindowMillis;
+        this.stats = stats;
+        this.bufferPool = bufferPool;
+        this.draining = new AtomicBoolean(false);
+        this.batching = false;
+        this.closeRequested = false;
+        this.failed = false;
+    }
+
+    /**
+     * Public method to send every line as a WebSocket message, to be called before anything is sent.
+     * @param webSocket The codec of the connection.
+     */
+    public void setWebSocket(WebSocketCodec webSocket) {
+        this.webSocket = webSocket;
+    }
+
+    /**
+     * Queue the Frame and make sure the writer of this connection will run,
+     * unless a batch is open, which will be written as a whole when it ends.
+     * As with an autoflushing PrintWriter, write errors are not reported to the sender.
+     * @param frame Encoded line to be sent.
+     * @return False if the outbound queue overflowed and the client has to be disconnected.
+     */
+    @Override
+    public boolean sendFrame(Frame frame) {
+        if (closeRequested || failed) {
+            return true;
+        }
+        if (!outbound.offer(frame)) {
+            return false;
+        }
+        if (!batching) {
+            scheduleDrain(false);
+        }
+        return true;
+    }
+
+    /**
+     * Hold back the queued Frames until endBatch() is called.
+     */
+    @Override
+    public void beginBatch() {
+        batching = true;
+    }
+
+    /**
+     * Write everything queued since beginBatch() at once.
+     */
+    @Override
+    public void endBatch() {
+        batching = false;
+        if (!outbound.isEmpty()) {
+            scheduleDrain(true);
+        }
+    }
+
+    /**
+     * Public getter to return the number of bytes queued and not written yet.
+     * @return The number of queued bytes.
+     */
+    @Override
+    public long getQueuedBytes() {
+        return outbound.getQueuedBytes();
+    }
+
+    /**
+     * Close the underlying OutputStream once the queued Frames have been written.
+     */
+    @Override
+    public void close() {
+        Frame closeFrame = webSocket == null ? null : webSocket.takeCloseFrame();
+        if (closeFrame != null) {
+            sendFrame(closeFrame);
+        }
+        closeRequested = true;
+        batching = false;
+        scheduleDrain(true);
+    }
+
+    /**
+     * Reset the connection at once, dropping the queued Frames along with the bytes the kernel
+     * still holds for the client. A writer blocked because the client does not read fails.
+     */
+    @Override
+    public void abort() {
+        closeRequested = true;
+        failed = true;
+        outbound.clear();
+        try {
+            socket.setSoLinger(true, 0);
+            socket.close();
+        }
+        catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+        }
+    }
+
+    private void scheduleDrain(boolean immediately) {
+        if (draining.compareAndSet(false, true)) {
+            if (immediately || flushScheduler == null) {
+                writerPool.execute(this::drain);
+            }
+            else {
+                // Give other lines of the same burst the chance to join this write.
+                flushScheduler.schedule(() -> writerPool.execute(this::drain),
+                        flushWindowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void drain() {
+        do {
+            writeQueuedFrames();
+            draining.set(false);
+            // A Frame queued after the last poll but before the reset above
+            // found draining still set, so this writer has to pick it up.
+        } while (!outbound.isEmpty() && !batching && draining.compareAndSet(false, true));
+        if (closeRequested && outbound.isEmpty() && draining.compareAndSet(false, true)) {
+            closeStream();
+        }
+    }
+
+    private void writeQueuedFrames() {
+        if (frameBatch == null) {
+            frameBatch = new Frame[Configuration.WRITE_BATCH_FRAMES];
+        }
+        int count = outbound.pollBatch(frameBatch);
+        if (count == 0) {
+            return;
+        }
+        ByteBuffer borrowed = bufferPool.acquire(Configuration.WRITE_BUFFER_SIZE);
+        writeBuffer = borrowed.array();
+        int filled = 0;
+        int framesInBuffer = 0;
+        while (count > 0) {
+            for (int index = 0; index < count; index++) {
+                Frame next = frameBatch[index];
+                frameBatch[index] = null;
+                int length = webSocket == null ? next.length() : webSocket.encodedLength(next);
+                if (length > writeBuffer.length - filled) {
+                    writeOut(null, filled, framesInBuffer);
+                    filled = 0;
+                    framesInBuffer = 0;
+                }
+                if (length > writeBuffer.length) {
+                    writeOut(next, length, 1);
+                }
+                else {
+                    if (webSocket == null) {
+                        next.copyTo(writeBuffer, filled);
+                    }
+                    else {
+                        webSocket.copyTo(next, writeBuffer, filled);
+                    }
+                    filled += length;
+                    framesInBuffer++;
+                }
+            }
+            count = outbound.pollBatch(frameBatch);
+        }
+        writeOut(null, filled, framesInBuffer);
+        writeBuffer = null;
+        bufferPool.release(borrowed);
+        if (!failed) {
+            stats.recordFlush();
+        }
+    }
+
+    /**
+     * Write either a single oversized Frame or the first bytes of the write buffer.
+     * Once a write failed nothing is written anymore, but the queue is still drained.
+     */
+    private void writeOut(Frame oversized, int length, int frames) {
+        if (length == 0 || failed) {
+            return;
+        }
+        try {
+            if (oversized != null && webSocket != null) {
+                // Rare enough to copy rather than to write the header on its own.
+                byte[] message = new byte[length];
+                webSocket.copyTo(oversized, message, 0);
+                clientOs.write(message);
+            }
+            else if (oversized != null) {
+                oversized.writeTo(clientOs);
+            }
+            else {
+                clientOs.write(writeBuffer, 0, length);
+            }
+            stats.recordWrite(frames, length);
+        }
+        catch (IOException ioe) {
+            failed = true;
+        }
+    }
+
+    private void closeStream() {
+        try {
+            clientOs.close();
+        }
+        catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+        }
+    }
+}
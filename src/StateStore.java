@@ -0,0 +1,505 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+* Durable state of the registered users of this server and the channels they joined,
+* kept if a state directory is set by {@link Configuration#STATE_DIR_PROPERTY}.
+* Every change is queued and a single writer thread appends it as a record to a write-ahead
+* log "state-<generation>.wal", each record framed by its length and CRC so that a record
+* torn by a crash ends the replay. Once enough records were logged, or periodically, the writer
+* starts the next generation of the log, writes every user with its channels to a compact
+* "state.snapshot" tagged with the generations it covers, and deletes those logs.
+* On startup the snapshot is loaded and only the logs of later generations are replayed.
+* A user found in the restored state is rejoined to its channels when it registers
+* again with the same nickname and username.
+*/
+public class StateStore implements Runnable {
+
+    private static final int SNAPSHOT_MAGIC = 0x49524353;
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int BUFFER_BYTES = 65536;
+    /* Length (int) and CRC (int) in front of the payload of a record. */
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final byte REGISTER = 1;
+    private static final byte RENAME = 2;
+    private static final byte JOIN = 3;
+    private static final byte PART = 4;
+    private static final byte FORGET = 5;
+    /* Queued by stop(), ending the writer thread once the changes queued before it are logged. */
+    private static final StateRecord STOP = new StateRecord((byte) 0, "", "", "");
+
+    /* Null if the state is not persisted. */
+    private Path directory;
+    private long snapshotRecords;
+    private long snapshotIntervalMillis;
+    private boolean fsync;
+    private BlockingQueue<StateRecord> changes;
+    /* The state the next snapshot is made of, only changed by the writer thread once started,
+       except for the registration path taking the restored users. */
+    private Map<String, UserRecord> users;
+    private long walGeneration;
+    private FileOutputStream walFile;
+    private DataOutputStream wal;
+    private long recordsSinceSnapshot;
+    private long lastSnapshotMillis;
+    private ByteArrayOutputStream payload;
+    private DataOutputStream payloadOutput;
+    private CRC32 crc;
+    private Thread writer;
+    private volatile boolean stopped;
+
+    /**
+     * Read the settings of the state, nothing is restored or logged before start() is called.
+     */
+    public StateStore() {
+        String path = System.getProperty(Configuration.STATE_DIR_PROPERTY);
+        this.directory = path == null || path.isEmpty() ? null : Paths.get(path);
+        this.snapshotRecords = Math.max(1, Long.getLong(Configuration.STATE_SNAPSHOT_RECORDS_PROPERTY,
+                Configuration.STATE_SNAPSHOT_RECORDS));
+        this.snapshotIntervalMillis = Math.max(1, Long.getLong(Configuration.STATE_SNAPSHOT_INTERVAL_PROPERTY,
+                Configuration.STATE_SNAPSHOT_INTERVAL_MILLIS));
+        this.fsync = Boolean.getBoolean(Configuration.STATE_FSYNC_PROPERTY);
+        this.changes = new LinkedBlockingQueue<>();
+        this.users = new ConcurrentHashMap<>();
+        this.payload = new ByteArrayOutputStream();
+        this.payloadOutput = new DataOutputStream(payload);
+        this.crc = new CRC32();
+    }
+
+    /**
+     * Public method to restore the state found in the directory and start the writer thread.
+     * Does nothing if no state directory is set.
+     * @throws IOException If the directory or a new log cannot be created.
+     */
+    public void start() throws IOException {
+        if (directory == null) {
+            return;
+        }
+        long started = System.nanoTime();
+        Files.createDirectories(directory);
+        long covered = loadSnapshot();
+        long lastGeneration = covered;
+        for (long generation : listWalGenerations()) {
+            if (generation <= covered) {
+                continue;
+            }
+            if (Files.size(walPath(generation)) == 0) {
+                // Left by a restart with nothing logged since.
+                Files.delete(walPath(generation));
+            }
+            else {
+                replayWal(generation);
+                lastGeneration = generation;
+            }
+        }
+        // A torn record may end the last log, so later records go to a log of their own.
+        openWal(lastGeneration + 1);
+        lastSnapshotMillis = System.currentTimeMillis();
+        System.out.println("Restored " + users.size() + " users from " + directory + " in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms");
+        writer = new Thread(this, "state-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Public method to record the registration of a user, and take its restored state.
+     * @param nickname The nickname the user registered with.
+     * @param username The username of the user.
+     * @param realname The real name of the user.
+     * @return The channels the user was in when the server stopped if it registered
+     *     with the same username then, otherwise an empty list.
+     */
+    public List<String> recordRegistration(String nickname, String username, String realname) {
+        if (directory == null) {
+            return Collections.emptyList();
+        }
+        UserRecord restored = users.get(nickname);
+        // Taken at most once, even if the user quits and registers again before the writer caught up.
+        boolean taken = restored != null && restored.restored && users.replace(nickname, restored,
+                new UserRecord(restored.username, restored.realname, restored.channels, false));
+        enqueue(REGISTER, nickname, username, realname);
+        if (!taken || !restored.username.equals(username)) {
+            return Collections.emptyList();
+        }
+        return restored.channels;
+    }
+
+    /**
+     * Public method to record a registered user taking a new nickname.
+     * @param oldNickname The nickname the user was registered with.
+     * @param newNickname The nickname the user is now known by.
+     */
+    public void recordRename(String oldNickname, String newNickname) {
+        enqueue(RENAME, oldNickname, newNickname, "");
+    }
+
+    /**
+     * Public method to record a registered user joining a channel.
+     * @param nickname The nickname of the user.
+     * @param channelName The name of the channel.
+     */
+    public void recordJoin(String nickname, String channelName) {
+        enqueue(JOIN, nickname, channelName, "");
+    }
+
+    /**
+     * Public method to record a registered user leaving a channel.
+     * @param nickname The nickname of the user.
+     * @param channelName The name of the channel.
+     */
+    public void recordPart(String nickname, String channelName) {
+        enqueue(PART, nickname, channelName, "");
+    }
+
+    /**
+     * Public method to record a registered user quitting this server, so it is not restored.
+     * @param nickname The nickname of the user.
+     */
+    public void recordQuit(String nickname) {
+        enqueue(FORGET, nickname, "", "");
+    }
+
+    /**
+     * Public method to stop recording changes, and end the writer thread once the changes
+     * queued so far are logged and forced to the disk.
+     * @param timeoutMillis Time in milliseconds to wait at most.
+     * @return Whether the writer thread ended in time.
+     * @throws InterruptedException If the calling thread was interrupted while waiting.
+     */
+    public boolean stop(long timeoutMillis) throws InterruptedException {
+        stopped = true;
+        if (writer == null) {
+            return true;
+        }
+        changes.add(STOP);
+        writer.join(Math.max(1, timeoutMillis));
+        return !writer.isAlive();
+    }
+
+    /**
+     * Public getter to return how many changes wait for the writer thread.
+     * @return The number of queued changes.
+     */
+    public int getPendingChanges() {
+        return changes.size();
+    }
+
+    /**
+     * Log the queued changes, one flush per batch, and make the snapshots until the server stops.
+     */
+    @Override
+    public void run() {
+        List<StateRecord> batch = new ArrayList<>();
+        while (true) {
+            try {
+                long untilSnapshot = lastSnapshotMillis + snapshotIntervalMillis - System.currentTimeMillis();
+                StateRecord first = changes.poll(Math.max(1, untilSnapshot), TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    changes.drainTo(batch);
+                    for (StateRecord record : batch) {
+                        if (record == STOP) {
+                            closeWal();
+                            return;
+                        }
+                        apply(users, record, false);
+                        appendToWal(record);
+                    }
+                    recordsSinceSnapshot += batch.size();
+                    batch.clear();
+                    wal.flush();
+                    if (fsync) {
+                        walFile.getFD().sync();
+                    }
+                }
+                if (recordsSinceSnapshot >= snapshotRecords || recordsSinceSnapshot > 0
+                        && System.currentTimeMillis() - lastSnapshotMillis >= snapshotIntervalMillis) {
+                    compact();
+                }
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (IOException ioe) {
+                batch.clear();
+                System.err.println("Cannot write the state in " + directory + ": " + ioe.getMessage());
+            }
+        }
+    }
+
+    private void enqueue(byte type, String first, String second, String third) {
+        if (directory != null && !stopped) {
+            changes.add(new StateRecord(type, first, second, third));
+        }
+    }
+
+    /* Apply a change to a state, the same way when logging and when replaying. */
+    private static void apply(Map<String, UserRecord> state, StateRecord record, boolean restoring) {
+        UserRecord user;
+        switch (record.type) {
+            case REGISTER:
+                state.put(record.first, new UserRecord(record.second, record.third, Collections.emptyList(),
+                        restoring));
+                break;
+            case RENAME:
+                user = state.remove(record.first);
+                if (user != null) {
+                    state.put(record.second, user);
+                }
+                break;
+            case JOIN:
+                user = state.get(record.first);
+                if (user != null && !user.channels.contains(record.second)) {
+                    List<String> channels = new ArrayList<>(user.channels);
+                    channels.add(record.second);
+                    state.put(record.first, new UserRecord(user.username, user.realname, channels,
+                            user.restored));
+                }
+                break;
+            case PART:
+                user = state.get(record.first);
+                if (user != null && user.channels.contains(record.second)) {
+                    List<String> channels = new ArrayList<>(user.channels);
+                    channels.remove(record.second);
+                    state.put(record.first, new UserRecord(user.username, user.realname, channels,
+                            user.restored));
+                }
+                break;
+            default:
+                state.remove(record.first);
+                break;
+        }
+    }
+
+    private void appendToWal(StateRecord record) throws IOException {
+        payload.reset();
+        payloadOutput.writeByte(record.type);
+        writeString(payloadOutput, record.first);
+        writeString(payloadOutput, record.second);
+        writeString(payloadOutput, record.third);
+        crc.reset();
+        crc.update(payload.toByteArray());
+        wal.writeInt(payload.size());
+        wal.writeInt((int) crc.getValue());
+        payload.writeTo(wal);
+    }
+
+    /* Replay a log up to its end or to its first torn or corrupt record. */
+    private void replayWal(long generation) throws IOException {
+        Path file = walPath(generation);
+        ByteBuffer input = readFile(file);
+        while (input.remaining() >= RECORD_HEADER_BYTES) {
+            int length = input.getInt();
+            int checksum = input.getInt();
+            if (length <= 0 || length > input.remaining()) {
+                break;
+            }
+            ByteBuffer record = input.slice(input.position(), length);
+            crc.reset();
+            crc.update(record.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                System.err.println("Ignoring the corrupt end of " + file);
+                return;
+            }
+            apply(users, new StateRecord(record.get(), readString(record), readString(record),
+                    readString(record)), true);
+            input.position(input.position() + length);
+        }
+    }
+
+    /* Load the snapshot if there is one, returning the last log generation it covers. */
+    private long loadSnapshot() throws IOException {
+        Path file = directory.resolve(Configuration.STATE_SNAPSHOT_FILE);
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        ByteBuffer input = readFile(file);
+        if (input.getInt() != SNAPSHOT_MAGIC || input.getInt() != SNAPSHOT_VERSION) {
+            throw new IOException("Not a state snapshot: " + file);
+        }
+        long covered = input.getLong();
+        // Every channel name is stored once, and shared by the users in the channel.
+        String[] channelNames = new String[input.getInt()];
+        for (int index = 0; index < channelNames.length; index++) {
+            channelNames[index] = readString(input);
+        }
+        int count = input.getInt();
+        users = new ConcurrentHashMap<>(Math.max(count * 2, 1));
+        for (int index = 0; index < count; index++) {
+            String nickname = readString(input);
+            String username = readString(input);
+            String realname = readString(input);
+            int channelCount = input.getInt();
+            List<String> channels = channelCount == 0 ? Collections.emptyList() : new ArrayList<>(channelCount);
+            for (int channel = 0; channel < channelCount; channel++) {
+                channels.add(channelNames[input.getInt()]);
+            }
+            users.put(nickname, new UserRecord(username, realname, channels, true));
+        }
+        return covered;
+    }
+
+    /* Move on to the next log, write the snapshot covering the previous ones and delete them. */
+    private void compact() throws IOException {
+        long covered = walGeneration;
+        openWal(walGeneration + 1);
+        Map<String, Integer> channelIndexes = new HashMap<>();
+        for (UserRecord user : users.values()) {
+            for (String channel : user.channels) {
+                channelIndexes.putIfAbsent(channel, channelIndexes.size());
+            }
+        }
+        String[] channelNames = new String[channelIndexes.size()];
+        for (Map.Entry<String, Integer> entry : channelIndexes.entrySet()) {
+            channelNames[entry.getValue()] = entry.getKey();
+        }
+        Path temporary = directory.resolve(Configuration.STATE_SNAPSHOT_FILE + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile());
+                DataOutputStream output = new DataOutputStream(new BufferedOutputStream(file, BUFFER_BYTES))) {
+            output.writeInt(SNAPSHOT_MAGIC);
+            output.writeInt(SNAPSHOT_VERSION);
+            output.writeLong(covered);
+            output.writeInt(channelNames.length);
+            for (String channel : channelNames) {
+                writeString(output, channel);
+            }
+            output.writeInt(users.size());
+            for (Map.Entry<String, UserRecord> entry : users.entrySet()) {
+                UserRecord user = entry.getValue();
+                writeString(output, entry.getKey());
+                writeString(output, user.username);
+                writeString(output, user.realname);
+                output.writeInt(user.channels.size());
+                for (String channel : user.channels) {
+                    output.writeInt(channelIndexes.get(channel));
+                }
+            }
+            output.flush();
+            // The logs are only deleted once the snapshot replacing them is on disk.
+            file.getFD().sync();
+        }
+        Files.move(temporary, directory.resolve(Configuration.STATE_SNAPSHOT_FILE),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        for (long generation : listWalGenerations()) {
+            if (generation <= covered) {
+                Files.deleteIfExists(walPath(generation));
+            }
+        }
+        recordsSinceSnapshot = 0;
+        lastSnapshotMillis = System.currentTimeMillis();
+    }
+
+    private void openWal(long generation) throws IOException {
+        closeWal();
+        walGeneration = generation;
+        walFile = new FileOutputStream(walPath(generation).toFile(), true);
+        wal = new DataOutputStream(new BufferedOutputStream(walFile, BUFFER_BYTES));
+    }
+
+    private void closeWal() throws IOException {
+        if (wal != null) {
+            wal.flush();
+            walFile.getFD().sync();
+            wal.close();
+        }
+    }
+
+    private List<Long> listWalGenerations() throws IOException {
+        List<Long> generations = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith(Configuration.STATE_WAL_PREFIX)
+                            && name.endsWith(Configuration.STATE_WAL_SUFFIX))
+                    .forEach(name -> generations.add(Long.parseLong(name.substring(
+                            Configuration.STATE_WAL_PREFIX.length(),
+                            name.length() - Configuration.STATE_WAL_SUFFIX.length()))));
+        }
+        generations.sort(null);
+        return generations;
+    }
+
+    private Path walPath(long generation) {
+        return directory.resolve(Configuration.STATE_WAL_PREFIX + String.format("%020d", generation)
+                + Configuration.STATE_WAL_SUFFIX);
+    }
+
+    /* Strings are stored as their length (unsigned short) followed by their UTF-8 bytes. */
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeShort(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(ByteBuffer input) {
+        int length = Short.toUnsignedInt(input.getShort());
+        String value = new String(input.array(), input.arrayOffset() + input.position(), length,
+                StandardCharsets.UTF_8);
+        input.position(input.position() + length);
+        return value;
+    }
+
+    /* Read a whole file at once, the snapshot is read sequentially from start to end. */
+    private static ByteBuffer readFile(Path file) throws IOException {
+        return ByteBuffer.wrap(Files.readAllBytes(file));
+    }
+
+    /**
+    * A change of the state, with up to three arguments depending on its type.
+    */
+    private static final class StateRecord {
+
+        private final byte type;
+        private final String first;
+        private final String second;
+        private final String third;
+
+        StateRecord(byte type, String first, String second, String third) {
+            this.type = type;
+            this.first = first;
+            this.second = second;
+            this.third = third;
+        }
+    }
+
+    /**
+    * A registered user and the channels it joined, replaced rather than changed
+    * since the restored ones are read by the threads registering users.
+    */
+    private static final class UserRecord {
+
+        private final String username;
+        private final String realname;
+        private final List<String> channels;
+        /* Whether the user was found on startup and has not registered again since. */
+        private final boolean restored;
+
+        UserRecord(String username, String realname, List<String> channels, boolean restored) {
+            this.username = username;
+            this.realname = realname;
+            this.channels = channels;
+            this.restored = restored;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+* Hashed timing wheel running the timeouts of all connections, instead of a timer per connection.
+* Time is cut into ticks, and a timeout is put into the slot of the tick it expires in,
+* modulo the number of slots, so scheduling and cancelling cost O(1) and every tick only
+* visits the timeouts of a single slot, however many connections are open.
+* Timeouts may be scheduled and cancelled by any thread, while advance() must only ever
+* be called by one thread, which also runs the tasks of the expired timeouts.
+*/
+public class TimingWheel {
+
+    private List<ArrayDeque<Timeout>> slots;
+    private int mask;
+    private long tickMillis;
+    private long startMillis;
+    /* Number of ticks whose slot has been processed, only touched by the advancing thread. */
+    private long currentTick;
+    /* Timeouts scheduled since the last advance(), moved into their slot by the advancing thread. */
+    private Queue<Timeout> pending;
+
+    /**
+     * Create an empty wheel.
+     * @param slotCount Number of slots, rounded up to a power of two.
+     * @param tickMillis Duration of a tick in milliseconds, the precision of the timeouts.
+     */
+    public TimingWheel(int slotCount, long tickMillis) {
+        int size = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+        this.slots = new ArrayList<>(size);
+        for (int index = 0; index < size; index++) {
+            slots.add(new ArrayDeque<>());
+        }
+        this.mask = size - 1;
+        this.tickMillis = tickMillis;
+        this.startMillis = nowMillis();
+        this.currentTick = 0;
+        this.pending = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Public method to read the monotonic clock all timeouts are measured with.
+     * @return The current time in milliseconds, only meaningful relative to other readings.
+     */
+    public static long nowMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Public getter to return the duration of a tick.
+     * @return The duration of a tick in milliseconds.
+     */
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * Public method to run a task once a delay has passed, may be called by any thread.
+     * The task runs on the thread calling advance(), up to one tick late.
+     * @param task Task to be run.
+     * @param delayMillis Delay in milliseconds from now.
+     * @return The Timeout, which can be cancelled.
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        long deadline = nowMillis() + Math.max(0, delayMillis) - startMillis;
+        Timeout timeout = new Timeout(task, (deadline + tickMillis - 1) / tickMillis);
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Public method to process every tick that has passed since the last call,
+     * running the tasks of the timeouts expired meanwhile.
+     */
+    public void advance() {
+        long targetTick = (nowMillis() - startMillis) / tickMillis;
+        Timeout next = pending.poll();
+        while (next != null) {
+            if (!next.isCancelled()) {
+                // Anything already due runs with the next tick.
+                next.deadlineTick = Math.max(next.deadlineTick, currentTick + 1);
+                slots.get((int) (next.deadlineTick & mask)).add(next);
+            }
+            next = pending.poll();
+        }
+        while (currentTick < targetTick) {
+            currentTick++;
+            expire(slots.get((int) (currentTick & mask)));
+        }
+    }
+
+    /* A slot also holds timeouts of later rounds of the wheel, which stay where they are. */
+    private void expire(ArrayDeque<Timeout> slot) {
+        Iterator<Timeout> timeouts = slot.iterator();
+        while (timeouts.hasNext()) {
+            Timeout timeout = timeouts.next();
+            if (timeout.isCancelled()) {
+                timeouts.remove();
+            }
+            else if (timeout.deadlineTick <= currentTick) {
+                timeouts.remove();
+                try {
+                    timeout.task.run();
+                }
+                catch (RuntimeException e) {
+                    System.err.println(e.getMessage());
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+    * A task scheduled on the wheel.
+    */
+    public static final class Timeout {
+
+        private Runnable task;
+        private long deadlineTick;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+            this.cancelled = false;
+        }
+
+        /**
+         * Public method to keep the task from running, if it has not run yet.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * Public getter to return whether the Timeout was cancelled.
+         * @return Whether cancel() was called.
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+* Token bucket allowing a burst of events followed by a steady rate of them.
+* Instead of a token count and a refill time, which would have to change together,
+* the bucket keeps the time at which it will be full again in a single AtomicLong,
+* so taking a token is one compare-and-set and any thread may use the bucket without a lock.
+* The rate and burst are read from a Limit shared by many buckets, so changing it applies
+* to all of them at once.
+*/
+public class TokenBucket {
+
+    private Limit limit;
+    private AtomicLong fullAtNanos;
+
+    /**
+     * Create a full bucket with a limit of its own.
+     * @param ratePerSecond Tokens refilled per second, 0 or less for a bucket without limit.
+     * @param burst Maximum number of tokens, at least one.
+     */
+    public TokenBucket(long ratePerSecond, long burst) {
+        this(new Limit(ratePerSecond, burst));
+    }
+
+    /**
+     * Create a full bucket following a shared limit.
+     * @param limit The rate and burst of the bucket, which may change later.
+     */
+    public TokenBucket(Limit limit) {
+        this.limit = limit;
+        this.fullAtNanos = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Public method to take a token if one is left.
+     * @param nowNanos The current time of System.nanoTime().
+     * @return 0 if a token was taken, otherwise the nanoseconds until one will be left.
+     */
+    public long tryAcquire(long nowNanos) {
+        long intervalNanos = limit.intervalNanos;
+        if (intervalNanos == 0) {
+            return 0;
+        }
+        long toleranceNanos = limit.toleranceNanos;
+        while (true) {
+            long fullAt = fullAtNanos.get();
+            long start = fullAt - nowNanos < 0 ? nowNanos : fullAt;
+            // start - nowNanos is never negative, so a saturated tolerance cannot overflow.
+            long wait = start - nowNanos - toleranceNanos;
+            if (wait > 0) {
+                return wait;
+            }
+            if (fullAtNanos.compareAndSet(fullAt, start + intervalNanos)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Public method to return whether a token is left, without taking it.
+     * @param nowNanos The current time of System.nanoTime().
+     * @return 0 if a token is left, otherwise the nanoseconds until one will be left.
+     */
+    public long nanosUntilToken(long nowNanos) {
+        long intervalNanos = limit.intervalNanos;
+        if (intervalNanos == 0) {
+            return 0;
+        }
+        long fullAt = fullAtNanos.get();
+        long start = fullAt - nowNanos < 0 ? nowNanos : fullAt;
+        return Math.max(0, start - nowNanos - limit.toleranceNanos);
+    }
+
+    /**
+    * The rate and burst of one or more buckets. While it is changed, a bucket may
+    * briefly see the new rate with the old burst, which only lets one token more
+    * or less through.
+    */
+    public static final class Limit {
+
+        /* Time one token takes to be refilled, 0 for a bucket without limit. */
+        private volatile long intervalNanos;
+        /* How far ahead of now the full time may be, the burst beyond the first token. */
+        private volatile long toleranceNanos;
+
+        /**
+         * Create a limit.
+         * @param ratePerSecond Tokens refilled per second, 0 or less for no limit.
+         * @param burst Maximum number of tokens, at least one.
+         */
+        public Limit(long ratePerSecond, long burst) {
+            set(ratePerSecond, burst);
+        }
+
+        /**
+         * Public method to change the limit of every bucket following it.
+         * @param ratePerSecond Tokens refilled per second, 0 or less for no limit.
+         * @param burst Maximum number of tokens, at least one.
+         */
+        public void set(long ratePerSecond, long burst) {
+            // At least a nanosecond, so a rate beyond a token per nanosecond does not remove the limit.
+            long interval = ratePerSecond > 0 ? Math.max(1, TimeUnit.SECONDS.toNanos(1) / ratePerSecond) : 0;
+            long extraTokens = Math.max(1, burst) - 1;
+            // Saturated, a burst too large to be timed is as good as no limit on bursts.
+            toleranceNanos = interval > 0 && extraTokens > Long.MAX_VALUE / interval
+                    ? Long.MAX_VALUE : interval * extraTokens;
+            intervalNanos = interval;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+* The compact user IDs of the registered clients of an IrcServer, by which the channels
+* hold their members in an IntHashMap. IDs start at 1 and a freed ID is given again to the
+* next user registering, so the IDs stay as dense as the users registered at once.
+*/
+public class UserIdPool {
+
+    /* Freed IDs, the most recently freed one on top. */
+    private int[] freeIds;
+    private int freeCount;
+    /* The lowest ID never assigned so far. */
+    private int nextId;
+    private ReentrantLock lock;
+
+    /**
+     * Create a pool without any ID assigned.
+     */
+    public UserIdPool() {
+        this.freeIds = new int[Configuration.USER_ID_POOL_CAPACITY];
+        this.freeCount = 0;
+        this.nextId = 1;
+        this.lock = new ReentrantLock();
+    }
+
+    /**
+     * Public method to assign an ID to a client which has just registered.
+     * @return The ID, a positive int.
+     */
+    public int assign() {
+        lock.lock();
+        try {
+            return freeCount > 0 ? freeIds[--freeCount] : nextId++;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Public method to free an ID, once no channel holds it anymore.
+     * @param id An ID returned by {@link #assign}.
+     */
+    public void release(int id) {
+        lock.lock();
+        try {
+            if (freeCount == freeIds.length) {
+                freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+            }
+            freeIds[freeCount++] = id;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Public getter to return the highest ID assigned so far, the most users registered at once.
+     * @return The highest ID, 0 if none was assigned.
+     */
+    public int getHighestId() {
+        lock.lock();
+        try {
+            return nextId - 1;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,478 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+* The WebSocket protocol (RFC 6455) of a browser client, on top of which it speaks IRC
+* with one line per message, as in the IRCv3 WebSocket specification. Inbound, the codec
+* answers the HTTP upgrade request, then unmasks the frames and hands the lines of every
+* text or binary message to the ConnectionHandler, and answers PING and CLOSE frames itself.
+* Outbound, the transports put the header from {@link #putHeader} in front of each line and
+* send the bytes of the shared Frame without its line terminator, so a broadcast is still
+* encoded once for raw TCP and WebSocket clients alike.
+* Decoding is left to the thread reading the connection, while the close frame
+* may be taken by any thread closing it.
+*/
+public class WebSocketCodec implements InputDecoder {
+
+    /**Maximum size in bytes of the header of a message sent to the client.*/
+    public static final int MAX_HEADER_BYTES = 10;
+
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final String TEXT_PROTOCOL = "text.ircv3.net";
+    private static final String BINARY_PROTOCOL = "binary.ircv3.net";
+    private static final String SUPPORTED_VERSION = "13";
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+    private static final byte[] LINE_END = {'\n'};
+
+    private static final int FIN = 0x80;
+    private static final int RESERVED_BITS = 0x70;
+    private static final int OPCODE_BITS = 0x0F;
+    private static final int MASK_BIT = 0x80;
+    private static final int LENGTH_BITS = 0x7F;
+    private static final int BYTE_BITS = 0xFF;
+    private static final int CONTINUATION = 0x0;
+    private static final int TEXT = 0x1;
+    private static final int BINARY = 0x2;
+    private static final int CLOSE = 0x8;
+    private static final int PING = 0x9;
+    private static final int PONG = 0xA;
+    /* Opcodes from CLOSE on are control frames. */
+    private static final int FIRST_CONTROL = CLOSE;
+    private static final int MAX_CONTROL_PAYLOAD = 125;
+    private static final int LENGTH_16 = 126;
+    private static final int LENGTH_64 = 127;
+    private static final int MAX_LENGTH_16 = 65535;
+    private static final int MASK_BYTES = 4;
+    private static final int MASK_INDEX_BITS = 3;
+    private static final int SHORT_HEADER_BYTES = 2;
+    private static final int MEDIUM_HEADER_BYTES = 4;
+    private static final int LONG_HEADER_BYTES = MAX_HEADER_BYTES;
+    private static final int BITS_PER_BYTE = 8;
+    private static final int STATUS_NORMAL = 1000;
+    private static final int STATUS_PROTOCOL_ERROR = 1002;
+    private static final int STATUS_TOO_BIG = 1009;
+    private static final int STATUS_BYTES = 2;
+
+    /* Headers of the payload lengths below LENGTH_16, indexed by length, for each opcode. */
+    private static final byte[][] TEXT_HEADERS = buildShortHeaders(TEXT);
+    private static final byte[][] BINARY_HEADERS = buildShortHeaders(BINARY);
+
+    private ConnectionHandler handler;
+    private LineDecoder lines;
+    private int maxMessageBytes;
+    /* Bytes read and not processed yet, the upgrade request or the frames. */
+    private byte[] input;
+    private int inputLength;
+    /* Read by the threads writing to or closing the connection. */
+    private volatile boolean upgraded;
+    /* Set once the connection fails or the client closed it, then the input is ignored. */
+    private boolean done;
+    /* Payload of a message sent in fragments, only used while one is in progress. */
+    private byte[] message;
+    private int messageLength;
+    private boolean inMessage;
+    /* Opcode of the messages sent to the client, binary if the client asked for binary.ircv3.net. */
+    private volatile int opcode;
+    private AtomicBoolean closeSent;
+    /* Status of the close frame, the one the client closed with or a protocol error. */
+    private volatile int closeStatus;
+
+    /**
+     * Create the codec of a connection accepted on the WebSocket port.
+     * @param charset Charset used to decode each line.
+     */
+    public WebSocketCodec(Charset charset) {
+        this.lines = new LineDecoder(charset);
+        this.maxMessageBytes = Configuration.WEBSOCKET_MAX_MESSAGE_BYTES;
+        this.input = new byte[Configuration.LINE_BUFFER_INITIAL_SIZE];
+        this.inputLength = 0;
+        this.upgraded = false;
+        this.done = false;
+        this.message = new byte[0];
+        this.messageLength = 0;
+        this.inMessage = false;
+        this.opcode = TEXT;
+        this.closeSent = new AtomicBoolean(false);
+        this.closeStatus = STATUS_NORMAL;
+    }
+
+    /**
+     * Public method to set the handler of the connection, which the codec sends its control frames
+     * through and tells once the client closed the connection or broke the protocol.
+     * @param handler ConnectionHandler of this connection.
+     */
+    public void setHandler(ConnectionHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Consume all remaining bytes of the buffer, answering the upgrade request and control frames,
+     * and handing the lines of every completed message to the consumer.
+     * A PONG frame is handed over as an empty line, which only proves the client alive.
+     * @param buffer Buffer in read mode, will be fully drained.
+     * @param lineConsumer Receiver of the decoded lines, without line terminators.
+     */
+    @Override
+    public void decode(ByteBuffer buffer, Consumer<String> lineConsumer) {
+        if (done) {
+            buffer.position(buffer.limit());
+            return;
+        }
+        append(buffer);
+        int position = 0;
+        if (!upgraded) {
+            position = readUpgrade();
+        }
+        if (upgraded) {
+            int consumed = readFrame(position, lineConsumer);
+            while (consumed > 0 && !done) {
+                position += consumed;
+                consumed = readFrame(position, lineConsumer);
+            }
+        }
+        if (done) {
+            inputLength = 0;
+        }
+        else if (position > 0) {
+            System.arraycopy(input, position, input, 0, inputLength - position);
+            inputLength -= position;
+        }
+    }
+
+    /**
+     * Public method to copy the header of the message carrying a Frame into a buffer.
+     * @param frame Frame to be sent to the client, not verbatim.
+     * @param destination Buffer in write mode with room for {@link #MAX_HEADER_BYTES}.
+     */
+    public void putHeader(Frame frame, ByteBuffer destination) {
+        int length = frame.lineLength();
+        if (length < LENGTH_16) {
+            destination.put(opcode == TEXT ? TEXT_HEADERS[length] : BINARY_HEADERS[length]);
+        }
+        else {
+            byte[] header = new byte[MAX_HEADER_BYTES];
+            destination.put(header, 0, writeHeader(FIN | opcode, length, header, 0));
+        }
+    }
+
+    /**
+     * Public method to return how many bytes of a Frame are sent as the payload of its message.
+     * @param frame Frame to be sent to the client.
+     * @return The length of the line without its terminator, or of all bytes if verbatim.
+     */
+    public int payloadLength(Frame frame) {
+        return frame.isVerbatim() ? frame.length() : frame.lineLength();
+    }
+
+    /**
+     * Public method to return how many bytes a Frame takes once sent to the client.
+     * @param frame Frame to be sent to the client.
+     * @return The number of bytes of the header and payload.
+     */
+    public int encodedLength(Frame frame) {
+        if (frame.isVerbatim()) {
+            return frame.length();
+        }
+        int length = frame.lineLength();
+        return headerLength(length) + length;
+    }
+
+    /**
+     * Public method to copy a Frame, with its header, into an array.
+     * @param frame Frame to be sent to the client.
+     * @param destination Array with room for {@link #encodedLength} bytes.
+     * @param offset Index of the first byte to be written in the destination.
+     */
+    public void copyTo(Frame frame, byte[] destination, int offset) {
+        if (frame.isVerbatim()) {
+            frame.copyTo(destination, offset);
+        }
+        else {
+            int length = frame.lineLength();
+            int headerLength = writeHeader(FIN | opcode, length, destination, offset);
+            frame.copyTo(destination, offset + headerLength, length);
+        }
+    }
+
+    /**
+     * Public method to take the close frame sent last before the connection is closed,
+     * unless one was already taken or the upgrade did not succeed.
+     * @return The close frame, or null if none is due.
+     */
+    public Frame takeCloseFrame() {
+        if (!upgraded || !closeSent.compareAndSet(false, true)) {
+            return null;
+        }
+        return closeFrame(closeStatus);
+    }
+
+    private void append(ByteBuffer buffer) {
+        int count = buffer.remaining();
+        if (inputLength + count > input.length) {
+            input = Arrays.copyOf(input, Math.max(input.length * 2, inputLength + count));
+        }
+        buffer.get(input, inputLength, count);
+        inputLength += count;
+    }
+
+    /* Answer the upgrade request once complete, returning the number of its bytes or 0 if incomplete. */
+    private int readUpgrade() {
+        int end = indexOf(HEADER_END);
+        if (end < 0) {
+            if (inputLength > Configuration.WEBSOCKET_MAX_REQUEST_BYTES) {
+                reject("431 Request Header Fields Too Large", "");
+            }
+            return 0;
+        }
+        String[] requestLines = new String(input, 0, end, StandardCharsets.ISO_8859_1).split("\r\n");
+        Map<String, String> headers = new HashMap<>();
+        for (int index = 1; index < requestLines.length; index++) {
+            int colon = requestLines[index].indexOf(':');
+            if (colon > 0) {
+                headers.put(requestLines[index].substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                        requestLines[index].substring(colon + 1).trim());
+            }
+        }
+        String key = headers.get("sec-websocket-key");
+        if (!requestLines[0].startsWith("GET ") || !requestLines[0].endsWith(" HTTP/1.1") || key == null
+                || !hasToken(headers.get("upgrade"), "websocket") || !hasToken(headers.get("connection"), "upgrade")) {
+            reject("400 Bad Request", "");
+            return 0;
+        }
+        if (!SUPPORTED_VERSION.equals(headers.get("sec-websocket-version"))) {
+            reject("426 Upgrade Required", "Sec-WebSocket-Version: " + SUPPORTED_VERSION + "\r\n");
+            return 0;
+        }
+        StringBuilder response = new StringBuilder("HTTP/1.1 101 Switching Protocols\r\n")
+                .append("Upgrade: websocket\r\nConnection: Upgrade\r\n")
+                .append("Sec-WebSocket-Accept: ").append(acceptKey(key)).append("\r\n");
+        String protocols = headers.get("sec-websocket-protocol");
+        if (hasToken(protocols, TEXT_PROTOCOL)) {
+            response.append("Sec-WebSocket-Protocol: ").append(TEXT_PROTOCOL).append("\r\n");
+        }
+        else if (hasToken(protocols, BINARY_PROTOCOL)) {
+            response.append("Sec-WebSocket-Protocol: ").append(BINARY_PROTOCOL).append("\r\n");
+            opcode = BINARY;
+        }
+        response.append("\r\n");
+        handler.sendFrame(Frame.verbatim(response.toString().getBytes(StandardCharsets.ISO_8859_1)));
+        upgraded = true;
+        return end + HEADER_END.length;
+    }
+
+    private void reject(String status, String headers) {
+        String response = "HTTP/1.1 " + status + "\r\n" + headers + "Connection: close\r\nContent-Length: 0\r\n\r\n";
+        handler.sendFrame(Frame.verbatim(response.getBytes(StandardCharsets.ISO_8859_1)));
+        fail();
+    }
+
+    /* Process the frame at the position once complete, returning the number of its bytes or 0 if incomplete. */
+    private int readFrame(int position, Consumer<String> lineConsumer) {
+        int available = inputLength - position;
+        if (available < SHORT_HEADER_BYTES) {
+            return 0;
+        }
+        int first = input[position] & BYTE_BITS;
+        int second = input[position + 1] & BYTE_BITS;
+        int frameOpcode = first & OPCODE_BITS;
+        boolean control = frameOpcode >= FIRST_CONTROL;
+        long length = second & LENGTH_BITS;
+        int headerLength = SHORT_HEADER_BYTES;
+        if (length == LENGTH_16) {
+            headerLength = MEDIUM_HEADER_BYTES;
+            if (available < headerLength) {
+                return 0;
+            }
+            length = readNumber(position + SHORT_HEADER_BYTES, MEDIUM_HEADER_BYTES - SHORT_HEADER_BYTES);
+        }
+        else if (length == LENGTH_64) {
+            headerLength = LONG_HEADER_BYTES;
+            if (available < headerLength) {
+                return 0;
+            }
+            length = readNumber(position + SHORT_HEADER_BYTES, LONG_HEADER_BYTES - SHORT_HEADER_BYTES);
+        }
+        // Clients always mask, and no extension was agreed on which would use the reserved bits.
+        if ((second & MASK_BIT) == 0 || (first & RESERVED_BITS) != 0
+                || control && ((first & FIN) == 0 || length > MAX_CONTROL_PAYLOAD)) {
+            close(STATUS_PROTOCOL_ERROR);
+            return 0;
+        }
+        if (length < 0 || length > maxMessageBytes - messageLength) {
+            close(STATUS_TOO_BIG);
+            return 0;
+        }
+        int maskStart = position + headerLength;
+        int payloadStart = maskStart + MASK_BYTES;
+        if (inputLength - payloadStart < length) {
+            return 0;
+        }
+        int payloadLength = (int) length;
+        for (int index = 0; index < payloadLength; index++) {
+            input[payloadStart + index] ^= input[maskStart + (index & MASK_INDEX_BITS)];
+        }
+        boolean fin = (first & FIN) != 0;
+        if (control) {
+            readControl(frameOpcode, payloadStart, payloadLength, lineConsumer);
+        }
+        else {
+            readData(frameOpcode, fin, payloadStart, payloadLength, lineConsumer);
+        }
+        return payloadStart + payloadLength - position;
+    }
+
+    private void readData(int frameOpcode, boolean fin, int start, int length, Consumer<String> lineConsumer) {
+        boolean unexpected = frameOpcode == CONTINUATION ? !inMessage
+                : inMessage || (frameOpcode != TEXT && frameOpcode != BINARY);
+        if (unexpected) {
+            close(STATUS_PROTOCOL_ERROR);
+            return;
+        }
+        if (fin && !inMessage) {
+            // A message in a single frame, by far the most common, is decoded where it was read.
+            deliver(input, start, length, lineConsumer);
+            return;
+        }
+        if (messageLength + length > message.length) {
+            message = Arrays.copyOf(message, Math.max(message.length * 2, messageLength + length));
+        }
+        System.arraycopy(input, start, message, messageLength, length);
+        messageLength += length;
+        inMessage = !fin;
+        if (fin) {
+            deliver(message, 0, messageLength, lineConsumer);
+            messageLength = 0;
+        }
+    }
+
+    private void readControl(int frameOpcode, int start, int length, Consumer<String> lineConsumer) {
+        if (frameOpcode == PING) {
+            byte[] pong = new byte[SHORT_HEADER_BYTES + length];
+            writeHeader(FIN | PONG, length, pong, 0);
+            System.arraycopy(input, start, pong, SHORT_HEADER_BYTES, length);
+            handler.sendFrame(Frame.verbatim(pong));
+            lineConsumer.accept("");
+        }
+        else if (frameOpcode == PONG) {
+            lineConsumer.accept("");
+        }
+        else if (frameOpcode == CLOSE) {
+            int status = length >= STATUS_BYTES ? (int) readNumber(start, STATUS_BYTES) : STATUS_NORMAL;
+            close(status);
+        }
+        else {
+            close(STATUS_PROTOCOL_ERROR);
+        }
+    }
+
+    /* Every message is one line, which may or may not end with a line terminator. */
+    private void deliver(byte[] bytes, int start, int length, Consumer<String> lineConsumer) {
+        lines.decode(ByteBuffer.wrap(bytes, start, length), lineConsumer);
+        if (length == 0 || bytes[start + length - 1] != '\n' && bytes[start + length - 1] != '\r') {
+            lines.decode(ByteBuffer.wrap(LINE_END), lineConsumer);
+        }
+    }
+
+    /* Release the connection, whose transport sends the close frame after the QUIT line. */
+    private void close(int status) {
+        closeStatus = status;
+        fail();
+    }
+
+    private void fail() {
+        done = true;
+        handler.handleConnectionLost();
+    }
+
+    private long readNumber(int start, int bytes) {
+        long number = 0;
+        for (int index = 0; index < bytes; index++) {
+            number = number << BITS_PER_BYTE | input[start + index] & BYTE_BITS;
+        }
+        return number;
+    }
+
+    private int indexOf(byte[] pattern) {
+        for (int index = 0; index + pattern.length <= inputLength; index++) {
+            if (Arrays.equals(input, index, index + pattern.length, pattern, 0, pattern.length)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private static Frame closeFrame(int status) {
+        byte[] frame = new byte[SHORT_HEADER_BYTES + STATUS_BYTES];
+        writeHeader(FIN | CLOSE, STATUS_BYTES, frame, 0);
+        frame[SHORT_HEADER_BYTES] = (byte) (status >>> BITS_PER_BYTE);
+        frame[SHORT_HEADER_BYTES + 1] = (byte) status;
+        return Frame.verbatim(frame);
+    }
+
+    private static int headerLength(int payloadLength) {
+        if (payloadLength < LENGTH_16) {
+            return SHORT_HEADER_BYTES;
+        }
+        return payloadLength <= MAX_LENGTH_16 ? MEDIUM_HEADER_BYTES : LONG_HEADER_BYTES;
+    }
+
+    /* Write an unmasked header, returning its length. */
+    private static int writeHeader(int first, int payloadLength, byte[] destination, int offset) {
+        int headerLength = headerLength(payloadLength);
+        destination[offset] = (byte) first;
+        if (headerLength == SHORT_HEADER_BYTES) {
+            destination[offset + 1] = (byte) payloadLength;
+            return headerLength;
+        }
+        destination[offset + 1] = (byte) (headerLength == MEDIUM_HEADER_BYTES ? LENGTH_16 : LENGTH_64);
+        long remaining = payloadLength;
+        for (int index = offset + headerLength - 1; index >= offset + SHORT_HEADER_BYTES; index--) {
+            destination[index] = (byte) remaining;
+            remaining >>>= BITS_PER_BYTE;
+        }
+        return headerLength;
+    }
+
+    private static boolean hasToken(String value, String token) {
+        if (value == null) {
+            return false;
+        }
+        for (String part : value.split(",")) {
+            if (part.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String acceptKey(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1")
+                    .digest((key + ACCEPT_GUID).getBytes(StandardCharsets.ISO_8859_1));
+            return Base64.getEncoder().encodeToString(digest);
+        }
+        catch (NoSuchAlgorithmException nsae) {
+            // Every Java platform is required to support SHA-1.
+            throw new IllegalStateException(nsae);
+        }
+    }
+
+    private static byte[][] buildShortHeaders(int opcode) {
+        byte[][] headers = new byte[LENGTH_16][];
+        for (int length = 0; length < LENGTH_16; length++) {
+            headers[length] = new byte[SHORT_HEADER_BYTES];
+            writeHeader(FIN | opcode, length, headers[length], 0);
+        }
+        return headers;
+    }
+}
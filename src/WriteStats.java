@@ -0,0 +1,74 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+* Counters shared by all transports of an IrcServer describing how outbound
+* lines were turned into socket writes, used to verify that coalescing
+* lowers the number of write calls and flushes per line sent.
+*/
+public class WriteStats {
+
+    private LongAdder framesWritten;
+    private LongAdder bytesWritten;
+    private LongAdder writeCalls;
+    private LongAdder flushes;
+
+    /**
+     * Create a set of counters starting at zero.
+     */
+    public WriteStats() {
+        framesWritten = new LongAdder();
+        bytesWritten = new LongAdder();
+        writeCalls = new LongAdder();
+        flushes = new LongAdder();
+    }
+
+    /**
+     * Public method to count one write call handing bytes to a socket.
+     * @param frames Number of Frames, complete or finished by this call.
+     * @param bytes Number of bytes accepted by the socket.
+     */
+    public void recordWrite(int frames, long bytes) {
+        writeCalls.increment();
+        framesWritten.add(frames);
+        bytesWritten.add(bytes);
+    }
+
+    /**
+     * Public method to count one flush, the end of a batch of writes to a single client.
+     */
+    public void recordFlush() {
+        flushes.increment();
+    }
+
+    /**
+     * Public getter to return how many Frames were written.
+     * @return The number of Frames written.
+     */
+    public long getFramesWritten() {
+        return framesWritten.sum();
+    }
+
+    /**
+     * Public getter to return how many bytes were written.
+     * @return The number of bytes written.
+     */
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    /**
+     * Public getter to return how many write calls were made.
+     * @return The number of write calls.
+     */
+    public long getWriteCalls() {
+        return writeCalls.sum();
+    }
+
+    /**
+     * Public getter to return how many batches were flushed.
+     * @return The number of flushes.
+     */
+    public long getFlushes() {
+        return flushes.sum();
+    }
+}